@@ -0,0 +1,150 @@
+package examples;
+
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+
+import mpk_dsc.ChaosMap;
+import mpk_fractal.Mandelbrot;
+
+/** Shows the flip time of the double pendulum (or the largest Lyapunov
+ * exponent, with the argument "lyapunov") over the plane of initial angles.
+ * The map is colored like Mandelbrot: initial conditions that flip quickly
+ * are dark, and those that never flip are black. Left click to zoom in,
+ * right click to zoom out, and use the arrow keys to pan. Only the tiles
+ * that are not already cached are computed after each change of view. */
+@SuppressWarnings("serial")
+public class ChaosMapDemo extends JPanel implements KeyListener, ActionListener {
+
+	private ChaosMap map;
+	private ChaosMap.Job job;
+
+	private double scale = 64.0;  // pixels / rad
+	private double scaleRate = 0.4;
+	private int panRate = 25;
+	private double[] center = {-0.5*Math.PI, -0.5*Math.PI};  // Both links down
+
+	private BufferedImage image;
+	private Timer timer = new Timer(100, this);  // Repaints while a job runs
+	private long start;
+
+	public ChaosMapDemo(ChaosMap.Quantity quantity){
+		super();
+		map = new ChaosMap(quantity);
+		if (quantity == ChaosMap.Quantity.LYAPUNOV){
+			map.setMaxTime(10.0);
+		}
+		addKeyListener(this);
+		setFocusable(true);
+		addMouseListener(new MouseAdapter(){
+			@Override
+			public void mousePressed(MouseEvent e) {
+				double scaleNew = (e.getButton() == MouseEvent.BUTTON1) ? scale*(1.0+scaleRate) : scale*(1.0-scaleRate);
+				center[0] += (e.getX()-0.5*getWidth())*(1/scale - 1/scaleNew);
+				center[1] -= (e.getY()-0.5*getHeight())*(1/scale - 1/scaleNew);
+				scale = scaleNew;
+				newView();
+			}
+		});
+	}
+
+	/** Cancel the current job and start one for the current view */
+	private void newView(){
+		if (job != null) job.cancel();
+		int w = Math.max(getWidth(), 1), h = Math.max(getHeight(), 1);
+		start = System.nanoTime();
+		job = map.compute(center[0], center[1], scale, w, h);
+		System.out.printf("View %d x %d at %.1f px/rad: %d tiles, %d to compute\n",
+				w, h, scale, job.getTileCount(), job.getComputedTileCount());
+		timer.start();
+		repaint();
+	}
+
+	@Override
+	public void paintComponent(Graphics g){
+		super.paintComponent(g);
+		if (job == null || job.getWidth() != getWidth() || job.getHeight() != getHeight()){
+			newView();
+		}
+		int w = job.getWidth(), h = job.getHeight();
+		if (image == null || image.getWidth() != w || image.getHeight() != h){
+			image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		}
+		float[] grid = job.getGrid();
+		boolean lyapunov = (map.getQuantity() == ChaosMap.Quantity.LYAPUNOV);
+		double logMax = Math.log(1.0 + map.getMaxTime());
+		for (int j=0; j<h; j++){
+			for (int i=0; i<w; i++){
+				float x = grid[j*w + i];
+				double value;
+				if (Float.isNaN(x) || Float.isInfinite(x)){
+					value = 0.0;
+				} else if (lyapunov){
+					value = x/4.0;
+				} else {
+					value = Math.log(1.0 + x)/logMax;
+				}
+				image.setRGB(i, j, Mandelbrot.colorMap(value));
+			}
+		}
+		g.drawImage(image, 0, 0, null);
+	}
+
+	/** Called by the timer */
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		if (job.isDone()){
+			timer.stop();
+			if (!job.isCancelled()){
+				System.out.printf("  done in %.2f s, %d tiles cached\n",
+						1e-9*(System.nanoTime() - start), map.getCachedTileCount());
+			}
+		}
+		repaint();
+	}
+
+	@Override
+	public void keyPressed(KeyEvent e) {
+		switch(e.getKeyCode()) {
+		case KeyEvent.VK_LEFT:
+			center[0] -= panRate/scale;
+			break;
+		case KeyEvent.VK_RIGHT:
+			center[0] += panRate/scale;
+			break;
+		case KeyEvent.VK_UP:
+			center[1] += panRate/scale;
+			break;
+		case KeyEvent.VK_DOWN:
+			center[1] -= panRate/scale;
+			break;
+		default:
+			return;
+		}
+		newView();
+	}
+	@Override
+	public void keyReleased(KeyEvent e) {}
+	@Override
+	public void keyTyped(KeyEvent e) {}
+
+	public static void main(String[] args) {
+		boolean lyapunov = args.length > 0 && args[0].equalsIgnoreCase("lyapunov");
+		ChaosMapDemo demo = new ChaosMapDemo(lyapunov ? ChaosMap.Quantity.LYAPUNOV : ChaosMap.Quantity.FLIP_TIME);
+		JFrame frame = new JFrame(lyapunov ? "Double Pendulum: Lyapunov Exponent" : "Double Pendulum: Flip Time");
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.add(demo);
+		frame.setSize((int) (2*Math.PI*demo.scale), (int) (2*Math.PI*demo.scale));
+		frame.setVisible(true);
+	}
+
+}
@@ -0,0 +1,105 @@
+package examples;
+
+import java.awt.BorderLayout;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+
+import mpk_dsc.AnimatedSystem;
+import mpk_dsc.Animator;
+import mpk_dsc.SpringNetwork;
+
+/** A square cloth, hanging from its top corners, simulated as a network of
+ * springs with SYM2. The number of nodes along each edge is the first
+ * argument (default 100, for 10000 nodes). Space pauses, escape restarts,
+ * and R releases the right corner. */
+public class ClothDemo extends JPanel implements KeyListener, AnimatedSystem {
+
+	private static final long serialVersionUID = 1L;
+
+	public static void main(String[] args) {
+		int n = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+
+		JFrame frame = new JFrame("Cloth");
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.setLayout(new BorderLayout());
+
+		ClothDemo gui = new ClothDemo(n);
+		frame.add(gui, BorderLayout.CENTER);
+
+		frame.setSize(800, 800);
+		frame.setVisible(true);
+
+		Animator animator = new Animator(gui);
+		animator.run();
+	}
+
+	private boolean isPaused = false;
+	private SpringNetwork cloth;
+	private int nSide;
+	private long frames = 0;
+	private double simTime = 0.0;  // (s) spent in simulate(), since the last report
+
+	public ClothDemo(int n) {
+		setFocusable(true);
+		addKeyListener(this);
+		nSide = n;
+		cloth = SpringNetwork.cloth(n, n, 1.0/n, false);
+		System.out.printf("%d nodes, %d springs in %d colors\n",
+				cloth.size(), cloth.getSpringCount(), cloth.getColorCount());
+
+		setLayout(new BorderLayout());
+		add(cloth.plot, BorderLayout.CENTER);
+		setVisible(true);
+	}
+
+	@Override
+	public void simulate(double dt) {
+		long start = System.nanoTime();
+		cloth.simulate(dt);
+		simTime += 1e-9*(System.nanoTime() - start);
+		if (++frames % 30 == 0){
+			System.out.printf("%.1f ms per frame\n", 1e3*simTime/30);
+			simTime = 0.0;
+		}
+	}
+
+	@Override
+	public void updateGraphics() {
+		cloth.plot.repaint();
+	}
+
+	@Override
+	public double getTimeRate() {
+		return 0.25;
+	}
+
+	@Override
+	public boolean isPaused() {
+		return isPaused;
+	}
+
+	@Override
+	public void keyPressed(KeyEvent e) {
+		switch(e.getKeyCode()) {
+		case KeyEvent.VK_SPACE:  // Toggle simulation pause
+			isPaused = !isPaused;
+			break;
+		case KeyEvent.VK_ESCAPE:  // Restart the simulation
+			cloth.reset();
+			cloth.setPinned(nSide-1, true);
+			break;
+		case KeyEvent.VK_R:  // Let go of the right corner
+			cloth.setPinned(nSide-1, false);
+			break;
+		default:
+		}
+	}
+	@Override
+	public void keyReleased(KeyEvent e) {}
+	@Override
+	public void keyTyped(KeyEvent e) {}
+
+}
@@ -0,0 +1,81 @@
+package examples;
+
+import mpk_dsc.FirstOrderSystem;
+import mpk_dsc.Integrator;
+import mpk_dsc.Pendulum;
+
+/** A pendulum under PID control, where the integral of the tracking error
+ * is part of the state. The pendulum and the controller are integrated
+ * together as one first order system, y = [th, w, z], so the controller
+ * state gets the same (adaptive) step as the mechanics. The response to a
+ * step in the set-point is printed to the console. */
+public class ControlledPendulumDemo implements FirstOrderSystem {
+
+	public static void main(String[] args) {
+		ControlledPendulumDemo sys = new ControlledPendulumDemo();
+		Integrator integrator = new Integrator(sys);
+		integrator.method = Integrator.Method.DOPRI5;
+
+		System.out.printf("%8s %12s %12s %12s\n", "Time", "Set-point", "Angle", "Torque");
+		for (int i=0; i<=40; i++){
+			double t = sys.getTime();
+			System.out.printf("%8.2f %12.4f %12.4f %12.4f\n", t, sys.setPoint(t), sys.y[0],
+					sys.torque(t, sys.y));
+			integrator.timeStep(0.1);
+		}
+		System.out.println("Evaluations: " + integrator.getEvaluationCount());
+	}
+
+	private Pendulum pendulum = new Pendulum(true);  // Only used for its dynamics
+	private double[] y = {0.0, 0.0, 0.0};  // {angle, rate, integral of error}
+	private double time = 0.0;
+
+	/// PID gains
+	private double kp = 2.0;
+	private double ki = 4.0;
+	private double kd = 0.2;
+
+	private double[] p = new double[1], v = new double[1], a = new double[1];
+
+	/** @return the desired angle at time t */
+	private double setPoint(double t){
+		return t < 0.5 ? 0.0 : 1.0;
+	}
+
+	/** @return the torque from the controller */
+	private double torque(double t, double[] y){
+		return kp*(setPoint(t) - y[0]) - kd*y[1] + ki*y[2];
+	}
+
+	@Override
+	public void derivative(double t, double[] y, double[] dy) {
+		pendulum.tau = torque(t, y);
+		p[0] = y[0];
+		v[0] = y[1];
+		pendulum.dynamics(p, v, a);
+		dy[0] = y[1];
+		dy[1] = a[0];
+		dy[2] = setPoint(t) - y[0];
+	}
+
+	@Override
+	public double[] getState() {
+		return y;
+	}
+
+	@Override
+	public void setState(double[] y) {
+		System.arraycopy(y, 0, this.y, 0, this.y.length);
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public void setTime(double t) {
+		time = t;
+	}
+
+}
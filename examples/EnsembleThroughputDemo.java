@@ -0,0 +1,44 @@
+package examples;
+
+import mpk_dsc.ArrayKernels;
+import mpk_dsc.PendulumEnsemble;
+
+/** Measures how many pendulum-steps per second the ensemble can take with 
+ * the scalar kernels and with the Vector API kernels. Compile
+ * optional/mpk_dsc/VectorKernels.java (see the mpk_dsc README), then run:
+ * 
+ * java --add-modules jdk.incubator.vector examples.EnsembleThroughputDemo
+ * 
+ * Without the module or the optional class, both rows use the scalar
+ * kernels. */
+public class EnsembleThroughputDemo {
+
+	public static void main(String[] args) {
+
+		int nMembers = 4096;
+		int nSteps = 2000;
+		double dt = 0.01;
+
+		ArrayKernels[] options = {ArrayKernels.scalar(), ArrayKernels.create()};
+
+		System.out.printf("%-24s %16s\n", "Kernels", "Steps / second");
+		for (ArrayKernels kernels : options){
+			PendulumEnsemble ensemble = new PendulumEnsemble(nMembers);
+			ensemble.setKernels(kernels);
+			for (int i=0; i<nMembers; i++){
+				ensemble.setInitialState(i, 3.0*i/nMembers, 0.0);
+			}
+			ensemble.reset();
+			
+			ensemble.getIntegrator().timeStep(nSteps*dt, nSteps);  // Warm up the JIT
+			
+			long start = System.nanoTime();
+			ensemble.getIntegrator().timeStep(nSteps*dt, nSteps);
+			double elapsed = 1e-9*(System.nanoTime() - start);
+			
+			double rate = ((double) nMembers)*nSteps/elapsed;
+			System.out.printf("%-24s %16.4e\n", kernels, rate);
+		}
+	}
+
+}
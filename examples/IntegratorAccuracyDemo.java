@@ -0,0 +1,129 @@
+package examples;
+
+import mpk_dsc.DoublePendulum;
+import mpk_dsc.EventFunction;
+import mpk_dsc.Integrator;
+import mpk_dsc.Pendulum;
+
+/** Compares the accuracy of each integration method against the number of
+ * times that it evaluates the dynamics. A double pendulum is simulated for
+ * a fixed duration and compared to a tight-tolerance reference solution.
+ * A second table checks how well each method locates an event: the first
+ * time that a pendulum comes to rest at the top of its swing (v = 0).
+ * Everything is printed to the console. */
+public class IntegratorAccuracyDemo {
+
+	public static void main(String[] args) {
+
+		double duration = 10.0;
+		double framePeriod = 1.0/30.0;  // Call simulate() like the Animator
+
+		/// Reference solution
+		DoublePendulum ref = new DoublePendulum();
+		ref.reset();
+		ref.getIntegrator().method = Integrator.Method.DOPRI5;
+		ref.getIntegrator().absTol = 1e-13;
+		ref.getIntegrator().relTol = 1e-13;
+		run(ref, duration, framePeriod);
+		double[] pRef = ref.getPos().clone();
+		double[] vRef = ref.getVel().clone();
+
+		System.out.printf("%-10s %-12s %12s %12s %14s\n",
+				"Method", "Setting", "Evaluations", "Error", "Energy Drift");
+
+		/// Fixed step methods, at a few step sizes
+		Integrator.Method[] fixed = {Integrator.Method.EULER, Integrator.Method.SYM1,
+				Integrator.Method.SYM2, Integrator.Method.RK4};
+		double[] steps = {0.01, 0.002};
+		for (Integrator.Method method : fixed){
+			for (double dt : steps){
+				DoublePendulum sys = new DoublePendulum();
+				sys.reset();
+				sys.setMaxTimeStep(dt);
+				sys.getIntegrator().method = method;
+				report(sys, method, String.format("dt=%.0e",dt), duration, framePeriod, pRef, vRef);
+			}
+		}
+
+		/// Adaptive methods, at a few tolerances
+		Integrator.Method[] adaptive = {Integrator.Method.DOPRI5, Integrator.Method.CASHKARP};
+		double[] tols = {1e-4, 1e-6, 1e-8};
+		for (Integrator.Method method : adaptive){
+			for (double tol : tols){
+				DoublePendulum sys = new DoublePendulum();
+				sys.reset();
+				sys.getIntegrator().method = method;
+				sys.getIntegrator().absTol = tol;
+				sys.getIntegrator().relTol = tol;
+				report(sys, method, String.format("tol=%.0e",tol), duration, framePeriod, pRef, vRef);
+			}
+		}
+
+		/// Event location, which depends on the velocity
+		double tRef = firstRest(Integrator.Method.DOPRI5, 1e-13);
+		System.out.println();
+		System.out.printf("%-10s %-12s %12s %12s\n", "Method", "Setting", "Event Time", "Error");
+		Integrator.Method[] located = {Integrator.Method.SYM2, Integrator.Method.RK4,
+				Integrator.Method.BEULER, Integrator.Method.MIDPOINT, Integrator.Method.SDIRK2,
+				Integrator.Method.DOPRI5};
+		for (Integrator.Method method : located){
+			double setting = method == Integrator.Method.DOPRI5 ? 1e-6 : 0.01;
+			double t = firstRest(method, setting);
+			String label = method == Integrator.Method.DOPRI5 ?
+					String.format("tol=%.0e",setting) : String.format("dt=%.0e",setting);
+			System.out.printf("%-10s %-12s %12.6f %12.3e\n", method, label, t, t - tRef);
+		}
+	}
+
+	/** Find the first time that the pendulum stops at the top of a swing
+	 * @param setting = step size for fixed step methods, or the tolerance
+	 * for adaptive methods
+	 * @return time of the event, or NaN if it was not found */
+	private static double firstRest(Integrator.Method method, double setting){
+		Pendulum sys = new Pendulum(true);
+		sys.reset();
+		Integrator integrator = sys.getIntegrator();
+		integrator.method = method;
+		if (integrator.isAdaptive()){
+			integrator.absTol = setting;
+			integrator.relTol = setting;
+		}
+		integrator.addEvent(new EventFunction(){
+			@Override
+			public double g(double t, double[] p, double[] v){
+				return v[0];  // Zero at the start, which does not count as a change of sign
+			}
+			@Override
+			public boolean onEvent(double t, double[] p, double[] v){
+				return true;
+			}
+		});
+		int nSteps = integrator.isAdaptive() ? 1 : (int) Math.round(2.0/setting);
+		integrator.timeStep(2.0, nSteps);
+		return integrator.isStopped() ? integrator.getEventTime() : Double.NaN;
+	}
+
+	/** Simulate the system in frame-sized chunks */
+	private static void run(DoublePendulum sys, double duration, double framePeriod){
+		int nFrames = (int) Math.round(duration/framePeriod);
+		for (int i=0; i<nFrames; i++){
+			sys.simulate(framePeriod);
+		}
+	}
+
+	/** Run a single case and print one line of the table */
+	private static void report(DoublePendulum sys, Integrator.Method method, String setting,
+			double duration, double framePeriod, double[] pRef, double[] vRef){
+		double e0 = sys.getEnergy()[0];
+		run(sys, duration, framePeriod);
+		double err = 0;
+		for (int i=0; i<pRef.length; i++){
+			err = Math.max(err, Math.abs(sys.getPos()[i]-pRef[i]));
+			err = Math.max(err, Math.abs(sys.getVel()[i]-vRef[i]));
+		}
+		double drift = sys.getEnergy()[0] - e0;
+		System.out.printf("%-10s %-12s %12d %12.3e %14.3e\n", method, setting,
+				sys.getIntegrator().getEvaluationCount(), err, drift);
+	}
+
+}
@@ -0,0 +1,210 @@
+package examples;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import mpk_dsc.DoublePendulum;
+import mpk_dsc.DoublePendulumEnsemble;
+import mpk_dsc.DynamicalSystem;
+import mpk_dsc.Integrator;
+import mpk_dsc.MechanicalSystem;
+import mpk_dsc.Pendulum;
+import mpk_dsc.PendulumEnsemble;
+
+/** Benchmark suite for Integrator.timeStep(). Prints two tables:
+ *
+ * 1) Throughput: every method on Pendulum, DoublePendulum, and ensembles of
+ * each (to vary the size of the state), with 1 and 10 sub-steps per call.
+ * Reports steps per second, evaluations of the dynamics per step, and bytes
+ * allocated per step (which should be zero).
+ *
+ * 2) Energy drift versus cost: every method over a long undamped run, at a
+ * coarse and a fine setting, so that accuracy and speed can be compared.
+ *
+ * Each throughput case is warmed up before it is timed, and the median of
+ * several timed iterations is reported. Run with "quick" as the argument
+ * for a shorter (noisier) run. Allocation is measured per thread, and shows
+ * as NaN on a JVM that does not support it. */
+public class IntegratorBenchmark {
+
+	private static double warmupTime = 0.3;   // (s) per case, before timing
+	private static double iterationTime = 0.1;  // (s) per timed iteration
+	private static int nIteration = 5;
+	private static double driftDuration = 1000.0;  // (s) of simulation time
+
+	/** Looked up once, since getting it allocates */
+	private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) {
+
+		if (args.length > 0 && args[0].equals("quick")){
+			warmupTime = 0.05;
+			iterationTime = 0.02;
+			nIteration = 3;
+			driftDuration = 100.0;
+		}
+
+		/// Throughput
+		String[] names = {"Pendulum", "DoublePendulum", "PendulumEnsemble(16)",
+				"PendulumEnsemble(256)", "DoublePendulumEnsemble(16)", "DoublePendulumEnsemble(256)"};
+		List<Supplier<DynamicalSystem>> systems = Arrays.asList(
+				() -> new Pendulum(true),
+				() -> new DoublePendulum(true),
+				() -> ensemble(16),
+				() -> ensemble(256),
+				() -> doubleEnsemble(16),
+				() -> doubleEnsemble(256));
+		int[] subSteps = {1, 10};
+		double dt = 0.001;
+
+		System.out.printf("%-28s %-10s %4s %6s %14s %12s %12s\n", "System", "Method",
+				"Sub", "Dim", "Steps / s", "Evals / step", "Bytes / step");
+		for (int s=0; s<systems.size(); s++){
+			for (Integrator.Method method : Integrator.Method.values()){
+				for (int nSub : subSteps){
+					DynamicalSystem sys = systems.get(s).get();
+					sys.reset();
+					Integrator integrator = integratorOf(sys);
+					integrator.method = method;
+					throughput(names[s], sys, integrator, nSub, dt);
+				}
+			}
+		}
+
+		/// Energy drift versus cost
+		System.out.println();
+		System.out.printf("%-16s %-10s %-10s %12s %10s %14s\n", "System", "Method",
+				"Setting", "Evaluations", "Time (ms)", "Energy Drift");
+		for (int s=0; s<2; s++){
+			for (Integrator.Method method : Integrator.Method.values()){
+				for (int k=0; k<2; k++){
+					MechanicalSystem sys = (s == 0) ? new Pendulum(true) : new DoublePendulum(true);
+					sys.reset();
+					drift(names[s], sys, method, k);
+				}
+			}
+		}
+	}
+
+	/** Time a single case and print one row of the throughput table */
+	private static void throughput(String name, DynamicalSystem sys, Integrator integrator,
+			int nSub, double dt){
+		double DT = nSub*dt;
+		int dim = sys.getPos().length;
+
+		/// Warm up the JIT on this case
+		runFor(sys, integrator, DT, nSub, warmupTime);
+
+		double[] rate = new double[nIteration];
+		double evalsPerStep = 0;
+		double bytesPerStep = 0;
+		for (int it=0; it<nIteration; it++){
+			long evals0 = integrator.getEvaluationCount();
+			long accepted0 = integrator.getAcceptedSteps();
+			long bytes0 = allocatedBytes();
+			long start = System.nanoTime();
+			long nCall = runFor(sys, integrator, DT, nSub, iterationTime);
+			double elapsed = 1e-9*(System.nanoTime() - start);
+			long bytes = allocatedBytes() - bytes0;
+
+			long nStep = integrator.isAdaptive() ? integrator.getAcceptedSteps() - accepted0 : nCall*nSub;
+			rate[it] = nStep/elapsed;
+			evalsPerStep = ((double) (integrator.getEvaluationCount() - evals0))/nStep;
+			bytesPerStep = (bytes0 < 0) ? Double.NaN : ((double) bytes)/nStep;
+		}
+		Arrays.sort(rate);
+		System.out.printf("%-28s %-10s %4d %6d %14.4e %12.2f %12.3f\n", name, integrator.method,
+				nSub, dim, rate[nIteration/2], evalsPerStep, bytesPerStep);
+	}
+
+	/** Keep calling timeStep() for the given wall time. The system is reset
+	 * every so often, so that unstable methods do not run off to infinity.
+	 * @return number of calls to timeStep() */
+	private static long runFor(DynamicalSystem sys, Integrator integrator, double DT, int nSub,
+			double duration){
+		long end = System.nanoTime() + (long) (1e9*duration);
+		long nCall = 0;
+		do {
+			for (int i=0; i<64; i++){
+				integrator.timeStep(DT, nSub);
+			}
+			nCall += 64;
+			if (nCall % 4096 == 0) sys.reset();
+		} while (System.nanoTime() < end);
+		return nCall;
+	}
+
+	/** Run a long simulation and print one row of the energy drift table
+	 * @param k = 0 for the coarse setting, 1 for the fine one (the step size
+	 * for fixed step methods, or the tolerance for adaptive methods) */
+	private static void drift(String name, MechanicalSystem sys, Integrator.Method method, int k){
+		Integrator integrator = sys.getIntegrator();
+		integrator.method = method;
+		boolean adaptive = integrator.isAdaptive();
+		double[] settings = adaptive ? new double[] {1e-6, 1e-9} : new double[] {0.01, 0.001};
+		double setting = settings[k];
+		int nSub = 1;
+		if (adaptive){
+			integrator.absTol = setting;
+			integrator.relTol = setting;
+		} else {
+			nSub = (int) Math.round(1.0/setting);
+		}
+
+		double e0 = sys.getEnergy()[0];
+		long start = System.nanoTime();
+		for (int i=0; i<(int) driftDuration; i++){  // One second at a time
+			integrator.timeStep(1.0, nSub);
+		}
+		double elapsed = 1e-6*(System.nanoTime() - start);
+		double drift = Math.abs(sys.getEnergy()[0] - e0)/Math.abs(e0);
+
+		String label = adaptive ? String.format("tol=%.0e", setting) : String.format("dt=%.0e", setting);
+		System.out.printf("%-16s %-10s %-10s %12d %10.1f %14.3e\n", name, method, label,
+				integrator.getEvaluationCount(), elapsed, drift);
+	}
+
+	/** @return the integrator that the system uses for simulate() */
+	private static Integrator integratorOf(DynamicalSystem sys){
+		if (sys instanceof MechanicalSystem){
+			return ((MechanicalSystem) sys).getIntegrator();
+		} else if (sys instanceof PendulumEnsemble){
+			return ((PendulumEnsemble) sys).getIntegrator();
+		} else if (sys instanceof DoublePendulumEnsemble){
+			return ((DoublePendulumEnsemble) sys).getIntegrator();
+		}
+		return new Integrator(sys);
+	}
+
+	/** @return an ensemble of pendulums with a spread of initial angles */
+	private static PendulumEnsemble ensemble(int n){
+		PendulumEnsemble sys = new PendulumEnsemble(n);
+		for (int i=0; i<n; i++){
+			sys.setInitialState(i, 3.0*i/n, 0.0);
+		}
+		return sys;
+	}
+
+	/** @return an ensemble of double pendulums with a spread of initial angles */
+	private static DoublePendulumEnsemble doubleEnsemble(int n){
+		DoublePendulumEnsemble sys = new DoublePendulumEnsemble(n);
+		for (int i=0; i<n; i++){
+			sys.setInitialState(i, 3.0*i/n, 0.5, 0.0, 0.0);
+		}
+		return sys;
+	}
+
+	/** @return bytes allocated so far by this thread, or -1 if unknown */
+	private static long allocatedBytes(){
+		if (THREADS instanceof com.sun.management.ThreadMXBean){
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) THREADS;
+			if (sunBean.isThreadAllocatedMemorySupported()){
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,77 @@
+package examples;
+
+import java.awt.image.BufferedImage;
+
+import mpk_fractal.MandelbrotRenderer;
+import mpk_fractal.MandelbrotRenderer.Job;
+import mpk_fractal.MandelbrotRenderer.View;
+
+/** Renders a few views of the Mandelbrot set three ways: plain, with the
+ * interior checks of EscapeTime (cardioid and bulb test, and cycle
+ * detection), and with boundary tracing on top of them. Prints the
+ * iterations run per frame, the time, and how many pixels look different
+ * from the plain frame. The arguments are the width and height of
+ * the frame (default 1920 x 1080) and maxIter (default 1000). */
+public class MandelbrotBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int w = (args.length > 1) ? Integer.parseInt(args[0]) : 1920;
+		int h = (args.length > 1) ? Integer.parseInt(args[1]) : 1080;
+		int maxIter = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+
+		String[] names = {"Whole set", "Seahorse valley", "Period-3 bulb", "Mini-brot", "Outside"};
+		double[][] views = {  // centerX, centerY, scale (as a multiple of the height)
+				{-0.6, 0.0, 0.35},
+				{-0.745, 0.11, 40.0},
+				{-0.12, 0.75, 4.0},
+				{-1.7687, 0.0017, 500.0},
+				{0.4, 0.6, 20.0}};
+
+		MandelbrotRenderer renderer = new MandelbrotRenderer();
+		run(renderer, new View(-0.6, 0.0, 0.35*h, w, h, maxIter));  // Warm up
+
+		System.out.printf("%d x %d, maxIter = %d\n", w, h, maxIter);
+		String[] modes = {"plain", "checks", "trace"};
+		System.out.printf("%-16s %-7s %12s %8s %8s %10s\n", "view", "mode", "iterations", "saved", "ms", "differ");
+		for (int k=0; k<views.length; k++){
+			View view = new View(views[k][0], views[k][1], views[k][2]*h, w, h, maxIter);
+			Job plain = null;
+			for (int m=0; m<modes.length; m++){
+				renderer.interiorChecks = m >= 1;
+				renderer.boundaryTrace = m >= 2;
+				long start = System.nanoTime();
+				Job job = run(renderer, view);
+				double ms = 1e-6*(System.nanoTime() - start);
+				if (m == 0) plain = job;
+
+				long a = plain.getIterationCount(), b = job.getIterationCount();
+				System.out.printf("%-16s %-7s %12d %7.1f%% %8.0f %10d\n", (m == 0) ? names[k] : "", modes[m], b,
+						100.0*(a - b)/a, ms, countDifferent(plain.getImage(), job.getImage()));
+			}
+		}
+		renderer.shutdown();
+	}
+
+	private static Job run(MandelbrotRenderer renderer, View view) throws InterruptedException {
+		Job job = renderer.render(view, null);
+		job.await();
+		return job;
+	}
+
+	/** @return number of pixels whose colors differ visibly (by more than
+	 * a few levels, since the traced fill interpolates its colors) */
+	private static int countDifferent(BufferedImage a, BufferedImage b){
+		int n = 0;
+		for (int j=0; j<a.getHeight(); j++){
+			for (int i=0; i<a.getWidth(); i++){
+				int p = a.getRGB(i, j), q = b.getRGB(i, j), d = 0;
+				for (int shift=0; shift<24; shift+=8){
+					d += Math.abs(((p >> shift) & 0xFF) - ((q >> shift) & 0xFF));
+				}
+				if (d > 8) n++;
+			}
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,145 @@
+package examples;
+
+import java.awt.BorderLayout;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+
+import mpk_dsc.AnimatedSystem;
+import mpk_dsc.Animator;
+import mpk_dsc.NBodySystem;
+
+/** A rotating disk of bodies around a heavy center, with Barnes-Hut gravity
+ * and the SYM2 integrator. The number of bodies is the first argument
+ * (default 100000). Space pauses, escape restarts, and the up and down
+ * arrows change the opening angle.
+ *
+ * Run with "check" as the argument to compare the tree against the exact
+ * sum for a range of opening angles instead. */
+public class NBodyDemo extends JPanel implements KeyListener, AnimatedSystem {
+
+	private static final long serialVersionUID = 1L;
+
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("check")){
+			check(20000);
+			return;
+		}
+		int n = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+		JFrame frame = new JFrame("Barnes-Hut N-Body");
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.setLayout(new BorderLayout());
+
+		NBodyDemo gui = new NBodyDemo(n);
+		frame.add(gui, BorderLayout.CENTER);
+
+		frame.setSize(800, 800);
+		frame.setVisible(true);
+
+		Animator animator = new Animator(gui);
+		animator.run();
+	}
+
+	private boolean isPaused = false;
+	private NBodySystem system;
+	private double timeRate;
+	private long frames = 0;
+	private double evalTime = 0.0;  // (s) spent in simulate(), since the last report
+
+	public NBodyDemo(int n) {
+		setFocusable(true);
+		addKeyListener(this);
+		system = new NBodySystem(n);
+		timeRate = 0.06;  // One step of 2 ms per frame
+
+		setLayout(new BorderLayout());
+		add(system.plot, BorderLayout.CENTER);
+		setVisible(true);
+	}
+
+	@Override
+	public void simulate(double dt) {
+		long start = System.nanoTime();
+		system.simulate(dt);
+		evalTime += 1e-9*(System.nanoTime() - start);
+		if (++frames % 30 == 0){
+			System.out.printf("theta = %.2f, %.1f ms per frame, %d tree nodes\n",
+					system.getTheta(), 1e3*evalTime/30, system.getNodeCount());
+			evalTime = 0.0;
+		}
+	}
+
+	@Override
+	public void updateGraphics() {
+		system.plot.repaint();
+	}
+
+	@Override
+	public double getTimeRate() {
+		return timeRate;
+	}
+
+	@Override
+	public boolean isPaused() {
+		return isPaused;
+	}
+
+	@Override
+	public void keyPressed(KeyEvent e) {
+		switch(e.getKeyCode()) {
+		case KeyEvent.VK_SPACE:  // Toggle simulation pause
+			isPaused = !isPaused;
+			break;
+		case KeyEvent.VK_ESCAPE:  // Restart the simulation
+			system.reset();
+			break;
+		case KeyEvent.VK_UP:
+			system.setTheta(Math.min(1.2, system.getTheta() + 0.1));
+			break;
+		case KeyEvent.VK_DOWN:
+			system.setTheta(Math.max(0.1, system.getTheta() - 0.1));
+			break;
+		default:
+		}
+	}
+	@Override
+	public void keyReleased(KeyEvent e) {}
+	@Override
+	public void keyTyped(KeyEvent e) {}
+
+	/** Print the error of the tree against the exact sum, and the time taken */
+	private static void check(int n){
+		NBodySystem sys = new NBodySystem(n, true);
+		double[] p = sys.getPos(), v = sys.getVel();
+		double[] exact = new double[2*n], tree = new double[2*n];
+
+		sys.exact = true;
+		long start = System.nanoTime();
+		sys.dynamics(p, v, exact);
+		System.out.printf("Exact sum, %d bodies: %.1f ms\n", n, 1e-6*(System.nanoTime() - start));
+		sys.exact = false;
+
+		System.out.printf("%8s %16s %16s %12s\n", "theta", "rms rel error", "max rel error", "ms / eval");
+		for (double theta : new double[] {0.3, 0.5, 0.7, 1.0}){
+			sys.setTheta(theta);
+			sys.dynamics(p, v, tree);  // Warm up
+			start = System.nanoTime();
+			sys.dynamics(p, v, tree);
+			double ms = 1e-6*(System.nanoTime() - start);
+			double sumErr = 0.0, sumAcc = 0.0, maxErr = 0.0;
+			for (int i=1; i<n; i++){  // The center body feels almost no net force
+				double ex = tree[i] - exact[i], ey = tree[n+i] - exact[n+i];
+				double err2 = ex*ex + ey*ey;
+				double acc2 = exact[i]*exact[i] + exact[n+i]*exact[n+i];
+				sumErr += err2;
+				sumAcc += acc2;
+				maxErr = Math.max(maxErr, Math.sqrt(err2/acc2));
+			}
+			System.out.printf("%8.2f %16.3e %16.3e %12.1f\n", theta, Math.sqrt(sumErr/sumAcc), maxErr, ms);
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+package examples;
+
+import mpk_dsc.PendulumChain;
+
+/** Simulates pendulum chains of increasing length and prints the cost of
+ * each call to dynamics(), which should grow linearly with the number of
+ * links, along with the energy drift as a check on the accelerations. */
+public class PendulumChainDemo {
+
+	public static void main(String[] args) {
+
+		int[] nLinks = {10, 50, 100, 200, 500};
+		double duration = 2.0;
+		double dt = 0.005;
+
+		PendulumChain warmUp = new PendulumChain(100);  // Let the JIT compile dynamics()
+		warmUp.setMaxTimeStep(dt);
+		warmUp.simulate(10.0);
+
+		System.out.printf("%8s %16s %16s %16s\n", "Links", "us / dynamics", "ns / link", "Energy drift");
+		for (int n : nLinks){
+			PendulumChain chain = new PendulumChain(n);
+			chain.setMaxTimeStep(dt);
+			double e0 = chain.getEnergy()[0];
+			long start = System.nanoTime();
+			chain.simulate(duration);
+			double elapsed = 1e-9*(System.nanoTime() - start);
+			double drift = (chain.getEnergy()[0] - e0)/e0;
+
+			double perCall = elapsed/(4*Math.ceil(duration/dt));  // RK4
+			System.out.printf("%8d %16.2f %16.1f %16.3e\n", n, 1e6*perCall, 1e9*perCall/n, drift);
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package examples;
+
+import java.awt.BorderLayout;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+
+import mpk_dsc.AnimatedSystem;
+import mpk_dsc.Animator;
+import mpk_dsc.Surface;
+import mpk_dsc.SurfaceParticles;
+
+/** Particles sliding on a surface loaded from a file. The arguments are the
+ * surface file (default examples/surface.txt) and the number of particles
+ * (default 100000). Space pauses, escape restarts, and the up and down
+ * arrows change the damping.
+ */
+public class SurfaceParticlesDemo extends JPanel implements KeyListener, AnimatedSystem {
+
+	private static final long serialVersionUID = 1L;
+
+	public static void main(String[] args) throws FileNotFoundException {
+		String path = (args.length > 0) ? args[0] : "examples/surface.txt";
+		int n = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+		Surface surface = new Surface(new File(path));
+
+		JFrame frame = new JFrame("Particles on a Surface");
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.setLayout(new BorderLayout());
+
+		SurfaceParticlesDemo gui = new SurfaceParticlesDemo(surface, n);
+		frame.add(gui, BorderLayout.CENTER);
+
+		frame.setSize(800, 800);
+		frame.setVisible(true);
+
+		Animator animator = new Animator(gui);
+		animator.run();
+	}
+
+	private boolean isPaused = false;
+	private SurfaceParticles system;
+	private double damping = 0.2;
+	private long frames = 0;
+	private double evalTime = 0.0;  // (s) spent in simulate(), since the last report
+
+	public SurfaceParticlesDemo(Surface surface, int n) {
+		setFocusable(true);
+		addKeyListener(this);
+		system = new SurfaceParticles(surface, n);
+		system.setDamping(damping);
+
+		setLayout(new BorderLayout());
+		add(system.plot, BorderLayout.CENTER);
+		setVisible(true);
+	}
+
+	@Override
+	public void simulate(double dt) {
+		long start = System.nanoTime();
+		system.simulate(dt);
+		evalTime += 1e-9*(System.nanoTime() - start);
+		if (++frames % 60 == 0){
+			System.out.printf("damping = %.2f, %.1f ms per frame, energy = %.1f\n",
+					damping, 1e3*evalTime/60, system.getEnergy()[0]);
+			evalTime = 0.0;
+		}
+	}
+
+	@Override
+	public void updateGraphics() {
+		system.plot.repaint();
+	}
+
+	@Override
+	public double getTimeRate() {
+		return 1.0;
+	}
+
+	@Override
+	public boolean isPaused() {
+		return isPaused;
+	}
+
+	@Override
+	public void keyPressed(KeyEvent e) {
+		switch(e.getKeyCode()) {
+		case KeyEvent.VK_SPACE:  // Toggle simulation pause
+			isPaused = !isPaused;
+			break;
+		case KeyEvent.VK_ESCAPE:  // Restart the simulation
+			system.reset();
+			break;
+		case KeyEvent.VK_UP:
+			damping = Math.min(5.0, damping + 0.1);
+			system.setDamping(damping);
+			break;
+		case KeyEvent.VK_DOWN:
+			damping = Math.max(0.0, damping - 0.1);
+			system.setDamping(damping);
+			break;
+		default:
+		}
+	}
+	@Override
+	public void keyReleased(KeyEvent e) {}
+	@Override
+	public void keyTyped(KeyEvent e) {}
+
+}
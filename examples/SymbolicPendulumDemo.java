@@ -0,0 +1,140 @@
+package examples;
+
+import mpk_dsc.DoublePendulum;
+import mpk_dsc.Expr;
+import mpk_dsc.SymbolicModel;
+import mpk_dsc.SymbolicSystem;
+
+/** Builds the double pendulum equations of motion with SymbolicModel, in
+ * exactly the form that Matlab generated for DoublePendulum.dynamics
+ * (duplicate temporaries, zero external forces and all). The model folds
+ * and shares the repeated terms, and the compiled system is then checked
+ * against the hand-written one and timed. Everything is printed to the
+ * console. */
+public class SymbolicPendulumDemo {
+
+	public static void main(String[] args) {
+
+		SymbolicModel model = doublePendulum();
+		System.out.println("Operations per call: " + model.countOperations());
+		System.out.println("Trig calls per call: " + model.countTrig());
+
+		SymbolicSystem sys = model.compile();
+		System.out.println("Generated bytecode:  " + sys.isGenerated());
+
+		/// Compare the accelerations with the hand-written version
+		DoublePendulum ref = new DoublePendulum(true);
+		double[] p = new double[2], v = new double[2];
+		double[] a1 = new double[2], a2 = new double[2];
+		double err = 0;
+		java.util.Random rand = new java.util.Random(1);
+		for (int i=0; i<1000; i++){
+			for (int j=0; j<2; j++){
+				p[j] = 2*Math.PI*(rand.nextDouble() - 0.5);
+				v[j] = 10*(rand.nextDouble() - 0.5);
+			}
+			ref.dynamics(p, v, a1);
+			sys.dynamics(p, v, a2);
+			for (int j=0; j<2; j++){
+				err = Math.max(err, Math.abs(a1[j]-a2[j])/(1.0 + Math.abs(a1[j])));
+			}
+		}
+		System.out.printf("Largest difference:  %.3e\n", err);
+
+		/// Time both versions
+		int nCall = 20000000;
+		for (int rep=0; rep<2; rep++){  // First pass warms up the JIT
+			long start = System.nanoTime();
+			double sum = 0;
+			for (int i=0; i<nCall; i++){
+				p[0] = 1e-7*i;
+				ref.dynamics(p, v, a1);
+				sum += a1[0];
+			}
+			double tRef = 1e-9*(System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int i=0; i<nCall; i++){
+				p[0] = 1e-7*i;
+				sys.dynamics(p, v, a2);
+				sum += a2[0];
+			}
+			double tSym = 1e-9*(System.nanoTime() - start);
+			if (rep == 1){
+				System.out.printf("Hand-written: %8.1f ns/call\n", 1e9*tRef/nCall);
+				System.out.printf("Symbolic:     %8.1f ns/call   (checksum %.3e)\n", 1e9*tSym/nCall, sum);
+			}
+		}
+	}
+
+	/** @return the double pendulum model, as generated by Matlab */
+	public static SymbolicModel doublePendulum(){
+		SymbolicModel model = new SymbolicModel(2);
+		Expr th = model.pos(0), phi = model.pos(1);
+		Expr Dth = model.vel(0), Dphi = model.vel(1);
+		Expr m1 = model.param("m1", 1.0);
+		Expr m2 = model.param("m2", 1.0);
+		Expr g = model.param("g", 9.81);
+		Expr l = model.param("l", 1.0);
+		Expr damping = model.param("damping", 0.0);
+
+		// Model viscous damping as an external moment on each joint
+		Expr M1 = Dth.neg().mul(damping);
+		Expr M2 = Dphi.sub(Dth).neg().mul(damping);
+
+		// For now, no external force acts on the joints
+		Expr F1_x = model.constant(0), F1_y = model.constant(0);
+		Expr F2_x = model.constant(0), F2_y = model.constant(0);
+
+		Expr tmp2 = phi.mul(2.0);
+		Expr tmp3 = tmp2.sub(th);
+		Expr tmp4 = th.cos();
+		Expr tmp5 = th.sin();
+		Expr tmp6 = phi.sub(th);
+		Expr tmp7 = l.mul(l);
+		Expr tmp8 = tmp2.sub(th.mul(2.0));
+		Expr tmp9 = tmp3.cos();
+		Expr DDth = model.constant(1.0).div(l.mul(l)).mul(
+				M1.mul(2.0).sub(M2.mul(2.0)).sub(M2.mul(tmp6.cos()).mul(2.0))
+				.sub(F1_x.mul(l).mul(tmp5).mul(2.0)).add(F1_y.mul(l).mul(tmp4).mul(2.0))
+				.sub(F2_x.mul(l).mul(tmp5)).add(F2_y.mul(l).mul(tmp4))
+				.sub(F2_y.mul(l).mul(tmp9)).add(F2_x.mul(l).mul(tmp3.sin()))
+				.add(Dphi.square().mul(m2).mul(tmp7).mul(tmp6.sin()).mul(2.0))
+				.add(Dth.square().mul(m2).mul(tmp7).mul(tmp8.sin()))
+				.sub(l.mul(g).mul(m1).mul(tmp4).mul(2.0)).sub(l.mul(g).mul(m2).mul(tmp4))
+				.add(l.mul(g).mul(m2).mul(tmp9)))
+				.div(m1.mul(2.0).add(m2).sub(m2.mul(tmp8.cos())));
+
+		Expr tmp10 = phi.sub(th);
+		Expr tmp11 = tmp10.cos();
+		Expr tmp12 = phi.cos();
+		Expr tmp13 = phi.sin();
+		Expr tmp14 = th.mul(2.0);
+		Expr tmp15 = phi.sub(tmp14);
+		Expr tmp16 = tmp15.cos();
+		Expr tmp17 = tmp15.sin();
+		Expr tmp18 = m2.mul(m2);
+		Expr tmp19 = l.mul(l);
+		Expr tmp20 = phi.mul(2.0);
+		Expr tmp21 = Dth.mul(Dth);
+		Expr tmp22 = tmp10.sin();
+		Expr tmp23 = tmp14.neg().add(tmp20);
+		Expr DDphi = model.constant(1.0).div(l.mul(l)).mul(
+				M2.mul(m1).mul(-2.0).sub(M2.mul(m2).mul(2.0)).add(M1.mul(m2).mul(tmp11).mul(2.0))
+				.sub(M2.mul(m2).mul(tmp11).mul(2.0)).add(tmp18.mul(tmp19).mul(tmp21).mul(tmp22).mul(2.0))
+				.sub(F1_x.mul(l).mul(m2).mul(tmp13)).add(F1_y.mul(l).mul(m2).mul(tmp12))
+				.add(F2_x.mul(l).mul(m1).mul(tmp13).mul(2.0)).sub(F2_y.mul(l).mul(m1).mul(tmp12).mul(2.0))
+				.add(F2_x.mul(l).mul(m2).mul(tmp13)).sub(F2_y.mul(l).mul(m2).mul(tmp12))
+				.add(F1_y.mul(l).mul(m2).mul(tmp16)).add(F1_x.mul(l).mul(m2).mul(tmp17))
+				.add(F2_y.mul(l).mul(m2).mul(tmp16)).add(F2_x.mul(l).mul(m2).mul(tmp17))
+				.add(Dphi.square().mul(tmp18).mul(tmp19).mul(tmp23.sin()))
+				.add(l.mul(g).mul(tmp12).mul(tmp18)).sub(l.mul(g).mul(tmp16).mul(tmp18))
+				.add(l.mul(g).mul(m1).mul(m2).mul(tmp12)).sub(l.mul(g).mul(m1).mul(m2).mul(tmp16))
+				.add(m1.mul(m2).mul(tmp19).mul(tmp21).mul(tmp22).mul(2.0)))
+				.div(m2.mul(m1.mul(2.0).add(m2).sub(m2.mul(tmp23.cos())))).neg();
+
+		model.setAcceleration(0, DDth);
+		model.setAcceleration(1, DDphi);
+		return model;
+	}
+
+}
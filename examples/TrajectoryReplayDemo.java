@@ -0,0 +1,111 @@
+package examples;
+
+import java.awt.GridLayout;
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+
+import mpk_dsc.AnimatedSystem;
+import mpk_dsc.Animator;
+import mpk_dsc.DoublePendulum;
+import mpk_dsc.TrajectoryRecorder;
+import mpk_dsc.TrajectoryReplayer;
+import mpk_gui.RingBuffer;
+import mpk_gui.ScopePanel;
+
+/** Records a double pendulum to a file without any graphics, and then plays
+ * the recording back through the usual plotter and scopes. */
+public class TrajectoryReplayDemo extends JPanel implements AnimatedSystem {
+
+	/** Eclipse auto-generated magic */
+	private static final long serialVersionUID = -3190542238176404587L;
+
+	public static void main(String[] args) throws IOException {
+
+		/// Record the simulation, as fast as it will run
+		File file = File.createTempFile("doublePendulum", ".traj");
+		file.deleteOnExit();
+		double duration = 60.0;
+		double sampleTime = 0.005;
+		DoublePendulum sim = new DoublePendulum(true);
+		sim.reset();
+		TrajectoryRecorder recorder = new TrajectoryRecorder(file, sim.getPos().length);
+		recorder.record(sim);
+		long start = System.nanoTime();
+		while (sim.getTime() < duration){
+			sim.simulate(sampleTime);
+			recorder.record(sim);
+		}
+		recorder.close();
+		System.out.printf("Recorded %d samples in %.3f s\n", recorder.size(),
+				1e-9*(System.nanoTime()-start));
+
+		/// Play it back
+		JFrame frame = new JFrame("Double Pendulum Replay");
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		TrajectoryReplayDemo gui = new TrajectoryReplayDemo(new TrajectoryReplayer(file));
+		frame.add(gui);
+		frame.setSize (1200, 600);  //  (width, height)
+		frame.setVisible(true);
+
+		Animator animator = new Animator(gui);
+		animator.run();
+	}
+
+	private TrajectoryReplayer replayer;
+	private DoublePendulum doublependulum;  // Only used to hold the state for the plotter
+	private boolean isFinished = false;
+
+	private int nBuffer = 200;
+	private RingBuffer t;
+	private RingBuffer th;
+	private ScopePanel scopeAngle;
+
+	public TrajectoryReplayDemo(TrajectoryReplayer replayer) {
+		this.replayer = replayer;
+		doublependulum = new DoublePendulum();
+		replayer.apply(0, doublependulum);
+
+		t = new RingBuffer(nBuffer);
+		th = new RingBuffer(nBuffer);
+
+		scopeAngle = new ScopePanel(t,th);
+		scopeAngle.xDataIsMonotonic = true;
+		scopeAngle.setAxisExtentsY(-15,15);
+		scopeAngle.xLabel = "Time (s)";
+		scopeAngle.yLabel = "Angle 1 (rad)";
+		scopeAngle.title = "Replay";
+		scopeAngle.lineWidth = 2;
+
+		setLayout(new GridLayout(1,2));
+		add(scopeAngle);
+		add(doublependulum.plot);
+		setVisible(true);
+	}
+
+	@Override
+	public void simulate(double duration) {
+		isFinished = !replayer.advance(duration, doublependulum);
+	}
+
+	@Override
+	public void updateGraphics() {
+		t.put(doublependulum.getTime());
+		th.put(doublependulum.getPos()[0]);
+		scopeAngle.update();
+		doublependulum.plot.repaint();
+	}
+
+	@Override
+	public double getTimeRate() {
+		return 1.0;
+	}
+
+	@Override
+	public boolean isPaused() {
+		return isFinished;
+	}
+
+}
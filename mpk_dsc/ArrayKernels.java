@@ -0,0 +1,43 @@
+package mpk_dsc;
+
+/** Element-wise operations on flat arrays, used by the integrator stage 
+ * updates and by the ensemble systems. There are two implementations: a 
+ * plain scalar one that always works, and one that uses the Java Vector API
+ * (jdk.incubator.vector) to process several array elements per instruction.
+ * The vector version lives in the separate optional/ source tree, and is
+ * only used if it was compiled and the module is present at run time. */
+public interface ArrayKernels {
+
+	/** out = x + a*y
+	 * @param n = number of elements to process */
+	public void axpy(double[] x, double a, double[] y, double[] out, int n);
+	
+	/** Final update of 4th-order Runge-Kutta:
+	 * x = x + (h/6)*(k1 + 2*k2 + 2*k3 + k4)
+	 * @param n = number of elements to process */
+	public void rk4(double[] x, double h, double[] k1, double[] k2, 
+			double[] k3, double[] k4, int n);
+	
+	/** Dynamics of many independent pendulums:
+	 * out = bias - damp*w - grav*sin(th)
+	 * @param n = number of elements to process */
+	public void pendulum(double[] th, double[] w, double[] out, int n,
+			double bias, double damp, double grav);
+	
+	/** @return the vector implementation if the Vector API is available, 
+	 * otherwise the scalar implementation */
+	public static ArrayKernels create(){
+		try {
+			Class<?> c = Class.forName("mpk_dsc.VectorKernels");
+			return (ArrayKernels) c.getDeclaredConstructor().newInstance();
+		} catch (LinkageError | ReflectiveOperationException e) {
+			return scalar();
+		}
+	}
+	
+	/** @return the scalar implementation, which is always available */
+	public static ArrayKernels scalar(){
+		return new ScalarKernels();
+	}
+	
+}
@@ -0,0 +1,260 @@
+package mpk_dsc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/** Runs simulations without any graphics, for use on machines with no
+ * display. The systems are created with their headless constructors, so
+ * none of the mpk_gui classes are loaded. Run with:
+ *
+ * java mpk_dsc.BatchRunner jobs.txt [nThreads]
+ *
+ * Each line of the job file describes one simulation as key=value pairs,
+ * separated by spaces. Blank lines and lines starting with # are skipped:
+ *
+ * system=double method=RK4 dt=0.01 duration=60 damping=0.1 rate=100 out=run1.csv
+ *
+ *   system   = pendulum, double, or chain (required)
+ *   out      = output file (required). Files ending in .csv are written as
+ *              text, with a header line. Anything else is written in the
+ *              binary format of TrajectoryRecorder.
+ *   method   = any Integrator.Method (default: the system's own)
+ *   dt       = maximum time step (s) (default: the system's own)
+ *   duration = simulated time (s) (default 10)
+ *   damping  = (default 0)
+ *   rate     = samples per second (default 100). Each sample interval is
+ *              split into equal steps no longer than dt.
+ *   pos, vel = initial state, comma separated (default: the system's own)
+ *   links    = number of links of a chain (default 10)
+ *
+ * Jobs run in parallel on a fixed pool of threads, and each one streams its
+ * samples straight to its own file.
+ * @author matt
+ */
+public class BatchRunner {
+
+	/** One simulation, as read from a line of the job file */
+	public static class Job {
+		public String system;
+		public String out;
+		public Integrator.Method method = null;  // null to keep the default
+		public double timeStep = 0.0;            // 0 to keep the default
+		public double duration = 10.0;
+		public double damping = 0.0;
+		public double sampleRate = 100.0;
+		public double[] pos = null, vel = null;  // null to keep the default
+		public int links = 10;
+
+		/** Parse a line of the job file
+		 * @throws IllegalArgumentException if the line is not a valid job */
+		public static Job parse(String line){
+			Job job = new Job();
+			for (String token : line.trim().split("\\s+")){
+				int eq = token.indexOf('=');
+				if (eq < 0){
+					throw new IllegalArgumentException("Expected key=value, got: " + token);
+				}
+				String key = token.substring(0, eq).toLowerCase();
+				String value = token.substring(eq+1);
+				switch (key) {
+				case "system": job.system = value.toLowerCase(); break;
+				case "out": job.out = value; break;
+				case "method": job.method = Integrator.Method.valueOf(value.toUpperCase()); break;
+				case "dt": job.timeStep = Double.parseDouble(value); break;
+				case "duration": job.duration = Double.parseDouble(value); break;
+				case "damping": job.damping = Double.parseDouble(value); break;
+				case "rate": job.sampleRate = Double.parseDouble(value); break;
+				case "pos": job.pos = parseVector(value); break;
+				case "vel": job.vel = parseVector(value); break;
+				case "links": job.links = Integer.parseInt(value); break;
+				default:
+					throw new IllegalArgumentException("Unknown key: " + key);
+				}
+			}
+			if (job.system == null || job.out == null){
+				throw new IllegalArgumentException("Every job needs a system and an out file");
+			}
+			if (job.sampleRate <= 0.0 || job.duration < 0.0 || job.timeStep < 0.0){
+				throw new IllegalArgumentException("Rate must be positive, duration and dt must not be negative");
+			}
+			return job;
+		}
+
+		private static double[] parseVector(String value){
+			String[] parts = value.split(",");
+			double[] x = new double[parts.length];
+			for (int i=0; i<parts.length; i++){
+				x[i] = Double.parseDouble(parts[i]);
+			}
+			return x;
+		}
+
+		/** @return a new headless system of the requested type */
+		MechanicalSystem createSystem(){
+			switch (system) {
+			case "pendulum": return new Pendulum(true);
+			case "double": return new DoublePendulum(true);
+			case "chain": return new PendulumChain(links);
+			default:
+				throw new IllegalArgumentException("Unknown system: " + system);
+			}
+		}
+
+		@Override
+		public String toString(){
+			return "system=" + system + " out=" + out;
+		}
+	}
+
+	/** Read every job in a file
+	 * @throws IOException
+	 * @throws IllegalArgumentException with the line number, if a line is
+	 * not a valid job */
+	public static List<Job> readJobs(File file) throws IOException {
+		ArrayList<Job> jobs = new ArrayList<Job>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null){
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				try {
+					jobs.add(Job.parse(line));
+				} catch (IllegalArgumentException e){
+					throw new IllegalArgumentException(file + ", line " + lineNumber + ": " + e.getMessage(), e);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return jobs;
+	}
+
+	/** Run a single job, writing its samples as they are produced
+	 * @return number of samples written
+	 * @throws IOException */
+	public static long run(Job job) throws IOException {
+		MechanicalSystem sys = job.createSystem();
+		sys.reset();
+		if (job.method != null) sys.getIntegrator().method = job.method;
+		if (job.timeStep > 0.0) sys.setMaxTimeStep(job.timeStep);
+		sys.setDamping(job.damping);
+		if (job.pos != null) sys.setPos(checkLength(job.pos, sys.getPos().length));
+		if (job.vel != null) sys.setVel(checkLength(job.vel, sys.getVel().length));
+
+		double interval = 1.0/job.sampleRate;
+		long nSamples = (long) Math.floor(job.duration*job.sampleRate + 1e-9);
+		File file = new File(job.out);
+		if (job.out.toLowerCase().endsWith(".csv")){
+			CsvWriter writer = new CsvWriter(file, sys.getPos().length);
+			try {
+				writer.write(sys);
+				for (long k=0; k<nSamples; k++){
+					sys.simulate(interval);
+					writer.write(sys);
+				}
+			} finally {
+				writer.close();
+			}
+		} else {
+			int chunk = (int) Math.min(nSamples + 1, 1 << 16);  // Short runs fit in one small chunk
+			TrajectoryRecorder recorder = new TrajectoryRecorder(file, sys.getPos().length, chunk);
+			try {
+				recorder.record(sys);
+				for (long k=0; k<nSamples; k++){
+					sys.simulate(interval);
+					recorder.record(sys);
+				}
+			} finally {
+				recorder.close();
+			}
+		}
+		return nSamples + 1;
+	}
+
+	private static double[] checkLength(double[] x, int n){
+		if (x.length != n){
+			throw new IllegalArgumentException("Expected " + n + " values in the initial state, got " + x.length);
+		}
+		return x;
+	}
+
+	/** Run every job on a fixed pool of threads. A job that fails is
+	 * reported, and does not stop the others.
+	 * @return number of jobs that failed */
+	public static int runAll(List<Job> jobs, int nThreads) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		ArrayList<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (final Job job : jobs){
+			results.add(pool.submit(() -> run(job)));
+		}
+		pool.shutdown();
+
+		int nFailed = 0;
+		for (int i=0; i<jobs.size(); i++){
+			try {
+				long n = results.get(i).get();
+				System.out.println("Finished " + jobs.get(i) + ": " + n + " samples");
+			} catch (ExecutionException e){
+				nFailed++;
+				System.out.println("WARNING: " + jobs.get(i) + " failed: " + e.getCause());
+			}
+		}
+		return nFailed;
+	}
+
+	/** Entry point for running a job file from the command line */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1){
+			System.out.println("Usage: java mpk_dsc.BatchRunner jobs.txt [nThreads]");
+			System.exit(2);
+		}
+		int nThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		List<Job> jobs = readJobs(new File(args[0]));
+		long start = System.nanoTime();
+		int nFailed = runAll(jobs, nThreads);
+		System.out.printf("%d jobs, %d failed, %.2f s\n", jobs.size(), nFailed, 1e-9*(System.nanoTime() - start));
+		System.exit(nFailed == 0 ? 0 : 1);
+	}
+
+	/** Writes samples as lines of text: t,p0,p1,...,v0,v1,... */
+	private static class CsvWriter {
+		private BufferedWriter writer;
+		private StringBuilder line = new StringBuilder(128);
+
+		CsvWriter(File file, int dim) throws IOException {
+			writer = new BufferedWriter(new FileWriter(file), 1 << 16);
+			line.append("t");
+			for (int i=0; i<dim; i++) line.append(",p").append(i);
+			for (int i=0; i<dim; i++) line.append(",v").append(i);
+			writer.write(line.toString());
+			writer.newLine();
+		}
+
+		void write(DynamicalSystem sys) throws IOException {
+			line.setLength(0);
+			line.append(sys.getTime());
+			for (double x : sys.getPos()) line.append(',').append(x);
+			for (double x : sys.getVel()) line.append(',').append(x);
+			writer.append(line);
+			writer.newLine();
+		}
+
+		void close() throws IOException {
+			writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,490 @@
+package mpk_dsc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Maps the behavior of the double pendulum over the plane of initial
+ * angles (th, phi), starting from rest. One system is integrated per pixel,
+ * either until one of the links flips over the top (FLIP_TIME), or for the
+ * full time limit while the tangent-linear system is integrated alongside
+ * to estimate the largest Lyapunov exponent (LYAPUNOV). Both use the RK4
+ * method of the Integrator, and the time of a flip is located within the
+ * step by its event detection.
+ *
+ * The plane is split into square tiles of TILE_SIZE x TILE_SIZE samples.
+ * The sample spacing is a power of two (rad), chosen to be close to the
+ * pixel spacing of the view, so that tiles line up between views: panning,
+ * or zooming by less than a factor of two, reuses the cached tiles, and only
+ * the new tiles are computed. Tiles are computed on a thread pool, starting
+ * from the center of the view, and a view that is no longer wanted can be
+ * cancelled.
+ *
+ * The result is a float grid, one value per pixel, row by row from the top
+ * of the view (like Mandelbrot, phi increases upwards):
+ *   FLIP_TIME: time (s) of the first flip, or +Infinity if none occurred
+ *   LYAPUNOV: estimated largest Lyapunov exponent (1/s)
+ *   NaN: not computed yet
+ * @author matt
+ */
+public class ChaosMap {
+
+	/** What is stored for each initial condition */
+	public enum Quantity {FLIP_TIME, LYAPUNOV}
+
+	/** Number of samples along each edge of a tile */
+	public static final int TILE_SIZE = 32;
+
+	/** Angle of a link that hangs straight down, in DoublePendulum coordinates */
+	private static final double DOWN = -0.5*Math.PI;
+
+	/** Step used for the directional derivative of the dynamics */
+	private static final double EPS = 1e-7;
+
+	private Quantity quantity;
+	private volatile double maxTime = 20.0;   // (s) time limit of each integration
+	private volatile double timeStep = 0.01;  // (s) fixed RK4 step
+	private volatile double damping = 0.0;
+	private int maxCachedTiles = 4096;
+
+	/** Counts the changes of settings. A tile is only cached if the settings
+	 * did not change while it was computed. */
+	private volatile int generation = 0;
+
+	private ForkJoinPool pool;
+	private LinkedHashMap<TileKey, float[]> cache;
+
+	/** Create a new map, computed on a pool with one thread per processor
+	 * @param quantity = what to compute for each initial condition */
+	public ChaosMap(Quantity quantity){
+		this(quantity, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Create a new map
+	 * @param quantity = what to compute for each initial condition
+	 * @param nThreads = number of threads used to compute tiles */
+	public ChaosMap(Quantity quantity, int nThreads){
+		this.quantity = quantity;
+		pool = new ForkJoinPool(nThreads);
+		cache = new LinkedHashMap<TileKey, float[]>(256, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TileKey, float[]> eldest){
+				return size() > maxCachedTiles;
+			}
+		};
+	}
+
+	/// Changing a setting clears the cache, so change them between jobs
+
+	/** Set the time limit of each integration. Clears the cache. */
+	public void setMaxTime(double t){
+		maxTime = t;
+		clearCache();
+	}
+
+	/** Set the fixed time step of the integrator. Clears the cache. */
+	public void setTimeStep(double dt){
+		timeStep = dt;
+		clearCache();
+	}
+
+	/** Set the damping of the pendulum. Clears the cache. */
+	public void setDamping(double c){
+		damping = c;
+		clearCache();
+	}
+
+	/** Set the largest number of tiles that are kept. The least recently
+	 * used tiles are dropped first. */
+	public void setMaxCachedTiles(int n){
+		synchronized (cache){
+			maxCachedTiles = n;
+		}
+	}
+
+	/** @return the time limit of each integration */
+	public double getMaxTime(){
+		return maxTime;
+	}
+
+	/** @return what is computed for each initial condition */
+	public Quantity getQuantity(){
+		return quantity;
+	}
+
+	/** @return number of tiles in the cache */
+	public int getCachedTileCount(){
+		synchronized (cache){
+			return cache.size();
+		}
+	}
+
+	/** Drop every cached tile. Tiles that are still being computed are not
+	 * cached when they finish. */
+	public void clearCache(){
+		synchronized (cache){
+			cache.clear();
+			generation++;
+		}
+	}
+
+	/** Stop the threads. Jobs that are still running never finish. */
+	public void shutdown(){
+		pool.shutdownNow();
+	}
+
+	/** Start computing a view of the map. Cached tiles are copied into the
+	 * grid before this returns, and the rest are filled in as they finish.
+	 * Uses the same conventions as Mandelbrot: pixel (i,j) is at
+	 * th = (i-0.5*width)/scale + th0, phi = -(j-0.5*height)/scale + phi0.
+	 * @param th0 = angle of the first link at the center of the view
+	 * @param phi0 = angle of the second link at the center of the view
+	 * @param scale = pixels per radian
+	 * @param width = of the view (pixels)
+	 * @param height = of the view (pixels)
+	 * @return the job, which holds the grid */
+	public Job compute(double th0, double phi0, double scale, int width, int height){
+		return new Job(th0, phi0, scale, width, height);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                        Views of the map                           ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** One view of the map, computed in the background */
+	public class Job {
+
+		private final float[] grid;
+		private final int width, height;
+		private final int level;        // Sample spacing is 2^-level
+		private final long[] col, row;  // Index of the sample used by each pixel
+		private final AtomicInteger remaining = new AtomicInteger();
+		private final int nTile;
+		private int nComputed = 0;
+		private volatile boolean cancelled = false;
+
+		Job(double th0, double phi0, double scale, int width, int height){
+			this.width = width;
+			this.height = height;
+			grid = new float[width*height];
+			Arrays.fill(grid, Float.NaN);
+
+			level = (int) Math.round(Math.log(scale)/Math.log(2.0));
+			double h = Math.scalb(1.0, -level);
+			col = new long[width];
+			row = new long[height];
+			for (int i=0; i<width; i++){
+				col[i] = (long) Math.floor(((i-0.5*width)/scale + th0)/h);
+			}
+			for (int j=0; j<height; j++){
+				row[j] = (long) Math.floor((-(j-0.5*height)/scale + phi0)/h);
+			}
+
+			/// Every tile that the view touches. Rows are in decreasing phi.
+			long tx0 = Math.floorDiv(col[0], TILE_SIZE), tx1 = Math.floorDiv(col[width-1], TILE_SIZE);
+			long ty0 = Math.floorDiv(row[height-1], TILE_SIZE), ty1 = Math.floorDiv(row[0], TILE_SIZE);
+			ArrayList<TileKey> todo = new ArrayList<TileKey>();
+			for (long tx=tx0; tx<=tx1; tx++){
+				for (long ty=ty0; ty<=ty1; ty++){
+					TileKey key = new TileKey(level, tx, ty);
+					float[] tile;
+					synchronized (cache){
+						tile = cache.get(key);
+					}
+					if (tile != null){
+						blit(key, tile);
+					} else {
+						todo.add(key);
+					}
+				}
+			}
+			nTile = (int) ((tx1-tx0+1)*(ty1-ty0+1));
+
+			/// Compute the missing tiles, nearest to the center first
+			final double cx = 0.5*(tx0 + tx1), cy = 0.5*(ty0 + ty1);
+			todo.sort(Comparator.comparingDouble(k -> Math.hypot(k.tx-cx, k.ty-cy)));
+			remaining.set(todo.size());
+			nComputed = todo.size();
+			for (TileKey key : todo){
+				pool.execute(() -> runTile(key));
+			}
+		}
+
+		/** Compute one tile, unless the job was cancelled */
+		private void runTile(TileKey key){
+			float[] tile = null;
+			if (!cancelled){
+				synchronized (cache){
+					tile = cache.get(key);  // Another job may have finished it
+				}
+				if (tile == null){
+					int gen = generation;  // Read before the settings
+					tile = computeTile(key, this);
+					if (tile != null){
+						synchronized (cache){
+							if (gen == generation) cache.put(key, tile);
+						}
+					}
+				}
+				if (tile != null){
+					blit(key, tile);
+				}
+			}
+			synchronized (this){
+				if (remaining.decrementAndGet() == 0){
+					notifyAll();
+				}
+			}
+		}
+
+		/** Copy a tile into every pixel that uses one of its samples */
+		private void blit(TileKey key, float[] tile){
+			long x0 = key.tx*TILE_SIZE, y0 = key.ty*TILE_SIZE;
+			for (int j=0; j<height; j++){
+				long y = row[j] - y0;
+				if (y < 0 || y >= TILE_SIZE) continue;
+				for (int i=0; i<width; i++){
+					long x = col[i] - x0;
+					if (x < 0 || x >= TILE_SIZE) continue;
+					grid[j*width + i] = tile[(int) (y*TILE_SIZE + x)];
+				}
+			}
+		}
+
+		/** Stop computing this view. Tiles that are half done are dropped. */
+		public void cancel(){
+			cancelled = true;
+		}
+
+		/** @return true if cancel() was called */
+		public boolean isCancelled(){
+			return cancelled;
+		}
+
+		/** @return true once every tile has finished (or was skipped after
+		 * the job was cancelled) */
+		public boolean isDone(){
+			return remaining.get() == 0;
+		}
+
+		/** Wait until the job is done */
+		public synchronized void await() throws InterruptedException {
+			while (remaining.get() > 0){
+				wait();
+			}
+		}
+
+		/** @return fraction of the tiles that are done, between 0 and 1 */
+		public double getProgress(){
+			return (nTile == 0) ? 1.0 : 1.0 - ((double) remaining.get())/nTile;
+		}
+
+		/** @return one value per pixel, [j*width + i]. The grid is filled in
+		 * while the job runs. */
+		public float[] getGrid(){
+			return grid;
+		}
+
+		/** @return width of the view (pixels) */
+		public int getWidth(){
+			return width;
+		}
+
+		/** @return height of the view (pixels) */
+		public int getHeight(){
+			return height;
+		}
+
+		/** @return number of tiles that the view touches */
+		public int getTileCount(){
+			return nTile;
+		}
+
+		/** @return number of tiles that were not in the cache */
+		public int getComputedTileCount(){
+			return nComputed;
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                      Integration of one tile                      ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** @return the values of one tile, or null if the job was cancelled */
+	private float[] computeTile(TileKey key, Job job){
+		double tMax = maxTime, dt = timeStep;
+		DoublePendulum sys = new DoublePendulum(true);
+		sys.setDamping(damping);
+		Integrator integrator = sys.getIntegrator();
+		integrator.method = Integrator.Method.RK4;
+		TangentSystem tangent = null;
+		Integrator tangentIntegrator = null;
+		if (quantity == Quantity.LYAPUNOV){
+			tangent = new TangentSystem(sys);
+			tangentIntegrator = new Integrator(tangent);
+			tangentIntegrator.method = Integrator.Method.RK4;
+		}
+		double[] p = new double[2], v = new double[2];
+
+		/// Below this energy, neither link can reach the top (it takes the
+		/// least energy to flip the second link while the first hangs down)
+		p[0] = DOWN; p[1] = DOWN + Math.PI;
+		sys.setPos(p);
+		sys.setVel(v);
+		double flipEnergy = sys.getEnergy()[0];
+
+		double h = Math.scalb(1.0, -key.level);
+		float[] tile = new float[TILE_SIZE*TILE_SIZE];
+		for (int y=0; y<TILE_SIZE; y++){
+			for (int x=0; x<TILE_SIZE; x++){
+				if (job.cancelled) return null;
+				double th = (key.tx*TILE_SIZE + x + 0.5)*h;
+				double phi = (key.ty*TILE_SIZE + y + 0.5)*h;
+				float value;
+				if (quantity == Quantity.FLIP_TIME){
+					p[0] = th; p[1] = phi;
+					v[0] = 0.0; v[1] = 0.0;
+					sys.setPos(p);
+					sys.setVel(v);
+					sys.setTime(0.0);
+					value = (sys.getEnergy()[0] < flipEnergy) ? Float.POSITIVE_INFINITY : (float) flipTime(integrator, p, v, tMax, dt);
+				} else {
+					value = (float) lyapunov(tangent, tangentIntegrator, th, phi, tMax, dt);
+				}
+				tile[y*TILE_SIZE + x] = value;
+			}
+		}
+		return tile;
+	}
+
+	/** Zero when one of the links is straight up, half a turn from hanging
+	 * down. Stops the integration at the first flip. */
+	private static final EventFunction FLIP = new EventFunction(){
+		@Override
+		public double g(double t, double[] p, double[] v){
+			return Math.PI - Math.max(Math.abs(p[0] - DOWN), Math.abs(p[1] - DOWN));
+		}
+		@Override
+		public boolean onEvent(double t, double[] p, double[] v){
+			return true;
+		}
+	};
+
+	/** Integrate the system from its current state (at t = 0) until the
+	 * first flip, which the integrator locates within the step
+	 * @param p = initial position (also in the system)
+	 * @param v = initial velocity (also in the system)
+	 * @return time of the first flip, or +Infinity if there was none */
+	private static double flipTime(Integrator integrator, double[] p, double[] v, double tMax, double dt){
+		if (FLIP.g(0.0, p, v) <= 0.0) return 0.0;  // Already over the top
+		int nSteps = (int) Math.ceil(tMax/dt);
+		integrator.addEvent(FLIP);
+		integrator.timeStep(nSteps*dt, nSteps);
+		integrator.removeEvent(FLIP);
+		return integrator.isStopped() ? integrator.getEventTime() : Double.POSITIVE_INFINITY;
+	}
+
+	/** @return the largest Lyapunov exponent, from the growth of a tangent
+	 * vector that is renormalized after every step */
+	private static double lyapunov(TangentSystem tangent, Integrator integrator, double th, double phi,
+			double tMax, double dt){
+		double[] y = tangent.getState();
+		y[0] = th; y[1] = phi; y[2] = 0.0; y[3] = 0.0;
+		y[4] = 0.5; y[5] = 0.5; y[6] = 0.5; y[7] = 0.5;
+		tangent.setTime(0.0);
+		int nSteps = (int) Math.ceil(tMax/dt);
+		double sum = 0.0;
+		for (int k=0; k<nSteps; k++){
+			integrator.timeStep(dt);
+			double norm = Math.sqrt(y[4]*y[4] + y[5]*y[5] + y[6]*y[6] + y[7]*y[7]);
+			sum += Math.log(norm);
+			for (int i=4; i<8; i++) y[i] /= norm;
+		}
+		return sum/(nSteps*dt);
+	}
+
+	/** The double pendulum together with its tangent-linear system, as one
+	 * first order system: y = {th, phi, dth, dphi, d0, d1, d2, d3}, where d
+	 * is the tangent vector. DoublePendulum has no analytic Jacobian, so J*d
+	 * is a directional difference of its dynamics. */
+	private static final class TangentSystem implements FirstOrderSystem {
+		private final DoublePendulum sys;
+		private final double[] y = new double[8];
+		private final double[] yp = new double[4], fp = new double[4];
+		private final double[] p = new double[2], v = new double[2], a = new double[2];
+		private double time = 0.0;
+
+		TangentSystem(DoublePendulum sys){
+			this.sys = sys;
+		}
+
+		/** @return the state itself, not a copy */
+		@Override
+		public double[] getState(){
+			return y;
+		}
+
+		@Override
+		public void setState(double[] s){
+			System.arraycopy(s, 0, y, 0, 8);
+		}
+
+		@Override
+		public double getTime(){
+			return time;
+		}
+
+		@Override
+		public void setTime(double t){
+			time = t;
+		}
+
+		@Override
+		public void derivative(double t, double[] s, double[] ds){
+			slope(s, ds);
+			for (int i=0; i<4; i++) yp[i] = s[i] + EPS*s[4+i];
+			slope(yp, fp);
+			for (int i=0; i<4; i++) ds[4+i] = (fp[i] - ds[i])/EPS;
+		}
+
+		/** dy = {dth, dphi, ddth, ddphi}, from the first four entries of y */
+		private void slope(double[] y, double[] dy){
+			p[0] = y[0]; p[1] = y[1];
+			v[0] = y[2]; v[1] = y[3];
+			sys.dynamics(p, v, a);
+			dy[0] = y[2]; dy[1] = y[3];
+			dy[2] = a[0]; dy[3] = a[1];
+		}
+	}
+
+	/** Identifies a tile: samples [tx*TILE_SIZE, (tx+1)*TILE_SIZE) along th
+	 * and the same along phi, with a spacing of 2^-level */
+	private static final class TileKey {
+		final int level;
+		final long tx, ty;
+
+		TileKey(int level, long tx, long ty){
+			this.level = level;
+			this.tx = tx;
+			this.ty = ty;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if (!(o instanceof TileKey)) return false;
+			TileKey k = (TileKey) o;
+			return level == k.level && tx == k.tx && ty == k.ty;
+		}
+
+		@Override
+		public int hashCode(){
+			return 31*(31*level + Long.hashCode(tx)) + Long.hashCode(ty);
+		}
+	}
+
+}
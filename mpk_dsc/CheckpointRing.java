@@ -0,0 +1,127 @@
+package mpk_dsc;
+
+/** Keeps a fixed number of periodic snapshots of a running simulation, so
+ * that it can be rewound to any earlier time without starting again from
+ * t = 0. Rewinding restores the newest checkpoint before the requested time
+ * and then integrates forward from there, so it never costs more than one
+ * checkpoint period of simulation. Rewinding to the time of a checkpoint is
+ * exact. Between checkpoints, the state matches the original run only to
+ * within the integration error (see rewind()).
+ *
+ * All of the snapshots are allocated up front. Once the ring is full, each
+ * new checkpoint overwrites the oldest one.
+ *
+ * Usage: call update() after each call to simulate(), and rewind(t) to jump
+ * back. Call clear() after resetting the system.
+ * @author matt
+ */
+public class CheckpointRing {
+
+	private DynamicalSystem sys;
+	private Integrator integrator;
+	private StateSnapshot[] pool;
+	private double period;
+
+	private int newest = -1;  // Index of the newest checkpoint in the pool
+	private int count = 0;    // Number of valid checkpoints
+
+	/** Create a checkpoint ring for a system
+	 * @param sys = the system to checkpoint
+	 * @param integrator = the integrator used by the system, or null
+	 * @param capacity = the maximum number of checkpoints to keep
+	 * @param period = simulation time between checkpoints */
+	public CheckpointRing(DynamicalSystem sys, Integrator integrator, int capacity, double period){
+		if (capacity < 1){
+			throw new IllegalArgumentException("Capacity must be at least one");
+		}
+		this.sys = sys;
+		this.integrator = integrator;
+		this.period = period;
+		int dim = sys.getPos().length;
+		pool = new StateSnapshot[capacity];
+		for (int i=0; i<capacity; i++){
+			pool[i] = new StateSnapshot(dim);
+		}
+	}
+
+	/** Create a checkpoint ring for a system that uses its own integrator */
+	public CheckpointRing(MechanicalSystem sys, int capacity, double period){
+		this(sys, sys.getIntegrator(), capacity, period);
+	}
+
+	/** Save a checkpoint if at least one period has passed since the last.
+	 * @return true if a checkpoint was saved */
+	public boolean update(){
+		if (count == 0 || sys.getTime() >= pool[newest].time + period){
+			save();
+			return true;
+		}
+		return false;
+	}
+
+	/** Save a checkpoint of the current state now, overwriting the oldest
+	 * checkpoint if the ring is full */
+	public void save(){
+		newest = (newest + 1) % pool.length;
+		pool[newest].capture(sys, integrator);
+		count = Math.min(count + 1, pool.length);
+	}
+
+	/** Move the simulation back to time t. The newest checkpoint at or
+	 * before t is restored and the system is simulated forward to t. Any
+	 * checkpoints after it are discarded, since the simulation may take a
+	 * different path from here. If t is the time of a checkpoint, the state
+	 * is exactly what it was. Otherwise it matches the original run to
+	 * within the integration error (not bit for bit), since the steps taken
+	 * forward from the checkpoint are not split the same way.
+	 * @return false if t is before the oldest checkpoint (the system is
+	 * not changed) */
+	public boolean rewind(double t){
+		for (int k=0; k<count; k++){
+			int i = (newest - k + pool.length) % pool.length;
+			if (pool[i].time <= t){
+				pool[i].restore(sys, integrator);
+				newest = i;
+				count -= k;
+				if (t > pool[i].time){
+					sys.simulate(t - pool[i].time);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Discard all of the checkpoints */
+	public void clear(){
+		newest = -1;
+		count = 0;
+	}
+
+	/** @return number of checkpoints currently stored */
+	public int size(){
+		return count;
+	}
+
+	/** @return time of the oldest checkpoint, or NaN if there are none. This
+	 * is as far back as the simulation can be rewound. */
+	public double getOldestTime(){
+		if (count == 0) return Double.NaN;
+		return pool[(newest - count + 1 + pool.length) % pool.length].time;
+	}
+
+	/** @return time of the newest checkpoint, or NaN if there are none */
+	public double getNewestTime(){
+		if (count == 0) return Double.NaN;
+		return pool[newest].time;
+	}
+
+	/** @return the k-th newest checkpoint (k = 0 is the newest) */
+	public StateSnapshot get(int k){
+		if (k < 0 || k >= count){
+			throw new IndexOutOfBoundsException("Checkpoint " + k + " of " + count);
+		}
+		return pool[(newest - k + pool.length) % pool.length];
+	}
+
+}
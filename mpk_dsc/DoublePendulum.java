@@ -3,7 +3,7 @@ package mpk_dsc;
 import mpk_gui.DrawPanel;
 
 /** This is where the drawing takes place */
-public class DoublePendulum implements DynamicalSystem{
+public class DoublePendulum implements MechanicalSystem{
 
 	// The state of the pendulum {th,phi,dth,dphi}
 	private double[] th0 = {1.8,0.5};
@@ -29,16 +29,26 @@ public class DoublePendulum implements DynamicalSystem{
 
 	/** Constructor! */
 	public DoublePendulum(){
-		super(); // Create a draw panel 
+		this(false);
+	}
+	
+	/** Create a new double pendulum. 
+	 * @param headless = if true, the plotter is not created and plot is null,
+	 * so that no graphics classes are needed to run the simulation */
+	public DoublePendulum(boolean headless){
+		super();
 
 		integrator = new Integrator(this);
-		integrator.method = Integrator.Method.RK4;  // {EULER, RK4, SYM1, SYM2}
+		integrator.method = Integrator.Method.RK4;  // {EULER, RK4, SYM1, SYM2, DOPRI5, CASHKARP}
 		
-		plot = new PendulumPlotter();
+		if (!headless){
+			plot = new PendulumPlotter();
+		}
 	}
 	
 	/** Get the system energy
 	 * @return {total, kinetic, potential} */
+	@Override
 	public double[] getEnergy(){
 //		double x1 = l*Math.cos(th[0]);
 		double y1 = l*Math.sin(th[0]);
@@ -60,6 +70,14 @@ public class DoublePendulum implements DynamicalSystem{
 	 * derived automatically using Matlab */
 	@Override
 	public double[] dynamics(double[] p, double[] v){
+		double[] dv = new double[2];
+		dynamics(p,v,dv);
+		return dv;
+	}
+	
+	/** In-place version of the dynamics, used by the integrator */
+	@Override
+	public void dynamics(double[] p, double[] v, double[] dv){
 
 		// Declare variables:                                     
 		double th, phi, Dth, Dphi;    //State variables          
@@ -113,7 +131,8 @@ public class DoublePendulum implements DynamicalSystem{
 		tmp23 = -tmp14+tmp20;  
 		DDphi =  -(1.0/(l*l)*(M2*m1*-2.0-M2*m2*2.0+M1*m2*tmp11*2.0-M2*m2*tmp11*2.0+tmp18*tmp19*tmp21*tmp22*2.0-F1_x*l*m2*tmp13+F1_y*l*m2*tmp12+F2_x*l*m1*tmp13*2.0-F2_y*l*m1*tmp12*2.0+F2_x*l*m2*tmp13-F2_y*l*m2*tmp12+F1_y*l*m2*tmp16+F1_x*l*m2*tmp17+F2_y*l*m2*tmp16+F2_x*l*m2*tmp17+(Dphi*Dphi)*tmp18*tmp19*Math.sin(tmp23)+l*g*tmp12*tmp18-l*g*tmp16*tmp18+l*g*m1*m2*tmp12-l*g*m1*m2*tmp16+m1*m2*tmp19*tmp21*tmp22*2.0))/(m2*(m1*2.0+m2-m2*Math.cos(tmp23)));  
                  
-		return new double[] {DDth, DDphi};
+		dv[0] = DDth;
+		dv[1] = DDphi;
 
 	}
 
@@ -129,14 +148,21 @@ public class DoublePendulum implements DynamicalSystem{
 	}
 	
 	/** Sets the current value of the damping constant */
+	@Override
 	public void setDamping(double c){
 		this.damping = c;
 	}
 	
 	/** Set the maximum time step for the integrator */
+	@Override
 	public void setMaxTimeStep(double dt){
 		maxTimeStep = dt;
 	}
+	
+	/** @return the integrator, to select the method and tolerances */
+	public Integrator getIntegrator(){
+		return integrator;
+	}
 
 	/** ********************************************************************
 	 * A class for plotting the pendulum
@@ -196,18 +222,20 @@ public class DoublePendulum implements DynamicalSystem{
 
 	@Override
 	public void setPos(double[] p) {
-		th = p.clone();
+		th[0] = p[0];
+		th[1] = p[1];
 	}
 
 	@Override
 	public void setVel(double[] v) {
-		w = v.clone();
+		w[0] = v[0];
+		w[1] = v[1];
 	}
 
 	@Override
 	public void reset() {
-		th = th0.clone();
-		w = w0.clone();
+		setPos(th0);
+		setVel(w0);
 		time = 0.0;		
 	}	
 
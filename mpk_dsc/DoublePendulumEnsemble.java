@@ -0,0 +1,196 @@
+package mpk_dsc;
+
+/** Many independent copies of the double pendulum, stored as a single
+ * dynamical system. The state is kept as a structure of arrays:
+ *
+ * pos = [th_0, th_1, ..., th_N-1, phi_0, phi_1, ..., phi_N-1]
+ * vel = [dth_0, ...,  dth_N-1, dphi_0, ..., dphi_N-1]
+ *
+ * so that the stage updates inside the Integrator are flat loops over
+ * contiguous memory, and the dynamics are evaluated for every member in a
+ * single tight loop rather than one virtual call per member. All members
+ * share the same physical parameters (and the same time step). */
+public class DoublePendulumEnsemble implements DynamicalSystem {
+
+	private int nMembers;
+	private double[] pos0, vel0;  // Initial state of every member
+	private double[] pos, vel;    // Current state of every member
+	private double time = 0.0;
+
+	/* parameters for the double pendulum, same as DoublePendulum */
+	private double m1 = 1.0;  // (kg) mass of bob 1 (end of first massless link)
+	private double m2 = 1.0;  // (kg) mass of bob 2 (end of second massless link)
+	private double g = 9.81; // (m/s^2) gravity
+	private double l = 1.0;  // (m) length of one link (both are the same)
+	private double damping = 0.0; // Viscous damping in both links
+
+	private double maxTimeStep = 0.01;
+	private double energyDatum = -m1*g*l + -m2*g*(2*l);
+
+	private Integrator integrator;
+
+	/** Create an ensemble, with every member starting from the same default
+	 * initial state as DoublePendulum
+	 * @param nMembers = number of double pendulums in the ensemble */
+	public DoublePendulumEnsemble(int nMembers){
+		this.nMembers = nMembers;
+		pos0 = new double[2*nMembers];
+		vel0 = new double[2*nMembers];
+		pos = new double[2*nMembers];
+		vel = new double[2*nMembers];
+		for (int i=0; i<nMembers; i++){
+			setInitialState(i, 1.8, 0.5, 0.0, 0.0);
+		}
+
+		integrator = new Integrator(this);
+		integrator.method = Integrator.Method.RK4;  // {EULER, RK4, SYM1, SYM2, DOPRI5, CASHKARP}
+
+		reset();
+	}
+
+	/** Set the initial state of a single member. Takes effect on reset().
+	 * @param i = index of the member
+	 * @param th = absolute angle of the first link
+	 * @param phi = absolute angle of the second link
+	 * @param dth = rate of the first link
+	 * @param dphi = rate of the second link */
+	public void setInitialState(int i, double th, double phi, double dth, double dphi){
+		pos0[i] = th;
+		pos0[nMembers+i] = phi;
+		vel0[i] = dth;
+		vel0[nMembers+i] = dphi;
+	}
+
+	/** @return number of members in the ensemble */
+	public int size(){
+		return nMembers;
+	}
+
+	/** Computes the dynamics for every member of the ensemble. This is the
+	 * same model as DoublePendulum (with no external forces), but the trig
+	 * terms of the angle differences are expanded so that only the sine and
+	 * cosine of each angle are evaluated. */
+	@Override
+	public void dynamics(double[] p, double[] v, double[] dv){
+		final int N = nMembers;
+		final double ll = l*l;
+		for (int i=0; i<N; i++){
+			double th = p[i];
+			double phi = p[N+i];
+			double Dth = v[i];
+			double Dphi = v[N+i];
+
+			// Model viscous damping as an external moment on each joint
+			double M1 = -Dth*damping;
+			double M2 = -(Dphi-Dth)*damping;
+
+			double cth = Math.cos(th), sth = Math.sin(th);
+			double cphi = Math.cos(phi), sphi = Math.sin(phi);
+			double cd = cphi*cth + sphi*sth;   // cos(phi-th)
+			double sd = sphi*cth - cphi*sth;   // sin(phi-th)
+			double c2d = cd*cd - sd*sd;        // cos(2*phi-2*th)
+			double s2d = 2.0*sd*cd;            // sin(2*phi-2*th)
+			double cA = cphi*cd - sphi*sd;     // cos(2*phi-th)
+			double cB = cd*cth + sd*sth;       // cos(phi-2*th)
+			double Dth2 = Dth*Dth;
+			double den = m1*2.0 + m2 - m2*c2d;
+
+			dv[i] = (M1*2.0 - M2*2.0 - M2*cd*2.0 + Dphi*Dphi*m2*ll*sd*2.0 + Dth2*m2*ll*s2d
+					- l*g*m1*cth*2.0 - l*g*m2*cth + l*g*m2*cA)/(ll*den);
+
+			dv[N+i] = -(M2*m1*-2.0 - M2*m2*2.0 + M1*m2*cd*2.0 - M2*m2*cd*2.0
+					+ m2*m2*ll*Dth2*sd*2.0 + Dphi*Dphi*m2*m2*ll*s2d
+					+ l*g*(m2*m2 + m1*m2)*(cphi - cB) + m1*m2*ll*Dth2*sd*2.0)/(ll*m2*den);
+		}
+	}
+
+	@Override
+	public double[] dynamics(double[] p, double[] v){
+		double[] dv = new double[2*nMembers];
+		dynamics(p,v,dv);
+		return dv;
+	}
+
+	/** Get the total mechanical energy of a single member (same datum as
+	 * DoublePendulum.getEnergy)
+	 * @param i = index of the member */
+	public double getEnergy(int i){
+		double th = pos[i], phi = pos[nMembers+i];
+		double w1 = vel[i], w2 = vel[nMembers+i];
+		double y1 = l*Math.sin(th);
+		double y2 = y1 + l*Math.sin(phi);
+		double dx1 = -l*Math.sin(th)*w1;
+		double dy1 = l*Math.cos(th)*w1;
+		double dx2 = dx1 - l*Math.sin(phi)*w2;
+		double dy2 = dy1 + l*Math.cos(phi)*w2;
+		double kinetic = 0.5*(m1*(dx1*dx1+dy1*dy1) + m2*(dx2*dx2+dy2*dy2));
+		double potential = g*(m1*y1 + m2*y2) - energyDatum;
+		return kinetic + potential;
+	}
+
+	@Override
+	public void timeStep(double dt) {
+		integrator.timeStep(dt);
+	}
+
+	@Override
+	public void simulate(double duration){
+		int nSteps = (int)(Math.ceil(duration/maxTimeStep));
+		integrator.timeStep(duration, nSteps);
+	}
+
+	/** Sets the current value of the damping constant */
+	public void setDamping(double c){
+		this.damping = c;
+	}
+
+	/** Set the maximum time step for the integrator */
+	public void setMaxTimeStep(double dt){
+		maxTimeStep = dt;
+	}
+
+	/** @return the integrator, to select the method and tolerances */
+	public Integrator getIntegrator(){
+		return integrator;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public void setTime(double t) {
+		time = t;
+	}
+
+	/** @return the angles of every member, [th_0..th_N-1, phi_0..phi_N-1] */
+	@Override
+	public double[] getPos() {
+		return pos;
+	}
+
+	/** @return the rates of every member, [dth_0..dth_N-1, dphi_0..dphi_N-1] */
+	@Override
+	public double[] getVel() {
+		return vel;
+	}
+
+	@Override
+	public void setPos(double[] p) {
+		System.arraycopy(p, 0, pos, 0, pos.length);
+	}
+
+	@Override
+	public void setVel(double[] v) {
+		System.arraycopy(v, 0, vel, 0, vel.length);
+	}
+
+	@Override
+	public void reset() {
+		setPos(pos0);
+		setVel(vel0);
+		time = 0.0;
+	}
+
+}
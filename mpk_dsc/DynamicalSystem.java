@@ -31,6 +31,30 @@ public interface DynamicalSystem {
 	 * @return dv = derivative of the velocity vector*/
 	public double[] dynamics(double[] p, double[]v);
 	
+	/** Computes the dynamics of a second order system, writing the result
+	 * into a buffer provided by the caller so that nothing is allocated. 
+	 * Systems that only implement the allocating version fall back to it.
+	 * @param p = position vector
+	 * @param v = velocity vector
+	 * @param dv = derivative of the velocity vector (output) */
+	public default void dynamics(double[] p, double[] v, double[] dv){
+		double[] a = dynamics(p,v);
+		System.arraycopy(a, 0, dv, 0, dv.length);
+	}
+	
+	/** Computes the Jacobian of the dynamics, for the implicit methods in 
+	 * Integrator. Both matrices are n by n, stored by rows: 
+	 * dadp[i*n + j] = d(dv[i])/d(p[j]). Systems that do not override this 
+	 * return false, and the Jacobian is found by finite differences instead.
+	 * @param p = position vector
+	 * @param v = velocity vector
+	 * @param dadp = derivative of dv with respect to position (output)
+	 * @param dadv = derivative of dv with respect to velocity (output)
+	 * @return true if the Jacobian was computed */
+	public default boolean jacobian(double[] p, double[] v, double[] dadp, double[] dadv){
+		return false;
+	}
+	
 	/** Take a single time step using the default integration method
 	 * @param dt the time step for the integration method */
 	public void timeStep(double dt);
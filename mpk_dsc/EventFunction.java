@@ -0,0 +1,26 @@
+package mpk_dsc;
+
+/** An event that is monitored by the Integrator. The event occurs whenever 
+ * g(t,p,v) changes sign between the end of one step and the end of the 
+ * next. The Integrator then locates the time of the crossing within the 
+ * step, moves the state there, and calls onEvent(). */
+public interface EventFunction {
+
+	/** @param t = the system time
+	 * @param p = position vector
+	 * @param v = velocity vector
+	 * @return a value that changes sign when the event occurs */
+	public double g(double t, double[] p, double[] v);
+	
+	/** Called at the located event. The state may be modified here (for 
+	 * example, to reverse a velocity), and integration resumes from it.
+	 * By default the event is only recorded and integration continues.
+	 * @param t = the time of the event
+	 * @param p = position vector at the event
+	 * @param v = velocity vector at the event
+	 * @return true to stop the integration at the event */
+	public default boolean onEvent(double t, double[] p, double[] v){
+		return false;
+	}
+	
+}
@@ -0,0 +1,130 @@
+package mpk_dsc;
+
+/** A node in a symbolic expression, built through a SymbolicModel. Nodes are
+ * immutable and shared: the model returns the same node every time the same
+ * expression is built, so common sub-expressions are found as a side effect
+ * of building the equations, and each is evaluated once by the compiled
+ * code. Constants are folded as the expression is built.
+ *
+ * Expressions are written with method calls, for example m*l*l*sin(th) is:
+ * m.mul(l).mul(l).mul(th.sin())
+ * @author matt
+ */
+public final class Expr {
+
+	/** The operation at a node */
+	public enum Op {
+		CONST, POS, VEL, PARAM,   // Leaves
+		ADD, SUB, MUL, DIV,       // Binary
+		NEG, SIN, COS, SQRT       // Unary
+	}
+
+	final SymbolicModel model;
+	final Op op;
+	final Expr a, b;     // Operands (null if not used)
+	final double value;  // Value of a constant
+	final int index;     // Index of a variable or parameter
+	final int id;        // Order of creation, unique within the model
+
+	Expr(SymbolicModel model, Op op, Expr a, Expr b, double value, int index, int id){
+		this.model = model;
+		this.op = op;
+		this.a = a;
+		this.b = b;
+		this.value = value;
+		this.index = index;
+		this.id = id;
+	}
+
+	/** @return this + x */
+	public Expr add(Expr x){
+		return model.binary(Op.ADD, this, x);
+	}
+
+	/** @return this + x */
+	public Expr add(double x){
+		return add(model.constant(x));
+	}
+
+	/** @return this - x */
+	public Expr sub(Expr x){
+		return model.binary(Op.SUB, this, x);
+	}
+
+	/** @return this - x */
+	public Expr sub(double x){
+		return sub(model.constant(x));
+	}
+
+	/** @return this * x */
+	public Expr mul(Expr x){
+		return model.binary(Op.MUL, this, x);
+	}
+
+	/** @return this * x */
+	public Expr mul(double x){
+		return mul(model.constant(x));
+	}
+
+	/** @return this / x */
+	public Expr div(Expr x){
+		return model.binary(Op.DIV, this, x);
+	}
+
+	/** @return this / x */
+	public Expr div(double x){
+		return div(model.constant(x));
+	}
+
+	/** @return -this */
+	public Expr neg(){
+		return model.unary(Op.NEG, this);
+	}
+
+	/** @return this * this */
+	public Expr square(){
+		return mul(this);
+	}
+
+	/** @return sin(this) */
+	public Expr sin(){
+		return model.unary(Op.SIN, this);
+	}
+
+	/** @return cos(this) */
+	public Expr cos(){
+		return model.unary(Op.COS, this);
+	}
+
+	/** @return sqrt(this) */
+	public Expr sqrt(){
+		return model.unary(Op.SQRT, this);
+	}
+
+	/** @return true if this is a constant with the value x */
+	public boolean isConstant(double x){
+		return op == Op.CONST && value == x;
+	}
+
+	/** @return the operation at this node */
+	public Op getOp(){
+		return op;
+	}
+
+	@Override
+	public String toString(){
+		switch (op) {
+		case CONST: return Double.toString(value);
+		case POS: return "p[" + index + "]";
+		case VEL: return "v[" + index + "]";
+		case PARAM: return model.getParamName(index);
+		case ADD: return "(" + a + " + " + b + ")";
+		case SUB: return "(" + a + " - " + b + ")";
+		case MUL: return a + "*" + b;
+		case DIV: return "(" + a + ")/(" + b + ")";
+		case NEG: return "-" + a;
+		default: return op.toString().toLowerCase() + "(" + a + ")";
+		}
+	}
+
+}
@@ -0,0 +1,347 @@
+package mpk_dsc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/** Turns the equations of a SymbolicModel into code. The preferred route
+ * writes the bytecode for a small class with one straight-line method, and
+ * loads it as a hidden class, so the JIT compiles it just like hand-written
+ * code. If hidden classes are not available (before Java 15), the same
+ * schedule is run by a simple interpreter instead. */
+final class ExpressionCompiler {
+
+	/** Evaluates the accelerations: dv = f(p, v, parameters) */
+	interface Evaluator {
+		void eval(double[] p, double[] v, double[] prm, double[] dv);
+	}
+
+	private ExpressionCompiler(){}
+
+	/** @param schedule = every node, each after its operands
+	 * @param outputs = the acceleration of each coordinate
+	 * @return generated code if possible, otherwise an interpreter */
+	static Evaluator compile(List<Expr> schedule, Expr[] outputs){
+		try {
+			return generate(schedule, outputs);
+		} catch (LinkageError | ReflectiveOperationException | IOException e) {
+			return interpret(schedule, outputs);
+		}
+	}
+
+	/** @return an interpreter for the schedule, which always works */
+	static Evaluator interpret(List<Expr> schedule, Expr[] outputs){
+		return new Interpreter(schedule, outputs);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                         Interpreted version                       ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** Runs the schedule as a flat program. Every node writes its result into
+	 * its own slot of r, so nothing is allocated per call. */
+	static final class Interpreter implements Evaluator {
+		private Expr.Op[] op;
+		private int[] a, b;       // Slots of the operands
+		private int[] index;      // Index of variables and parameters
+		private double[] r;       // Result of each node (constants pre-filled)
+		private int[] out;        // Slot of each output
+
+		Interpreter(List<Expr> schedule, Expr[] outputs){
+			int m = schedule.size();
+			IdentityHashMap<Expr, Integer> slot = slots(schedule);
+			op = new Expr.Op[m];
+			a = new int[m];
+			b = new int[m];
+			index = new int[m];
+			r = new double[m];
+			for (int k=0; k<m; k++){
+				Expr e = schedule.get(k);
+				op[k] = e.op;
+				a[k] = (e.a == null) ? -1 : slot.get(e.a);
+				b[k] = (e.b == null) ? -1 : slot.get(e.b);
+				index[k] = e.index;
+				r[k] = e.value;
+			}
+			out = new int[outputs.length];
+			for (int i=0; i<outputs.length; i++){
+				out[i] = slot.get(outputs[i]);
+			}
+		}
+
+		@Override
+		public void eval(double[] p, double[] v, double[] prm, double[] dv){
+			for (int k=0; k<op.length; k++){
+				switch (op[k]) {
+				case CONST: break;
+				case POS: r[k] = p[index[k]]; break;
+				case VEL: r[k] = v[index[k]]; break;
+				case PARAM: r[k] = prm[index[k]]; break;
+				case ADD: r[k] = r[a[k]] + r[b[k]]; break;
+				case SUB: r[k] = r[a[k]] - r[b[k]]; break;
+				case MUL: r[k] = r[a[k]] * r[b[k]]; break;
+				case DIV: r[k] = r[a[k]] / r[b[k]]; break;
+				case NEG: r[k] = -r[a[k]]; break;
+				case SIN: r[k] = Math.sin(r[a[k]]); break;
+				case COS: r[k] = Math.cos(r[a[k]]); break;
+				case SQRT: r[k] = Math.sqrt(r[a[k]]); break;
+				}
+			}
+			for (int i=0; i<out.length; i++){
+				dv[i] = r[out[i]];
+			}
+		}
+	}
+
+	/** @return the position of each node in the schedule */
+	private static IdentityHashMap<Expr, Integer> slots(List<Expr> schedule){
+		IdentityHashMap<Expr, Integer> slot = new IdentityHashMap<Expr, Integer>();
+		for (int k=0; k<schedule.size(); k++){
+			slot.put(schedule.get(k), k);
+		}
+		return slot;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                          Generated bytecode                       ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/// Class file constants
+	private static final int CP_UTF8 = 1, CP_DOUBLE = 6, CP_CLASS = 7, CP_METHOD = 10, CP_NAME_TYPE = 12;
+	private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+	/// Opcodes
+	private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC2_W = 0x14;
+	private static final int DLOAD = 0x18, ALOAD = 0x19, ALOAD_0 = 0x2a, DALOAD = 0x31;
+	private static final int DSTORE = 0x39, DASTORE = 0x52;
+	private static final int DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77;
+	private static final int RETURN = 0xb1, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, WIDE = 0xc4;
+
+	/// Local variables of the generated eval() method
+	private static final int LOCAL_P = 1, LOCAL_V = 2, LOCAL_PRM = 3, LOCAL_DV = 4, LOCAL_FIRST = 5;
+
+	/** Write a class that implements Evaluator with the schedule unrolled into
+	 * straight-line code (one local variable per node), then load it */
+	private static Evaluator generate(List<Expr> schedule, Expr[] outputs)
+			throws IOException, ReflectiveOperationException {
+		ConstantPool cp = new ConstantPool();
+		int thisClass = cp.classRef("mpk_dsc/GeneratedDynamics");
+		int superClass = cp.classRef("java/lang/Object");
+		int iface = cp.classRef("mpk_dsc/ExpressionCompiler$Evaluator");
+		int objectInit = cp.methodRef("java/lang/Object", "<init>", "()V");
+		int codeName = cp.utf8("Code");
+		int initName = cp.utf8("<init>");
+		int initDesc = cp.utf8("()V");
+		int evalName = cp.utf8("eval");
+		int evalDesc = cp.utf8("([D[D[D[D)V");
+
+		/// Constructor: super()
+		ByteArrayOutputStream init = new ByteArrayOutputStream();
+		init.write(ALOAD_0);
+		init.write(INVOKESPECIAL);
+		writeShort(init, objectInit);
+		init.write(RETURN);
+
+		/// eval(p, v, prm, dv)
+		ByteArrayOutputStream code = new ByteArrayOutputStream();
+		IdentityHashMap<Expr, Integer> slot = slots(schedule);
+		for (Expr e : schedule){
+			switch (e.op) {
+			case CONST:
+				code.write(LDC2_W);
+				writeShort(code, cp.doubleConst(e.value));
+				break;
+			case POS: loadElement(code, LOCAL_P, e.index); break;
+			case VEL: loadElement(code, LOCAL_V, e.index); break;
+			case PARAM: loadElement(code, LOCAL_PRM, e.index); break;
+			default:
+				loadLocal(code, DLOAD, local(slot.get(e.a)));
+				if (e.b != null) loadLocal(code, DLOAD, local(slot.get(e.b)));
+				switch (e.op) {
+				case ADD: code.write(DADD); break;
+				case SUB: code.write(DSUB); break;
+				case MUL: code.write(DMUL); break;
+				case DIV: code.write(DDIV); break;
+				case NEG: code.write(DNEG); break;
+				default:
+					code.write(INVOKESTATIC);
+					writeShort(code, cp.methodRef("java/lang/Math", e.op.toString().toLowerCase(), "(D)D"));
+				}
+			}
+			loadLocal(code, DSTORE, local(slot.get(e)));
+		}
+		for (int i=0; i<outputs.length; i++){
+			loadLocal(code, ALOAD, LOCAL_DV);
+			pushInt(code, i);
+			loadLocal(code, DLOAD, local(slot.get(outputs[i])));
+			code.write(DASTORE);
+		}
+		code.write(RETURN);
+		int maxLocals = local(schedule.size());
+
+		/// Assemble the class file
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);   // Minor version
+		out.writeShort(52);  // Java 8 (straight-line code needs no stack map)
+		cp.write(out);
+		out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(iface);
+		out.writeShort(0);  // Fields
+		out.writeShort(2);  // Methods
+		writeMethod(out, initName, initDesc, codeName, init.toByteArray(), 1, 1);
+		writeMethod(out, evalName, evalDesc, codeName, code.toByteArray(), 6, maxLocals);
+		out.writeShort(0);  // Attributes
+		out.flush();
+
+		return define(bytes.toByteArray());
+	}
+
+	/** Load the class as a hidden class next to this one. Done by reflection,
+	 * so that this file still compiles and runs on older JVMs. */
+	private static Evaluator define(byte[] classFile) throws ReflectiveOperationException {
+		Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+		Object options = Array.newInstance(optionClass, 0);
+		Method defineHidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+				byte[].class, boolean.class, options.getClass());
+		MethodHandles.Lookup lookup = (MethodHandles.Lookup) defineHidden.invoke(
+				MethodHandles.lookup(), classFile, true, options);
+		return (Evaluator) lookup.lookupClass().getDeclaredConstructor().newInstance();
+	}
+
+	/** @return the local variable that holds the result of node k */
+	private static int local(int k){
+		return LOCAL_FIRST + 2*k;
+	}
+
+	/** Push array[i] onto the stack */
+	private static void loadElement(ByteArrayOutputStream code, int array, int i){
+		loadLocal(code, ALOAD, array);
+		pushInt(code, i);
+		code.write(DALOAD);
+	}
+
+	/** Write a load or store of a local variable, using the wide form if needed */
+	private static void loadLocal(ByteArrayOutputStream code, int opcode, int local){
+		if (local > 255){
+			code.write(WIDE);
+			code.write(opcode);
+			writeShort(code, local);
+		} else {
+			code.write(opcode);
+			code.write(local);
+		}
+	}
+
+	/** Push a small int constant onto the stack */
+	private static void pushInt(ByteArrayOutputStream code, int i){
+		if (i <= 5){
+			code.write(ICONST_0 + i);
+		} else if (i <= 127){
+			code.write(BIPUSH);
+			code.write(i);
+		} else {
+			code.write(SIPUSH);
+			writeShort(code, i);
+		}
+	}
+
+	private static void writeShort(ByteArrayOutputStream code, int x){
+		code.write((x >> 8) & 0xff);
+		code.write(x & 0xff);
+	}
+
+	private static void writeMethod(DataOutputStream out, int name, int desc, int codeName,
+			byte[] code, int maxStack, int maxLocals) throws IOException {
+		if (code.length > 65535){
+			throw new IOException("Equations are too large for a single method");
+		}
+		out.writeShort(ACC_PUBLIC);
+		out.writeShort(name);
+		out.writeShort(desc);
+		out.writeShort(1);  // Attributes: Code
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0);  // Exception table
+		out.writeShort(0);  // Attributes
+	}
+
+	/** Collects the constant pool of the class file, re-using entries */
+	private static final class ConstantPool {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(bytes);
+		private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+		private int count = 1;  // Entry zero is not used
+
+		int utf8(String s) throws IOException {
+			Integer i = entries.get("U" + s);
+			if (i != null) return i;
+			out.writeByte(CP_UTF8);
+			out.writeUTF(s);
+			return add("U" + s, 1);
+		}
+
+		int classRef(String name) throws IOException {
+			Integer i = entries.get("C" + name);
+			if (i != null) return i;
+			int n = utf8(name);
+			out.writeByte(CP_CLASS);
+			out.writeShort(n);
+			return add("C" + name, 1);
+		}
+
+		int methodRef(String owner, String name, String desc) throws IOException {
+			String key = "M" + owner + "." + name + desc;
+			Integer i = entries.get(key);
+			if (i != null) return i;
+			int c = classRef(owner);
+			int n = utf8(name);
+			int d = utf8(desc);
+			out.writeByte(CP_NAME_TYPE);
+			out.writeShort(n);
+			out.writeShort(d);
+			int nameType = add("N" + name + desc, 1);
+			out.writeByte(CP_METHOD);
+			out.writeShort(c);
+			out.writeShort(nameType);
+			return add(key, 1);
+		}
+
+		int doubleConst(double x) throws IOException {
+			String key = "D" + Double.doubleToLongBits(x);
+			Integer i = entries.get(key);
+			if (i != null) return i;
+			out.writeByte(CP_DOUBLE);
+			out.writeDouble(x);
+			return add(key, 2);  // Doubles take two entries
+		}
+
+		private int add(String key, int size){
+			int i = count;
+			entries.put(key, i);
+			count += size;
+			return i;
+		}
+
+		void write(DataOutputStream dest) throws IOException {
+			out.flush();
+			dest.writeShort(count);
+			dest.write(bytes.toByteArray());
+		}
+	}
+
+}
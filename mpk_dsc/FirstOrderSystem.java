@@ -0,0 +1,29 @@
+package mpk_dsc;
+
+/** A general first order system, y' = f(t,y), with the whole state in a
+ * single flat vector. Use this for systems that are not mechanical, or that
+ * mix mechanical states with others (filters, controllers, ...), so that
+ * everything is integrated together. Existing second order systems can be
+ * used here through SecondOrderAdapter. */
+public interface FirstOrderSystem {
+
+	/** @return the state vector */
+	public double[] getState();
+	
+	/** @param y the state vector */
+	public void setState(double[] y);
+	
+	/** @return the system time */
+	public double getTime();
+	
+	/** @param t the system time */
+	public void setTime(double t);
+	
+	/** Computes the dynamics of the system, writing the result into a buffer
+	 * provided by the caller so that nothing is allocated.
+	 * @param t = time
+	 * @param y = state vector
+	 * @param dy = derivative of the state vector (output) */
+	public void derivative(double t, double[] y, double[] dy);
+	
+}
@@ -1,20 +1,130 @@
 package mpk_dsc;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /** This class contains several different integration methods. Note 
  * that the symplectic methods assume that the state is of the form:
- * [x0,x1,...,xN,v0,v1,...,vN] where xi is position, and vi is velocity */
+ * [x0,x1,...,xN,v0,v1,...,vN] where xi is position, and vi is velocity. 
+ * All of the temporary arrays are allocated once, and the dynamics are 
+ * evaluated in place, so that taking a time step does not allocate memory. 
+ * The adaptive methods (DOPRI5, CASHKARP) choose their own step size to 
+ * meet absTol and relTol, using the number of sub-steps only as an initial
+ * guess for the very first step. 
+ * 
+ * The implicit methods (BEULER, MIDPOINT, SDIRK2) are for stiff systems,
+ * such as a heavily damped pendulum, where the explicit methods need a very
+ * small step to stay stable. They use Newton's method with the system's 
+ * Jacobian (or finite differences), and keep the factorization between 
+ * steps for as long as it keeps converging.
+ * 
+ * A FirstOrderSystem (y' = f(t,y) on one flat vector) can be integrated 
+ * too, with EULER, RK4 and the adaptive methods. Second order systems can 
+ * be combined with other states through SecondOrderAdapter.
+ * 
+ * Event functions can be registered with addEvent(). They are checked at 
+ * the end of every step, and any sign change is located within the step 
+ * (Ridder's method on the fraction of the step), so large steps can be used
+ * without losing the precise time of the event. 
+ * 
+ * With denseOutput enabled, the state can be interpolated anywhere inside
+ * the last step without evaluating the dynamics again. DOPRI5 uses its own
+ * 4th order continuous extension, and every other method uses Hermite 
+ * interpolation of the position (velocity is its derivative). sampleAt() uses this to let the integrator take its own
+ * step size while graphics and logging sample at arbitrary times. */
 public class Integrator {
 
 	private DynamicalSystem sys;
+	private FirstOrderSystem flatSys;  // Set instead of sys for first order systems
 
 	/** Determine which method to use */
 	public Method method = Method.EULER;
 
+	/** Absolute error tolerance, used by the adaptive methods */
+	public double absTol = 1e-6;
+	/** Relative error tolerance, used by the adaptive methods */
+	public double relTol = 1e-6;
+	/** Largest step that the adaptive methods are allowed to take */
+	public double maxStepSize = Double.POSITIVE_INFINITY;
+	
+	/** Set this if the acceleration depends only on the position (no 
+	 * damping or other velocity terms). SYM2 then re-uses the acceleration
+	 * at the end of each step as the start of the next, so that it costs 
+	 * one evaluation per step instead of two. The kept acceleration is 
+	 * dropped whenever the position of the system is changed from outside,
+	 * but discardAcceleration() must be called if the forces change some 
+	 * other way (a mass, a spring constant, ...). */
+	public boolean positionForces = false;
+	
+	/** Optional kernels for the RK4 stage updates. Only worth setting for 
+	 * large systems, such as ensembles. If null, plain loops are used. */
+	public ArrayKernels kernels = null;
+
 	/// Temp variables
 	private double[] p1, p2, p3, p4; // Positions throughout the interval
 	private double[] v1, v2, v3, v4; // Velocity throughout the interval
 	private double[] a1, a2, a3, a4; // Acceleration throughout the interval
 	private int n;  // Dimension of the state space
+	private boolean accelValid = false;  // a1 is the acceleration at p1 (see positionForces)
+	
+	/// Adaptive step-size variables (allocated on first use)
+	private double[][] kp, kv;  // Stage derivatives of position and velocity
+	private double hNext = 0;   // Step size suggested by the controller
+	private double errOld = 1e-4; // Error norm of the last accepted step
+	private double[][] tabA;    // Butcher tableau of the current method
+	private double[] tabB, tabE;
+	
+	/// Event detection
+	private ArrayList<EventFunction> events = new ArrayList<EventFunction>();
+	private double[] gOld = new double[0];  // Event functions at end of last step
+	private double[] pStart, vStart;  // State at the start of the current step
+	private double[] pEnd, vEnd;      // State at the end of the current step
+	private double[] pEvent, vEvent;  // State at a trial event location
+	private double eventFraction;     // Fraction of the step to the event
+	private double eventTime = Double.NaN;  // Time of the most recent event
+	private EventFunction lastEvent = null; // The most recent event
+	private boolean stopped = false;  // Did the last call stop at an event?
+	
+	/** Tolerance on the time of an event */
+	public double eventTol = 1e-10;
+	
+	private double tStart;  // System time at the start of timeStep()
+	private double tStep;   // Time elapsed since the start of timeStep()
+	private boolean singleStep = false;  // Return after one adaptive step
+	private boolean reuseFirstStage = false;  // First stage is still valid
+	
+	/** Store the information needed to interpolate within the last step */
+	public boolean denseOutput = false;
+	
+	/// Dense output (allocated on first use)
+	private double[][] dp, dv;  // Interpolation coefficients, for p and v
+	private boolean denseNative;  // DOPRI5 continuous extension, or Hermite?
+	private double tDense = Double.NaN;  // Time at the start of the last step
+	private double hDense = 0.0;  // Size of the last step
+	
+	/** Tolerance on the Newton iteration of the implicit methods, relative 
+	 * to the size of the stage velocity */
+	public double newtonTol = 1e-10;
+	
+	/// Implicit methods (allocated on first use)
+	private double[] jacP, jacV;  // Jacobian of the acceleration, stored by rows
+	private double[] lu;          // Factors of the Newton matrix
+	private int[] piv;            // Row swaps of the factorization
+	private double luH = Double.NaN;  // Value of h*gamma used for the factors
+	private boolean jacFresh = false; // Jacobian is from the start of this step
+	
+	/// First order systems (see FirstOrderSystem)
+	private double[] y1, y2, y3;  // State at the start, and trial states
+	private double[][] ky;        // Stage derivatives
+	private int nY;               // Dimension of the state
+	
+	/// Statistics
+	private long nEval = 0;     // Number of calls to the dynamics
+	private long nAccept = 0;   // Number of accepted adaptive steps
+	private long nReject = 0;   // Number of rejected adaptive steps
+	private long nJacobian = 0; // Number of Jacobian evaluations
+	private long nFactor = 0;   // Number of factorizations of the Newton matrix
+	private long nNewtonFail = 0; // Number of implicit steps that did not converge
 	
 	/** Create a new integrator */
 	public Integrator(DynamicalSystem dynamicalSystem){
@@ -32,15 +142,51 @@ public class Integrator {
 		a2 = new double[n];
 		a3 = new double[n];
 		a4 = new double[n];
+		pStart = new double[n];
+		vStart = new double[n];
+		pEnd = new double[n];
+		vEnd = new double[n];
+		pEvent = new double[n];
+		vEvent = new double[n];
 		
 	}
+	
+	/** Create a new integrator for a first order system. This works on the 
+	 * flat state vector directly, and can use EULER, RK4, DOPRI5 or CASHKARP.
+	 * Events and dense output are only available for second order systems. */
+	public Integrator(FirstOrderSystem firstOrderSystem){
+		this.flatSys = firstOrderSystem;
+		nY = firstOrderSystem.getState().length;
+		y1 = new double[nY];
+		y2 = new double[nY];
+		y3 = new double[nY];
+		ky = new double[4][nY];
+	}
 
 	/** Select which algorithm to use */
 	public enum Method {
 		EULER,   // Euler's method 
 		SYM1,  // Symplectic Euler
 		RK4,   // 4th-order Runge-Kutta
-		SYM2   // Symplectic 2nd order (Verlet)
+		SYM2,  // Symplectic 2nd order (Verlet)
+		SYM4,  // Symplectic 4th order (Yoshida triple jump, same as Forest-Ruth)
+		SYM4BM,  // Symplectic 4th order (Blanes-Moan, optimized 6-stage)
+		SYM6,  // Symplectic 6th order (Yoshida)
+		BEULER,  // Backward Euler, implicit 1st order
+		MIDPOINT,  // Implicit midpoint, 2nd order (also symplectic)
+		SDIRK2,  // 2-stage singly diagonally implicit Runge-Kutta, 2nd order
+		DOPRI5,   // Dormand-Prince 5(4), adaptive step
+		CASHKARP  // Cash-Karp 5(4), adaptive step
+	}
+	
+	/** @return true if the method selects its own step size */
+	public boolean isAdaptive(){
+		return method == Method.DOPRI5 || method == Method.CASHKARP;
+	}
+	
+	/** @return true if the method solves for its stages with Newton's method */
+	public boolean isImplicit(){
+		return method == Method.BEULER || method == Method.MIDPOINT || method == Method.SDIRK2;
 	}
 
 	/** Take a single time step of the system */
@@ -53,77 +199,1091 @@ public class Integrator {
 	 * @param nSubSteps = number of steps to take over interval*/
 	public void timeStep(double DT, int nSubSteps){
 
-		p1 = sys.getPos();
-		v1 = sys.getVel();
+		if (flatSys != null){
+			flatTimeStep(DT, nSubSteps);
+			return;
+		}
+		
+		loadState();
 
 		double dt = DT/nSubSteps;
 
-		for (int i=0; i<nSubSteps; i++){
+		if (isAdaptive()){
+			stopped = adaptiveStep(DT, dt);
+		} else if (events.isEmpty()){
+			for (int i=0; i<nSubSteps; i++){
+				fixedStep(dt);
+				tStep += dt;
+			}
+		} else {
+			for (int i=0; i<nSubSteps && !stopped; i++){
+				stopped = fixedStepWithEvents(dt);
+			}
+		}
+
+		storeState(stopped ? tStep : DT);
+	}
+	
+	/** Copy the state of the system into p1 and v1, so that the system is 
+	 * only touched once per call */
+	private void loadState(){
+		if (accelValid && !Arrays.equals(sys.getPos(), p1)){  // Moved since the last call
+			accelValid = false;
+		}
+		System.arraycopy(sys.getPos(), 0, p1, 0, n);
+		System.arraycopy(sys.getVel(), 0, v1, 0, n);
+		tStart = sys.getTime();
+		tStep = 0.0;
+		stopped = false;
+	}
+	
+	/** Copy p1 and v1 back into the system
+	 * @param elapsed = time that has passed since loadState() */
+	private void storeState(double elapsed){
+		sys.setPos(p1);
+		sys.setVel(v1);
+		sys.setTime(tStart + elapsed);
+	}
+	
+	/** Take a single step with one of the fixed step methods, starting from
+	 * and writing back to p1 and v1
+	 * @param dt = the size of the step */
+	private void fixedStep(double dt){
 
-			a1 = sys.dynamics(p1,v1);
+		/// The implicit methods evaluate their own stages, and only need the
+		/// acceleration at the start for dense output
+		boolean reuse = accelValid && positionForces && method == Method.SYM2;
+		accelValid = false;
+		if (!reuse && (!isImplicit() || denseOutput)) evaluate(p1,v1,a1);
+		if (denseOutput) saveDenseStart(dt);
 
-			switch (method) {
-			case EULER:
-				for (int j=0; j<n; j++){
-					p1[j] = p1[j] + dt*v1[j];
-					v1[j] = v1[j] + dt*a1[j];
-				}
+		switch (method) {
+		case EULER:
+			for (int j=0; j<n; j++){
+				p1[j] = p1[j] + dt*v1[j];
+				v1[j] = v1[j] + dt*a1[j];
+			}
+			break;
+		case RK4:   // 4th-order Runge-Kutta
+			
+			if (kernels != null){  // Same as below, but using the kernels
+				kernels.axpy(p1, 0.5*dt, v1, p2, n);
+				kernels.axpy(v1, 0.5*dt, a1, v2, n);
+				evaluate(p2, v2, a2);
+				kernels.axpy(p1, 0.5*dt, v2, p3, n);
+				kernels.axpy(v1, 0.5*dt, a2, v3, n);
+				evaluate(p3, v3, a3);
+				kernels.axpy(p1, dt, v3, p4, n);
+				kernels.axpy(v1, dt, a3, v4, n);
+				evaluate(p4, v4, a4);
+				kernels.rk4(p1, dt, v1, v2, v3, v4, n);
+				kernels.rk4(v1, dt, a1, a2, a3, a4, n);
 				break;
-			case RK4:   // 4th-order Runge-Kutta
-				
-				/// First estimate of the midpoint:
-				for (int j=0; j<n; j++) {
-					p2[j] = p1[j] + 0.5*dt*v1[j];
-					v2[j] = v1[j] + 0.5*dt*a1[j];
-				} a2 = sys.dynamics(p2, v2);
-				
-				/// Second estimate of the midpoint:
-				for (int j=0; j<n; j++) {
-					p3[j] = p1[j] + 0.5*dt*v2[j];
-					v3[j] = v1[j] + 0.5*dt*a2[j];
-				} a3 = sys.dynamics(p3, v3);
-				
-				/// First estimate of the endpoint:
-				for (int j=0; j<n; j++) {
-					p4[j] = p1[j] + dt*v3[j];
-					v4[j] = v1[j] + dt*a3[j];
-				} a4 = sys.dynamics(p4, v4);
-
-				/// Final estimate of the endpoint:
-				for (int j=0; j<n; j++) {
-					p1[j] = p1[j] + (dt/6.0)*(v1[j] + 2.0*v2[j] + 2.0*v3[j] + v4[j]);
-					v1[j] = v1[j] + (dt/6.0)*(a1[j] + 2.0*a2[j] + 2.0*a3[j] + a4[j]);
+			}
+			
+			/// First estimate of the midpoint:
+			for (int j=0; j<n; j++) {
+				p2[j] = p1[j] + 0.5*dt*v1[j];
+				v2[j] = v1[j] + 0.5*dt*a1[j];
+			} evaluate(p2, v2, a2);
+			
+			/// Second estimate of the midpoint:
+			for (int j=0; j<n; j++) {
+				p3[j] = p1[j] + 0.5*dt*v2[j];
+				v3[j] = v1[j] + 0.5*dt*a2[j];
+			} evaluate(p3, v3, a3);
+			
+			/// First estimate of the endpoint:
+			for (int j=0; j<n; j++) {
+				p4[j] = p1[j] + dt*v3[j];
+				v4[j] = v1[j] + dt*a3[j];
+			} evaluate(p4, v4, a4);
+
+			/// Final estimate of the endpoint:
+			for (int j=0; j<n; j++) {
+				p1[j] = p1[j] + (dt/6.0)*(v1[j] + 2.0*v2[j] + 2.0*v3[j] + v4[j]);
+				v1[j] = v1[j] + (dt/6.0)*(a1[j] + 2.0*a2[j] + 2.0*a3[j] + a4[j]);
+			}
+			break;
+			
+		case SYM1:
+			for (int j=0; j<n; j++){
+				v1[j] = v1[j] + dt*a1[j];
+				p1[j] = p1[j] + dt*v1[j]; // Uses updated velocity!
+			}
+			break;
+			
+		case SYM2:   // Second Order Symplectic Integrator (Verlet)
+			// http://en.wikipedia.org/wiki/Verlet_integration
+			for (int j=0; j<n; j++){
+				p2[j] = p1[j] + dt*v1[j] + 0.5*dt*dt*a1[j]; 
+				v2[j] = v1[j] + dt*a1[j];
+			}
+			evaluate(p2,v2,a2);
+			for (int j=0; j<n; j++){
+				p1[j] = p2[j];
+				v1[j] = v1[j] + 0.5*dt*(a1[j]+a2[j]);
+			}
+			if (positionForces){  // a2 is the acceleration at the new position
+				double[] tmp = a1; a1 = a2; a2 = tmp;
+				accelValid = true;
+			}
+			break;
+			
+		case SYM4:
+			kickDrift(dt, SYM4_KICK, SYM4_DRIFT);
+			break;
+			
+		case SYM4BM:
+			kickDrift(dt, SYM4BM_KICK, SYM4BM_DRIFT);
+			break;
+			
+		case SYM6:
+			kickDrift(dt, SYM6_KICK, SYM6_DRIFT);
+			break;
+			
+		case BEULER:
+			implicitStep(dt, BEULER_A, BEULER_B);
+			break;
+			
+		case MIDPOINT:
+			implicitStep(dt, MIDPOINT_A, MIDPOINT_B);
+			break;
+			
+		case SDIRK2:
+			implicitStep(dt, SDIRK2_A, SDIRK2_B);
+			break;
+			
+		default:
+			throw new IllegalStateException("Not a fixed step method: " + method);
+			
+		}
+		
+		if (denseOutput) saveDenseEnd(p1, v1);
+
+	}
+	
+	/** Higher order symplectic method, written as an alternating sequence 
+	 * of velocity updates (kicks) and position updates (drifts):
+	 * kick[0], drift[0], kick[1], ... , drift[s-1], kick[s]
+	 * The acceleration at the start of the step must already be in a1, and 
+	 * each acceleration is used by two consecutive kicks. The coefficients 
+	 * assume that the acceleration depends only on position, as for an 
+	 * undamped Pendulum. If it also depends on velocity (damping, or the 
+	 * coupling terms of DoublePendulum) these methods drop to first order,
+	 * and SYM2 or one of the Runge-Kutta methods should be used instead.
+	 * @param dt = the size of the step
+	 * @param kick = fraction of dt for each velocity update
+	 * @param drift = fraction of dt for each position update */
+	private void kickDrift(double dt, double[] kick, double[] drift){
+		int s = drift.length;
+		for (int i=0; i<s; i++){
+			double hv = kick[i]*dt;
+			double hp = drift[i]*dt;
+			for (int j=0; j<n; j++){
+				v1[j] = v1[j] + hv*a1[j];
+				p1[j] = p1[j] + hp*v1[j];
+			}
+			evaluate(p1,v1,a1);
+		}
+		double hv = kick[s]*dt;
+		for (int j=0; j<n; j++){
+			v1[j] = v1[j] + hv*a1[j];
+		}
+	}
+	
+	/** Converts a composition of Verlet steps, with fractional step sizes 
+	 * w, into the kick-drift form used by kickDrift().
+	 * @return {kick, drift} */
+	private static double[][] verletComposition(double[] w){
+		int s = w.length;
+		double[] kick = new double[s+1];
+		double[] drift = new double[s];
+		for (int i=0; i<s; i++){
+			kick[i] += 0.5*w[i];
+			kick[i+1] += 0.5*w[i];
+			drift[i] = w[i];
+		}
+		return new double[][] {kick, drift};
+	}
+	
+	/// Yoshida (1990) 4th order triple jump. Forest-Ruth (1990) is the same
+	/// composition, so it is not listed separately.
+	private static final double CBRT2 = Math.cbrt(2.0);
+	private static final double[][] SYM4_TABLE = verletComposition(new double[] 
+			{1.0/(2.0-CBRT2), -CBRT2/(2.0-CBRT2), 1.0/(2.0-CBRT2)});
+	private static final double[] SYM4_KICK = SYM4_TABLE[0];
+	private static final double[] SYM4_DRIFT = SYM4_TABLE[1];
+	
+	/// Blanes & Moan (2002), 4th order, 6 stages, for forces that depend on 
+	/// position (method SRKN_6^b). More work than the triple jump, but the 
+	/// error constant is much smaller.
+	private static final double BM_B1 = 0.0829844064174052;
+	private static final double BM_B2 = 0.396309801498368;
+	private static final double BM_B3 = -0.0390563049223486;
+	private static final double BM_B4 = 1.0 - 2.0*(BM_B1 + BM_B2 + BM_B3);
+	private static final double BM_A1 = 0.245298957184271;
+	private static final double BM_A2 = 0.604872665711080;
+	private static final double BM_A3 = 0.5 - (BM_A1 + BM_A2);
+	private static final double[] SYM4BM_KICK = {BM_B1, BM_B2, BM_B3, BM_B4, BM_B3, BM_B2, BM_B1};
+	private static final double[] SYM4BM_DRIFT = {BM_A1, BM_A2, BM_A3, BM_A3, BM_A2, BM_A1};
+	
+	/// Yoshida (1990) 6th order, solution A: seven Verlet steps
+	private static final double Y6_W1 = -1.17767998417887;
+	private static final double Y6_W2 = 0.235573213359357;
+	private static final double Y6_W3 = 0.784513610477560;
+	private static final double Y6_W0 = 1.0 - 2.0*(Y6_W1 + Y6_W2 + Y6_W3);
+	private static final double[][] SYM6_TABLE = verletComposition(new double[] 
+			{Y6_W3, Y6_W2, Y6_W1, Y6_W0, Y6_W1, Y6_W2, Y6_W3});
+	private static final double[] SYM6_KICK = SYM6_TABLE[0];
+	private static final double[] SYM6_DRIFT = SYM6_TABLE[1];
+	
+	/** Evaluate the dynamics, keeping track of how many times this is done */
+	private void evaluate(double[] p, double[] v, double[] a){
+		nEval++;
+		sys.dynamics(p,v,a);
+	}
+	
+	///////////////////////////////////////////////////////////////////////////
+	////                 Implicit (diagonally implicit RK)                 ////
+	///////////////////////////////////////////////////////////////////////////
+	
+	/// Each method has the same value on the diagonal of every stage, so a 
+	/// single factorization of the Newton matrix serves the whole step.
+	private static final double[][] BEULER_A = {{1.0}};
+	private static final double[] BEULER_B = {1.0};
+	private static final double[][] MIDPOINT_A = {{0.5}};
+	private static final double[] MIDPOINT_B = {1.0};
+	
+	/// Alexander (1977), L-stable and stiffly accurate
+	private static final double SDIRK_G = 1.0 - Math.sqrt(0.5);
+	private static final double[][] SDIRK2_A = {{SDIRK_G}, {1.0 - SDIRK_G, SDIRK_G}};
+	private static final double[] SDIRK2_B = {1.0 - SDIRK_G, SDIRK_G};
+	
+	private static final int MAX_NEWTON = 10;  // Iterations before giving up
+	private static final double JAC_EPS = 1.5e-8;  // Finite difference step
+	
+	/** Take a step with a diagonally implicit Runge-Kutta method, from and 
+	 * to p1 and v1. The Jacobian and the factorization of the Newton matrix
+	 * are kept from step to step, and only updated when h changes or the 
+	 * Newton iteration stops converging. If even a fresh Jacobian does not
+	 * converge, the step is split in half. If it still fails when the step
+	 * cannot be split any more, p1 and v1 are left where the last step that
+	 * converged put them, and the failure is counted by getNewtonFailures().
+	 * @param h = the size of the step
+	 * @param A = lower triangle of the Butcher tableau (same diagonal)
+	 * @param B = weights of the stages
+	 * @return false if the Newton iteration failed */
+	private boolean implicitStep(double h, double[][] A, double[] B){
+		if (h == 0.0) return true;  // The stage equations divide by h
+		int s = B.length;
+		allocateStages(s);
+		if (jacP == null){
+			jacP = new double[n*n];
+			jacV = new double[n*n];
+			lu = new double[n*n];
+			piv = new int[n];
+			updateJacobian();
+		}
+		double hg = h*A[0][0];
+		boolean ok = (hg == luH || factor(hg)) && solveStages(h, A);
+		if (!ok && !jacFresh){  // The Jacobian may be out of date
+			updateJacobian();
+			ok = factor(hg) && solveStages(h, A);
+		}
+		if (!ok){
+			if (Math.abs(h) > 1e-12*(1.0 + Math.abs(tStart + tStep))){
+				return implicitStep(0.5*h, A, B) && implicitStep(0.5*h, A, B);
+			}
+			nNewtonFail++;
+			return false;  // Leave p1 and v1 alone, the stages are garbage
+		}
+		for (int i=0; i<s; i++){
+			double hb = h*B[i];
+			for (int j=0; j<n; j++){
+				p1[j] = p1[j] + hb*kp[i][j];
+				v1[j] = v1[j] + hb*kv[i][j];
+			}
+		}
+		jacFresh = false;
+		return true;
+	}
+	
+	/** Solve for every stage of an implicit step from p1 and v1. For the 
+	 * second order system, the position of each stage follows from its 
+	 * velocity, P = Pc + h*g*V, so Newton's method only needs to be run on 
+	 * the velocity, with the n by n matrix: I - h*g*dA/dv - (h*g)^2*dA/dp.
+	 * @return true if every stage converged */
+	private boolean solveStages(double h, double[][] A){
+		double hg = h*A[0][0];
+		for (int i=0; i<A.length; i++){
+			
+			/// Explicit part of the stage, from the stages before it
+			for (int j=0; j<n; j++){
+				p2[j] = p1[j];
+				v2[j] = v1[j];
+				v3[j] = (i == 0) ? v1[j] : kp[i-1][j];  // Initial guess
+			}
+			for (int k=0; k<i; k++){
+				double ha = h*A[i][k];
+				for (int j=0; j<n; j++){
+					p2[j] = p2[j] + ha*kp[k][j];
+					v2[j] = v2[j] + ha*kv[k][j];
 				}
-				break;
-				
-			case SYM1:
+			}
+			
+			/// Simplified Newton iteration on the stage velocity
+			double normOld = Double.POSITIVE_INFINITY;
+			boolean converged = false;
+			for (int iter=0; iter<MAX_NEWTON && !converged; iter++){
 				for (int j=0; j<n; j++){
-					v1[j] = v1[j] + dt*a1[j];
-					p1[j] = p1[j] + dt*v1[j]; // Uses updated velocity!
+					p3[j] = p2[j] + hg*v3[j];
 				}
-				break;
-				
-			case SYM2:   // Second Order Symplectic Integrator (Verlet)
-				// http://en.wikipedia.org/wiki/Verlet_integration
+				evaluate(p3, v3, a3);
 				for (int j=0; j<n; j++){
-					p2[j] = p1[j] + dt*v1[j] + 0.5*dt*dt*a1[j]; 
-					v2[j] = v1[j] + dt*a1[j];
+					a4[j] = v2[j] + hg*a3[j] - v3[j];  // Minus the residual
 				}
-				a2 = sys.dynamics(p2,v2);
+				MyMath.luSolve(lu, n, piv, a4);
+				double norm = 0.0;
 				for (int j=0; j<n; j++){
-					p1[j] = p2[j];
-					v1[j] = v1[j] + 0.5*dt*(a1[j]+a2[j]);
+					v3[j] = v3[j] + a4[j];
+					norm = Math.max(norm, Math.abs(a4[j])/(1.0 + Math.abs(v3[j])));
 				}
-				break;
-				
-				
+				if (!(norm < normOld)) return false;  // Diverging (or NaN)
+				converged = norm <= newtonTol;
+				normOld = norm;
+			}
+			if (!converged) return false;
+			
+			/// Stage derivatives, from the converged stage equations
+			for (int j=0; j<n; j++){
+				kp[i][j] = v3[j];
+				kv[i][j] = (v3[j] - v2[j])/hg;
+			}
+		}
+		return true;
+	}
+	
+	/** Evaluate the Jacobian of the acceleration at p1 and v1, using the 
+	 * system's own Jacobian if it has one, or finite differences if not */
+	private void updateJacobian(){
+		if (!sys.jacobian(p1, v1, jacP, jacV)){
+			evaluate(p1, v1, a4);
+			System.arraycopy(p1, 0, p2, 0, n);
+			System.arraycopy(v1, 0, v2, 0, n);
+			for (int j=0; j<n; j++){
+				double eps = JAC_EPS*Math.max(1.0, Math.abs(p1[j]));
+				p2[j] = p1[j] + eps;
+				evaluate(p2, v1, a3);
+				p2[j] = p1[j];
+				for (int i=0; i<n; i++){
+					jacP[i*n+j] = (a3[i] - a4[i])/eps;
+				}
+				eps = JAC_EPS*Math.max(1.0, Math.abs(v1[j]));
+				v2[j] = v1[j] + eps;
+				evaluate(p1, v2, a3);
+				v2[j] = v1[j];
+				for (int i=0; i<n; i++){
+					jacV[i*n+j] = (a3[i] - a4[i])/eps;
+				}
+			}
+		}
+		nJacobian++;
+		jacFresh = true;
+		luH = Double.NaN;
+	}
+	
+	/** Form and factor the Newton matrix: I - hg*dA/dv - hg^2*dA/dp
+	 * @return false if it is singular */
+	private boolean factor(double hg){
+		for (int i=0; i<n; i++){
+			for (int j=0; j<n; j++){
+				int k = i*n+j;
+				lu[k] = (i == j ? 1.0 : 0.0) - hg*jacV[k] - hg*hg*jacP[k];
 			}
+		}
+		nFactor++;
+		if (MyMath.luDecompose(lu, n, piv)){
+			luH = hg;
+			return true;
+		}
+		luH = Double.NaN;
+		return false;
+	}
+	
+	///////////////////////////////////////////////////////////////////////////
+	////                  Adaptive (embedded) Runge-Kutta                  ////
+	///////////////////////////////////////////////////////////////////////////
+	
+	/// Dormand-Prince 5(4). The last stage is evaluated at the new state, so 
+	/// it is re-used as the first stage of the next step (FSAL).
+	private static final double[][] DOPRI5_A = {
+		{},
+		{1.0/5.0},
+		{3.0/40.0, 9.0/40.0},
+		{44.0/45.0, -56.0/15.0, 32.0/9.0},
+		{19372.0/6561.0, -25360.0/2187.0, 64448.0/6561.0, -212.0/729.0},
+		{9017.0/3168.0, -355.0/33.0, 46732.0/5247.0, 49.0/176.0, -5103.0/18656.0},
+		{35.0/384.0, 0.0, 500.0/1113.0, 125.0/192.0, -2187.0/6784.0, 11.0/84.0}};
+	private static final double[] DOPRI5_B = 
+		{35.0/384.0, 0.0, 500.0/1113.0, 125.0/192.0, -2187.0/6784.0, 11.0/84.0, 0.0};
+	private static final double[] DOPRI5_E = // Difference between 5th and 4th order weights
+		{71.0/57600.0, 0.0, -71.0/16695.0, 71.0/1920.0, -17253.0/339200.0, 22.0/525.0, -1.0/40.0};
+	
+	/// Cash-Karp 5(4). Not FSAL: the first stage of the next step must be 
+	/// evaluated, but it is still shared by any rejected attempts.
+	private static final double[][] CASHKARP_A = {
+		{},
+		{1.0/5.0},
+		{3.0/40.0, 9.0/40.0},
+		{3.0/10.0, -9.0/10.0, 6.0/5.0},
+		{-11.0/54.0, 5.0/2.0, -70.0/27.0, 35.0/27.0},
+		{1631.0/55296.0, 175.0/512.0, 575.0/13824.0, 44275.0/110592.0, 253.0/4096.0}};
+	private static final double[] CASHKARP_B = 
+		{37.0/378.0, 0.0, 250.0/621.0, 125.0/594.0, 0.0, 512.0/1771.0};
+	private static final double[] CASHKARP_E = 
+		{37.0/378.0 - 2825.0/27648.0, 0.0, 250.0/621.0 - 18575.0/48384.0, 
+		125.0/594.0 - 13525.0/55296.0, -277.0/14336.0, 512.0/1771.0 - 0.25};
+	
+	/// Step size controller constants
+	private static final double SAFETY = 0.9;
+	private static final double MIN_SCALE = 0.2;
+	private static final double MAX_SCALE = 5.0;
+	
+	/** Integrate p1 and v1 forward by DT, letting the embedded error estimate
+	 * choose the step size. Solution is propagated with the 5th order weights.
+	 * A first order system is integrated the same way, on y1, with only the
+	 * stage evaluation changed (see flatEmbeddedStep).
+	 * @param DT = the total time of integration
+	 * @param dtGuess = initial step size, if the controller has no history
+	 * @return true if an event stopped the integration early */
+	private boolean adaptiveStep(double DT, double dtGuess){
+		accelValid = false;  // a1 is not kept up to date
 
+		boolean fsal;
+		if (method == Method.DOPRI5){
+			tabA = DOPRI5_A; tabB = DOPRI5_B; tabE = DOPRI5_E; fsal = true;
+		} else {
+			tabA = CASHKARP_A; tabB = CASHKARP_B; tabE = CASHKARP_E; fsal = false;
+		}
+		int nStage = tabB.length;
+		allocateStages(nStage);
+		
+		/// The first stage is always evaluated at the start of the interval, 
+		/// since the parameters of the system may have changed since last call
+		if (!reuseFirstStage){
+			firstStage();
 		}
 
-		sys.setPos(p1);
-		sys.setVel(v1);
-		sys.setTime(sys.getTime() + DT);
+		double h = hNext > 0 ? hNext : dtGuess;
+		double hMin = 1e-12*Math.abs(singleStep ? dtGuess : DT);
+		boolean lastStep = false;
+		
+		while (!lastStep){
+			if (h > maxStepSize) h = maxStepSize;
+			double hTry = h;
+			if (tStep + h >= DT - hMin){  // Land exactly on the end of the interval
+				h = DT - tStep;
+				lastStep = true;
+			}
+
+			double err = (flatSys != null) ? flatEmbeddedStep(tStart + tStep, h) : embeddedStep(h);
+
+			if (err <= 1.0 || h <= hMin){  /// Accept the step
+				if (err > 1.0) {
+					System.out.println("WARNING -- Integrator step size underflow!");
+				}
+				nAccept++;
+				
+				/// PI controller (Hairer, Norsett & Wanner, II.4)
+				double errAcc = Math.max(err, 1e-10);
+				double scale = SAFETY*Math.pow(errAcc, -0.7/5.0)*Math.pow(errOld, 0.4/5.0);
+				scale = Math.min(MAX_SCALE, Math.max(MIN_SCALE, scale));
+				errOld = errAcc;
+				hNext = hTry*scale;  // Ignore truncation at the end of the interval
+				
+				int iEvent = events.isEmpty() ? -1 : findEvent(p2, v2, h);
+				if (iEvent >= 0){  /// Stop at the event, then restart from it
+					double hEvent = eventFraction*h;
+					retakeStep(hEvent);
+					if (denseOutput) saveDenseAdaptive(hEvent);
+					System.arraycopy(pEvent, 0, p1, 0, n);
+					System.arraycopy(vEvent, 0, v1, 0, n);
+					tStep += hEvent;
+					if (fireEvent(iEvent)) return true;
+					firstStage();
+					if (singleStep) return false;
+					lastStep = false;
+					h = hNext;
+					continue;
+				}
+				
+				if (denseOutput && flatSys == null) saveDenseAdaptive(h);
+				tStep += h;
+				if (flatSys != null){
+					System.arraycopy(y2, 0, y1, 0, nY);
+				} else {
+					System.arraycopy(p2, 0, p1, 0, n);
+					System.arraycopy(v2, 0, v1, 0, n);
+				}
+				if (fsal){  // Last stage was evaluated at the new state
+					swapStages(0, nStage-1);
+				} else if (!lastStep){
+					firstStage();
+				}
+				if (singleStep) return false;
+				h = hNext;
+			} else {  /// Reject the step and try again with a smaller one
+				nReject++;
+				lastStep = false;
+				double scale = SAFETY*Math.pow(err, -1.0/5.0);
+				h = h*Math.max(MIN_SCALE, scale);
+			}
+		}
+		return false;
+	}
+	
+	/** Take a single embedded Runge-Kutta step from p1 and v1, using the 
+	 * current tableau. The first stage must already be in kp[0] and kv[0].
+	 * The new state is written to p2 and v2.
+	 * @param h = the size of the step
+	 * @return the scaled error norm (accept the step if less than one) */
+	private double embeddedStep(double h){
+		int nStage = tabB.length;
+		for (int s=1; s<nStage; s++){
+			stageState(p1, kp, s, h, p2, n);
+			stageState(v1, kv, s, h, v2, n);
+			System.arraycopy(v2, 0, kp[s], 0, n);
+			evaluate(p2, v2, kv[s]);
+		}
+		double err = solution(p1, kp, h, p2, n) + solution(v1, kv, h, v2, n);
+		return Math.sqrt(err/(2*n));
+	}
+	
+	/** Evaluate the first stage of an embedded step at the current state */
+	private void firstStage(){
+		if (flatSys != null){
+			derivative(tStart + tStep, y1, ky[0]);
+		} else {
+			System.arraycopy(v1, 0, kp[0], 0, n);
+			evaluate(p1, v1, kv[0]);
+		}
+	}
+	
+	/** Swap two of the stage derivatives (to re-use the last one as the first) */
+	private void swapStages(int i, int j){
+		if (flatSys != null){
+			double[] tmp = ky[i]; ky[i] = ky[j]; ky[j] = tmp;
+		} else {
+			double[] tmp = kp[i]; kp[i] = kp[j]; kp[j] = tmp;
+			tmp = kv[i]; kv[i] = kv[j]; kv[j] = tmp;
+		}
+	}
+	
+	/** State at an interior stage of the current tableau, for one part of the
+	 * state: y = y0 + h*sum(tabA[s][i]*k[i])
+	 * @param s = the stage
+	 * @param len = number of elements */
+	private void stageState(double[] y0, double[][] k, int s, double h, double[] y, int len){
+		double[] a = tabA[s];
+		for (int j=0; j<len; j++){
+			double dy = 0;
+			for (int i=0; i<s; i++){
+				dy += a[i]*k[i][j];
+			}
+			y[j] = y0[j] + h*dy;
+		}
+	}
+	
+	/** Solution of the current tableau, and its error estimate, for one part
+	 * of the state: y = y0 + h*sum(tabB[i]*k[i])
+	 * @param len = number of elements
+	 * @return sum of the squared errors, scaled by the tolerances */
+	private double solution(double[] y0, double[][] k, double h, double[] y, int len){
+		int nStage = tabB.length;
+		double err = 0;
+		for (int j=0; j<len; j++){
+			double dy = 0, xy = 0;
+			for (int i=0; i<nStage; i++){
+				dy += tabB[i]*k[i][j];
+				xy += tabE[i]*k[i][j];
+			}
+			y[j] = y0[j] + h*dy;
+			double sy = absTol + relTol*Math.max(Math.abs(y0[j]), Math.abs(y[j]));
+			err += (h*xy/sy)*(h*xy/sy);
+		}
+		return err;
+	}
+	
+	///////////////////////////////////////////////////////////////////////////
+	////                        First order systems                        ////
+	///////////////////////////////////////////////////////////////////////////
+	
+	/** Integrate a first order system, working directly on its flat state.
+	 * Same as timeStep() for second order systems, without events. */
+	private void flatTimeStep(double DT, int nSubSteps){
+		System.arraycopy(flatSys.getState(), 0, y1, 0, nY);
+		tStart = flatSys.getTime();
+		tStep = 0.0;
+		
+		double dt = DT/nSubSteps;
+		if (isAdaptive()){
+			adaptiveStep(DT, dt);
+		} else {
+			for (int i=0; i<nSubSteps; i++){
+				flatFixedStep(tStart + tStep, dt);
+				tStep += dt;
+			}
+		}
+		
+		flatSys.setState(y1);
+		flatSys.setTime(tStart + DT);
+	}
+	
+	/** Take a single fixed step of a first order system, from and to y1 */
+	private void flatFixedStep(double t, double dt){
+		double[] k1 = ky[0], k2 = ky[1], k3 = ky[2], k4 = ky[3];
+		derivative(t, y1, k1);
+		switch (method) {
+		case EULER:
+			for (int j=0; j<nY; j++){
+				y1[j] = y1[j] + dt*k1[j];
+			}
+			break;
+		case RK4:
+			for (int j=0; j<nY; j++) y2[j] = y1[j] + 0.5*dt*k1[j];
+			derivative(t + 0.5*dt, y2, k2);
+			for (int j=0; j<nY; j++) y2[j] = y1[j] + 0.5*dt*k2[j];
+			derivative(t + 0.5*dt, y2, k3);
+			for (int j=0; j<nY; j++) y2[j] = y1[j] + dt*k3[j];
+			derivative(t + dt, y2, k4);
+			for (int j=0; j<nY; j++){
+				y1[j] = y1[j] + (dt/6.0)*(k1[j] + 2.0*k2[j] + 2.0*k3[j] + k4[j]);
+			}
+			break;
+		default:
+			throw new IllegalStateException("Not available for first order systems: " + method);
+		}
+	}
+	
+	/** Same as embeddedStep(), for a first order system. The first stage 
+	 * must already be in ky[0], and the new state is written to y2.
+	 * @return the scaled error norm (accept the step if less than one) */
+	private double flatEmbeddedStep(double t, double h){
+		int nStage = tabB.length;
+		for (int s=1; s<nStage; s++){
+			double c = 0;
+			for (int k=0; k<s; k++) c += tabA[s][k];  // Row sum gives the stage time
+			stageState(y1, ky, s, h, y2, nY);
+			derivative(t + c*h, y2, ky[s]);
+		}
+		return Math.sqrt(solution(y1, ky, h, y2, nY)/nY);
+	}
+	
+	/** Evaluate a first order system, keeping track of how many times */
+	private void derivative(double t, double[] y, double[] dy){
+		nEval++;
+		flatSys.derivative(t, y, dy);
+	}
+	
+	/** Events and dense output need the position and velocity */
+	private void requireSecondOrder(){
+		if (sys == null){
+			throw new IllegalStateException("Only available for second order systems");
+		}
+	}
+	
+	///////////////////////////////////////////////////////////////////////////
+	////                         Event detection                           ////
+	///////////////////////////////////////////////////////////////////////////
+	
+	/** Start monitoring an event function. Its sign at the current state of 
+	 * the system is used as the reference for the first step. */
+	public void addEvent(EventFunction event){
+		requireSecondOrder();
+		events.add(event);
+		gOld = new double[events.size()];
+		for (int i=0; i<gOld.length; i++){
+			gOld[i] = events.get(i).g(sys.getTime(), sys.getPos(), sys.getVel());
+		}
+	}
+	
+	/** Stop monitoring an event function */
+	public void removeEvent(EventFunction event){
+		int i = events.indexOf(event);
+		if (i < 0) return;
+		events.remove(i);
+		double[] g = new double[events.size()];
+		for (int j=0; j<g.length; j++){
+			g[j] = gOld[j < i ? j : j+1];
+		}
+		gOld = g;
+	}
+	
+	/** @return true if the last call to timeStep() was stopped by an event */
+	public boolean isStopped(){
+		return stopped;
+	}
+	
+	/** @return the time of the most recent event, or NaN if none */
+	public double getEventTime(){
+		return eventTime;
+	}
+	
+	/** @return the most recent event to occur, or null if none */
+	public EventFunction getLastEvent(){
+		return lastEvent;
+	}
+	
+	/** Take a fixed step, checking the events at the end of it. If an event 
+	 * occurs, the state is moved to the event and the rest of the step is 
+	 * taken afterwards (unless the event stops the integration).
+	 * @param dt = the size of the step
+	 * @return true if an event stopped the integration */
+	private boolean fixedStepWithEvents(double dt){
+		double remaining = dt;
+		while (remaining > 0){
+			System.arraycopy(p1, 0, pStart, 0, n);
+			System.arraycopy(v1, 0, vStart, 0, n);
+			fixedStep(remaining);
+			int iEvent = findEvent(p1, v1, remaining);
+			if (iEvent < 0){
+				tStep += remaining;
+				return false;
+			}
+			double hEvent = eventFraction*remaining;
+			retakeStep(hEvent);
+			System.arraycopy(pEvent, 0, p1, 0, n);
+			System.arraycopy(vEvent, 0, v1, 0, n);
+			tStep += hEvent;
+			remaining -= hEvent;
+			if (fireEvent(iEvent)) return true;
+		}
+		return false;
+	}
+	
+	/** Check each event function at the end of the step. For any that have
+	 * changed sign, locate the crossing, and keep the earliest one. The sign
+	 * at the end of the step becomes the reference for the next step.
+	 * @param p = position at the end of the step
+	 * @param v = velocity at the end of the step
+	 * @param h = the size of the step
+	 * @return index of the earliest event (eventFraction is set), or -1 */
+	private int findEvent(double[] p, double[] v, double h){
+		System.arraycopy(p, 0, pEnd, 0, n);  // Locating a root overwrites p and v
+		System.arraycopy(v, 0, vEnd, 0, n);
+		int iEvent = -1;
+		eventFraction = 1.0;
+		for (int i=0; i<events.size(); i++){
+			EventFunction event = events.get(i);
+			double gNew = event.g(tStart + tStep + h, pEnd, vEnd);
+			if (gOld[i]*gNew < 0.0){
+				Double root = MyMath.ridderRoot(x -> {
+						retakeStep(x*h);
+						return event.g(tStart + tStep + x*h, pEvent, vEvent);
+					}, 0.0, 1.0, eventTol/Math.abs(h), 50);
+				double x = (root == null) ? 1.0 : root;
+				if (iEvent < 0 || x < eventFraction){
+					iEvent = i;
+					eventFraction = x;
+				}
+			}
+			gOld[i] = gNew;
+		}
+		return iEvent;
+	}
+	
+	/** Re-take the current step from its start with a different step size,
+	 * writing the result to pEvent and vEvent. A step of zero size is just
+	 * the start of the step, so nothing is solved for it. */
+	private void retakeStep(double h){
+		if (h == 0.0){
+			System.arraycopy(isAdaptive() ? p1 : pStart, 0, pEvent, 0, n);
+			System.arraycopy(isAdaptive() ? v1 : vStart, 0, vEvent, 0, n);
+		} else if (isAdaptive()){
+			embeddedStep(h);
+			System.arraycopy(p2, 0, pEvent, 0, n);
+			System.arraycopy(v2, 0, vEvent, 0, n);
+		} else {
+			System.arraycopy(pStart, 0, p1, 0, n);
+			System.arraycopy(vStart, 0, v1, 0, n);
+			accelValid = false;
+			fixedStep(h);
+			System.arraycopy(p1, 0, pEvent, 0, n);
+			System.arraycopy(v1, 0, vEvent, 0, n);
+		}
+	}
+	
+	/** Record the event at the current state (p1, v1) and call it. The sign
+	 * of every event function is then taken from the state after the call, 
+	 * except that the event that just fired is ignored for one step, since 
+	 * it is (numerically) zero here.
+	 * @return true if the event asks to stop the integration */
+	private boolean fireEvent(int iEvent){
+		EventFunction event = events.get(iEvent);
+		eventTime = tStart + tStep;
+		lastEvent = event;
+		accelValid = false;  // The event may change the state
+		boolean stop = event.onEvent(eventTime, p1, v1);
+		for (int i=0; i<events.size(); i++){
+			gOld[i] = (i == iEvent) ? 0.0 : events.get(i).g(eventTime, p1, v1);
+		}
+		return stop;
+	}
+	
+	///////////////////////////////////////////////////////////////////////////
+	////                           Dense output                            ////
+	///////////////////////////////////////////////////////////////////////////
+	
+	/// Dormand-Prince continuous extension (Hairer, Norsett & Wanner, II.6)
+	private static final double D1 = -12715105075.0/11282082432.0;
+	private static final double D3 = 87487479700.0/32700410799.0;
+	private static final double D4 = -10690763975.0/1880347072.0;
+	private static final double D5 = 701980252875.0/199316789632.0;
+	private static final double D6 = -1453857185.0/822651844.0;
+	private static final double D7 = 69997945.0/29380423.0;
+	
+	/** Advance the system until its time reaches t, then interpolate the state
+	 * at t. The fixed step methods use steps of dt, and the adaptive methods
+	 * take whatever step the controller chooses, so in both cases the step 
+	 * grid does not need to line up with the sample times. The system itself
+	 * is left at the end of its last step, which may be later than t. If an
+	 * event stops the integration before t, the state at the event is
+	 * returned instead, along with its time.
+	 * @param t = the time to sample (no earlier than the start of the last step)
+	 * @param dt = step size for the fixed step methods (initial guess for the
+	 * adaptive methods)
+	 * @param p = position at time t (output)
+	 * @param v = velocity at time t (output)
+	 * @return the time of the sample, which is t unless an event stopped 
+	 * the integration first (see isStopped()) */
+	public double sampleAt(double t, double dt, double[] p, double[] v){
+		requireSecondOrder();
+		denseOutput = true;
+		stopped = false;
+		boolean first = true;
+		while (sys.getTime() < t && !stopped){
+			if (isAdaptive()){  /// One step at a time, re-using the first stage
+				loadState();
+				singleStep = true;
+				reuseFirstStage = !first;
+				try {
+					stopped = adaptiveStep(Double.POSITIVE_INFINITY, dt);
+				} finally {
+					singleStep = false;
+					reuseFirstStage = false;
+				}
+				storeState(tStep);
+				first = false;
+			} else {
+				timeStep(dt);
+			}
+		}
+		if (t == sys.getTime() || (stopped && sys.getTime() < t)){
+			System.arraycopy(sys.getPos(), 0, p, 0, n);
+			System.arraycopy(sys.getVel(), 0, v, 0, n);
+			return sys.getTime();
+		}
+		interpolate(t, p, v);
+		return t;
+	}
+	
+	/** Interpolate the state within the last step. Requires denseOutput.
+	 * @param t = the time to sample, within the last step
+	 * @param p = position at time t (output)
+	 * @param v = velocity at time t (output) */
+	public void interpolate(double t, double[] p, double[] v){
+		double x = (t - tDense)/hDense;  // Fraction of the step
+		if (!(x >= -1e-9 && x <= 1.0 + 1e-9)){
+			throw new IllegalArgumentException("Time " + t + " is outside of the last step ["
+					+ tDense + ", " + (tDense + hDense) + "]");
+		}
+		double h = hDense;
+		if (denseNative){
+			double y = 1.0 - x;
+			for (int j=0; j<n; j++){
+				p[j] = dp[0][j] + x*(dp[1][j] + y*(dp[2][j] + x*(dp[3][j] + y*dp[4][j])));
+				v[j] = dv[0][j] + x*(dv[1][j] + y*(dv[2][j] + x*(dv[3][j] + y*dv[4][j])));
+			}
+		} else {
+			/// Quartic Hermite for position, matching p, v, a at the start of
+			/// the step and p, v at the end. Velocity is its derivative.
+			for (int j=0; j<n; j++){
+				double c1 = h*dv[0][j];
+				double c2 = 0.5*h*h*dv[2][j];
+				double r1 = dp[1][j] - dp[0][j] - c1 - c2;
+				double r2 = h*dv[1][j] - c1 - 2.0*c2;
+				double c4 = r2 - 3.0*r1;
+				double c3 = r1 - c4;
+				p[j] = dp[0][j] + x*(c1 + x*(c2 + x*(c3 + x*c4)));
+				v[j] = (c1 + x*(2.0*c2 + x*(3.0*c3 + x*4.0*c4)))/h;
+			}
+		}
+	}
+	
+	/** @return time at the start of the last step (for interpolate) */
+	public double getDenseStart(){
+		return tDense;
+	}
+	
+	/** @return time at the end of the last step (for interpolate) */
+	public double getDenseEnd(){
+		return tDense + hDense;
+	}
+	
+	/** Make sure that the dense output coefficients are allocated */
+	private void allocateDense(){
+		if (dp == null){
+			dp = new double[5][n];
+			dv = new double[5][n];
+		}
+	}
+	
+	/** Save the start of a fixed step for Hermite interpolation: 
+	 * dp[0] = p0, dv[0] = v0, dv[2] = a0. Must be called after a1 is set. */
+	private void saveDenseStart(double h){
+		allocateDense();
+		System.arraycopy(p1, 0, dp[0], 0, n);
+		System.arraycopy(v1, 0, dv[0], 0, n);
+		System.arraycopy(a1, 0, dv[2], 0, n);
+		tDense = tStart + tStep;
+		hDense = h;
+		denseNative = false;
+	}
+	
+	/** Save the end of a step for Hermite interpolation: dp[1] = p, dv[1] = v */
+	private void saveDenseEnd(double[] p, double[] v){
+		System.arraycopy(p, 0, dp[1], 0, n);
+		System.arraycopy(v, 0, dv[1], 0, n);
+	}
+	
+	/** Save the dense output of the embedded step that was just taken from
+	 * (p1, v1) to (p2, v2), before the stages are overwritten. */
+	private void saveDenseAdaptive(double h){
+		allocateDense();
+		tDense = tStart + tStep;
+		hDense = h;
+		if (method == Method.DOPRI5){
+			denseNative = true;
+			int last = tabB.length - 1;  // Last stage is at the new state
+			for (int j=0; j<n; j++){
+				denseCoefficients(dp, j, p1[j], p2[j], h, kp[0][j], kp[2][j],
+						kp[3][j], kp[4][j], kp[5][j], kp[last][j]);
+				denseCoefficients(dv, j, v1[j], v2[j], h, kv[0][j], kv[2][j],
+						kv[3][j], kv[4][j], kv[5][j], kv[last][j]);
+			}
+		} else {
+			System.arraycopy(p1, 0, dp[0], 0, n);
+			System.arraycopy(v1, 0, dv[0], 0, n);
+			System.arraycopy(kv[0], 0, dv[2], 0, n);
+			saveDenseEnd(p2, v2);
+			denseNative = false;
+		}
+	}
+	
+	/** Compute the coefficients of the DOPRI5 continuous extension for one
+	 * element of the state, given its value at both ends and the stages */
+	private static void denseCoefficients(double[][] r, int j, double y0, double y1,
+			double h, double k1, double k3, double k4, double k5, double k6, double k7){
+		double dy = y1 - y0;
+		double bspl = h*k1 - dy;
+		r[0][j] = y0;
+		r[1][j] = dy;
+		r[2][j] = bspl;
+		r[3][j] = dy - h*k7 - bspl;
+		r[4][j] = h*(D1*k1 + D3*k3 + D4*k4 + D5*k5 + D6*k6 + D7*k7);
+	}
+	
+	/** Make sure that the stage derivatives are allocated */
+	private void allocateStages(int nStage){
+		if (flatSys != null){
+			if (ky.length < nStage) ky = new double[nStage][nY];
+		} else if (kp == null || kp.length < nStage){
+			kp = new double[nStage][n];
+			kv = new double[nStage][n];
+		}
+	}
+	
+	/** Copy the step size controller and event history into the snapshot,
+	 * so that a restored run continues exactly as the original did */
+	void saveState(StateSnapshot s){
+		s.hNext = hNext;
+		s.errOld = errOld;
+		if (s.gOld.length != gOld.length){
+			s.gOld = new double[gOld.length];
+		}
+		System.arraycopy(gOld, 0, s.gOld, 0, gOld.length);
+	}
+	
+	/** Restore the history saved by saveState(). Call this after the state 
+	 * of the system has been restored. Anything cached from the last step (the 
+	 * first stage, dense output) is discarded. */
+	void restoreState(StateSnapshot s){
+		hNext = s.hNext;
+		errOld = s.errOld;
+		if (s.gOld.length == gOld.length){
+			System.arraycopy(s.gOld, 0, gOld, 0, gOld.length);
+		} else {  // The events have changed, so start them from scratch
+			for (int i=0; i<gOld.length; i++){
+				gOld[i] = events.get(i).g(sys.getTime(), sys.getPos(), sys.getVel());
+			}
+		}
+		stopped = false;
+		reuseFirstStage = false;
+		accelValid = false;
+		tDense = Double.NaN;
+		hDense = 0.0;
+	}
+	
+	/** Forget the acceleration that SYM2 keeps between steps when 
+	 * positionForces is set, so that the next step evaluates it again */
+	public void discardAcceleration(){
+		accelValid = false;
+	}
+	
+	/** @return number of times the dynamics have been evaluated */
+	public long getEvaluationCount(){
+		return nEval;
+	}
+	
+	/** @return number of accepted steps taken by the adaptive methods */
+	public long getAcceptedSteps(){
+		return nAccept;
+	}
+	
+	/** @return number of rejected steps taken by the adaptive methods */
+	public long getRejectedSteps(){
+		return nReject;
+	}
+	
+	/** @return number of Jacobian evaluations by the implicit methods */
+	public long getJacobianCount(){
+		return nJacobian;
+	}
+	
+	/** @return number of factorizations done by the implicit methods */
+	public long getFactorizationCount(){
+		return nFactor;
+	}
+	
+	/** @return number of implicit steps whose Newton iteration did not 
+	 * converge even at the smallest step. The state did not advance over 
+	 * those steps, so anything but zero means the results are wrong. */
+	public long getNewtonFailures(){
+		return nNewtonFail;
+	}
+	
+	/** Reset the evaluation and step counters, along with the step size 
+	 * controller history */
+	public void resetStatistics(){
+		nEval = 0;
+		nAccept = 0;
+		nReject = 0;
+		nJacobian = 0;
+		nFactor = 0;
+		nNewtonFail = 0;
+		hNext = 0;
+		errOld = 1e-4;
 	}
 
 }
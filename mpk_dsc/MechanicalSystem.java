@@ -0,0 +1,22 @@
+package mpk_dsc;
+
+/** A dynamical system with mechanical energy, viscous damping, and an 
+ * internal limit on the integration step size. This is the common ground
+ * between the pendulum models that is needed for running batches of 
+ * simulations without knowing the exact type of system. */
+public interface MechanicalSystem extends DynamicalSystem {
+
+	/** Return the system's mechanical energy
+	 * @return energy[] = {total, kinetic, potential}*/
+	public double[] getEnergy();
+	
+	/** @param c the viscous damping constant */
+	public void setDamping(double c);
+	
+	/** @param dt the maximum time step used by simulate() */
+	public void setMaxTimeStep(double dt);
+	
+	/** @return the integrator used by simulate() */
+	public Integrator getIntegrator();
+	
+}
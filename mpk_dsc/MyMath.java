@@ -1,5 +1,7 @@
 package mpk_dsc;
 
+import java.util.function.DoubleUnaryOperator;
+
 import javax.vecmath.Vector2d;
 
 public class MyMath {
@@ -184,16 +186,27 @@ public class MyMath {
 	 * y = a*x^3 + b*x^2 + c*x + d */
 	public static Double cubicRoot(double xLow, double xUpp,
 			double a, double b, double c, double d){
+		return ridderRoot(x -> cubicEval(x,a,b,c,d), xLow, xUpp, 1e-8, 25);
+	}
+
+	/** Solves for a root of an arbitrary function on the given interval 
+	 * using Ridder's method. Same conventions as cubicRoot: returns null if
+	 * the root is not bracketed, and the best solution (with no warning) if
+	 * the maximum allowable iterations are reached.
+	 * @param f - the function, y = f(x)
+	 * @param xLow - lower bound of the interval
+	 * @param xUpp - upper bound of the interval
+	 * @param rootTol - convergence tolerance on x
+	 * @param maxIter - maximum number of iterations */
+	public static Double ridderRoot(DoubleUnaryOperator f, double xLow, double xUpp,
+			double rootTol, int maxIter){
 
 		/// Initialization
-		double fLow = cubicEval(xLow,a,b,c,d);
-		double fUpp = cubicEval(xUpp,a,b,c,d);
+		double fLow = f.applyAsDouble(xLow);
+		double fUpp = f.applyAsDouble(xUpp);
 		double xMid, fMid, xNew, fNew;
 		double s;
 		Double soln = null;
-
-		int maxIter = 25;
-		double rootTol = 1e-8;
 		
 		/// Check that the root is bounded
 		if ( (fLow > 0.0 && fUpp < 0.0) || (fLow < 0.0 && fUpp > 0.0) ){
@@ -201,13 +214,13 @@ public class MyMath {
 
 				/// Compute two intermediate points
 				xMid = 0.5*(xLow + xUpp);
-				fMid = cubicEval(xMid,a,b,c,d);
+				fMid = f.applyAsDouble(xMid);
 				s = Math.sqrt(fMid*fMid - fLow*fUpp);
 				if (s==0.0) return soln;
 				xNew=xMid+(xMid-xLow)*((fLow >= fUpp ? 1.0 : -1.0)*fMid/s);
 				if (iter>0) if (Math.abs(xNew-soln) <= rootTol) return soln;
 				soln = xNew;
-				fNew = cubicEval(soln,a,b,c,d);
+				fNew = f.applyAsDouble(soln);
 				if (fNew == 0.0) return soln;
 
 				/// Update bracketing of root
@@ -241,6 +254,65 @@ public class MyMath {
 		return soln;  // WARNING - only get here if maxIter is exceeded
 	}
 	
+	/** LU decomposition with partial pivoting, done in place. The matrix is
+	 * stored by rows: a[i*n + j] = A(i,j). Afterwards a holds L (below the 
+	 * diagonal, unit diagonal implied) and U (on and above the diagonal).
+	 * @param a - n by n matrix, overwritten by its factors
+	 * @param n - size of the matrix
+	 * @param piv - row permutation (output)
+	 * @return false if the matrix is singular */
+	public static boolean luDecompose(double[] a, int n, int[] piv){
+		for (int k=0; k<n; k++){
+			
+			/// Find the pivot and swap it into row k
+			int iMax = k;
+			for (int i=k+1; i<n; i++){
+				if (Math.abs(a[i*n+k]) > Math.abs(a[iMax*n+k])) iMax = i;
+			}
+			piv[k] = iMax;
+			if (a[iMax*n+k] == 0.0) return false;
+			if (iMax != k){
+				for (int j=0; j<n; j++){
+					double tmp = a[k*n+j]; a[k*n+j] = a[iMax*n+j]; a[iMax*n+j] = tmp;
+				}
+			}
+			
+			/// Eliminate below the pivot
+			double inv = 1.0/a[k*n+k];
+			for (int i=k+1; i<n; i++){
+				double f = a[i*n+k]*inv;
+				a[i*n+k] = f;
+				for (int j=k+1; j<n; j++){
+					a[i*n+j] -= f*a[k*n+j];
+				}
+			}
+		}
+		return true;
+	}
+	
+	/** Solves A*x = b, using the factors from luDecompose()
+	 * @param lu - factors of A
+	 * @param n - size of the matrix
+	 * @param piv - row permutation from luDecompose()
+	 * @param b - right hand side, overwritten by the solution x */
+	public static void luSolve(double[] lu, int n, int[] piv, double[] b){
+		for (int k=0; k<n; k++){  // Apply the row swaps, in order
+			double tmp = b[k]; b[k] = b[piv[k]]; b[piv[k]] = tmp;
+		}
+		for (int k=0; k<n; k++){  // Solve L*y = b
+			for (int i=k+1; i<n; i++){
+				b[i] -= lu[i*n+k]*b[k];
+			}
+		}
+		for (int i=n-1; i>=0; i--){  // Solve U*x = y
+			double s = b[i];
+			for (int j=i+1; j<n; j++){
+				s -= lu[i*n+j]*b[j];
+			}
+			b[i] = s/lu[i*n+i];
+		}
+	}
+	
 
 
 }
@@ -0,0 +1,621 @@
+package mpk_dsc;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import mpk_gui.DrawPanel;
+
+/** Many bodies moving in a plane under their mutual gravity (G = 1), with
+ * Plummer softening so that close encounters stay finite. The state uses
+ * the same structure of arrays as DoublePendulumEnsemble:
+ *
+ * pos = [x_0, ..., x_N-1, y_0, ..., y_N-1]
+ * vel = [dx_0, ..., dx_N-1, dy_0, ..., dy_N-1]
+ *
+ * The accelerations are computed with a Barnes-Hut quadtree. The tree is
+ * rebuilt on every call to dynamics(), into node arrays that are kept
+ * between calls (they only grow). The scratch lists of each thread are
+ * kept too, so the only objects created per step are the small fork/join
+ * tasks that split up the leaves. A
+ * node is replaced by its total mass at its center of mass when its width
+ * is less than theta (see setTheta()) times the distance to it (less the offset of the
+ * center of mass from the middle of the node): theta = 0 opens every node,
+ * and 0.5 to 1.0 is the usual range. Setting exact = true uses the direct
+ * O(N^2) sum instead, to check the tree against.
+ *
+ * Leaves hold up to 8 bodies, and the tree is walked once per leaf rather
+ * than once per body. The leaves are split across the common ForkJoinPool
+ * in tree order.
+ * SYM2 is the intended integrator. Without damping the forces depend only
+ * on the positions, so the integrator is told to re-use the acceleration at
+ * the end of each step as the start of the next (Integrator.positionForces),
+ * and each step costs one evaluation.
+ * @author matt
+ */
+public class NBodySystem implements MechanicalSystem {
+
+	/** Use the direct sum over all pairs instead of the tree */
+	public boolean exact = false;
+
+	/** Spread the force loop across threads */
+	public boolean parallel = true;
+
+	/** Bodies in a range smaller than this are not split further */
+	public int grainSize = 512;
+
+	/** A leaf is split when it has more than this many bodies. Summing over
+	 * a few bodies directly is cheaper than walking down to each one. */
+	private static final int LEAF_SIZE = 8;
+
+	/** Leaves this deep are never split (only if many bodies nearly coincide) */
+	private static final int MAX_DEPTH = 48;
+
+	private int nBody;
+	private double[] mass;
+	private double[] pos0, vel0;  // Initial state
+	private double[] pos, vel;    // Current state
+	private double time = 0.0;
+	private double softening = 0.01;
+	private double theta = 0.7;  // Maximum ratio of node width to distance
+	private double damping = 0.0;
+
+	private double maxTimeStep = 0.002;
+	private Integrator integrator;
+
+	/// Quadtree, one entry per node. Children are allocated four at a time.
+	private int nNode = 0;
+	private int[] firstChild;  // Index of the first of 4 children, -1 for a leaf
+	private int[] leafHead;    // First body in a leaf, -1 if empty
+	private int[] leafCount;   // Number of bodies in a leaf
+	private int[] leaves;      // Every leaf with bodies, in tree order
+	private int nLeaf = 0;
+	private double[] nodeCx, nodeCy, nodeH;  // Geometric center and half width
+	private double[] nodeM, nodeX, nodeY;    // Mass and center of mass
+	private double[] nodeR2;  // Bodies closer than sqrt(nodeR2) to the center of mass open the node
+
+	/// Scratch for walking the tree, one per thread, kept between calls
+	private final ThreadLocal<Work> threadWork = ThreadLocal.withInitial(Work::new);
+
+	/// Per body scratch
+	private int[] next;    // Next body in the same leaf, -1 at the end
+	private double[] phi;  // Potential at each body from the last evaluation
+	private double[] energyScratch;
+
+	public NBodyPlotter plot;
+
+	/** Create a rotating disk of bodies around a heavy center body
+	 * @param nBody = number of bodies, including the center
+	 * @param headless = if true, the plotter is not created and plot is null,
+	 * so that no graphics classes are needed to run the simulation */
+	public NBodySystem(int nBody, boolean headless){
+		if (nBody < 2){
+			throw new IllegalArgumentException("Need at least two bodies");
+		}
+		this.nBody = nBody;
+		mass = new double[nBody];
+		pos0 = new double[2*nBody];
+		vel0 = new double[2*nBody];
+		pos = new double[2*nBody];
+		vel = new double[2*nBody];
+		next = new int[nBody];
+		phi = new double[nBody];
+		energyScratch = new double[2*nBody];
+		growTree(4*nBody + 1);
+		setDisk(new Random(1));
+
+		integrator = new Integrator(this);
+		integrator.method = Integrator.Method.SYM2;
+		integrator.positionForces = true;
+		reset();
+
+		if (!headless){
+			plot = new NBodyPlotter();
+		}
+	}
+
+	/** Create a new system, with a plotter */
+	public NBodySystem(int nBody){
+		this(nBody, false);
+	}
+
+	/** A disk of unit radius and unit mass, in circular orbits around a
+	 * center body of unit mass */
+	private void setDisk(Random rand){
+		double r0 = 0.05;  // Inner edge of the disk
+		mass[0] = 1.0;
+		for (int i=1; i<nBody; i++){
+			mass[i] = 1.0/(nBody-1);
+			double r = Math.sqrt(r0*r0 + (1.0 - r0*r0)*rand.nextDouble());
+			double a = 2*Math.PI*rand.nextDouble();
+			double inside = mass[0] + (r*r - r0*r0)/(1.0 - r0*r0);  // Mass inside r
+			double speed = Math.sqrt(inside*r*r/Math.pow(r*r + softening*softening, 1.5));
+			pos0[i] = r*Math.cos(a);
+			pos0[nBody+i] = r*Math.sin(a);
+			vel0[i] = -speed*Math.sin(a);
+			vel0[nBody+i] = speed*Math.cos(a);
+		}
+	}
+
+	/** Set the state that reset() returns to, and the masses
+	 * @param p = [x..., y...]
+	 * @param v = [dx..., dy...]
+	 * @param m = mass of each body */
+	public void setInitialState(double[] p, double[] v, double[] m){
+		System.arraycopy(p, 0, pos0, 0, 2*nBody);
+		System.arraycopy(v, 0, vel0, 0, 2*nBody);
+		System.arraycopy(m, 0, mass, 0, nBody);
+		integrator.discardAcceleration();
+	}
+
+	/** Set the softening length */
+	public void setSoftening(double eps){
+		softening = eps;
+		integrator.discardAcceleration();
+	}
+
+	/** Set the maximum ratio of node width to distance before a node is
+	 * opened */
+	public void setTheta(double theta){
+		this.theta = theta;
+		integrator.discardAcceleration();
+	}
+
+	/** @return the maximum ratio of node width to distance */
+	public double getTheta(){
+		return theta;
+	}
+
+	/** @return number of bodies */
+	public int size(){
+		return nBody;
+	}
+
+	/** @return number of tree nodes used by the last evaluation */
+	public int getNodeCount(){
+		return nNode;
+	}
+
+	@Override
+	public void dynamics(double[] p, double[] v, double[] dv){
+		if (!exact){
+			buildTree(p);
+		}
+		ForceTask task = new ForceTask(p, dv, 0, exact ? nBody : nLeaf);
+		if (parallel){
+			ForkJoinPool.commonPool().invoke(task);
+		} else {
+			task.compute();
+		}
+		if (damping != 0.0){
+			for (int j=0; j<2*nBody; j++){
+				dv[j] -= damping*v[j];
+			}
+		}
+	}
+
+	@Override
+	public double[] dynamics(double[] p, double[] v){
+		double[] dv = new double[2*nBody];
+		dynamics(p,v,dv);
+		return dv;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                         Barnes-Hut tree                           ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** Insert every body into a fresh tree, then compute the mass and center
+	 * of mass of each node, and the tree order of the bodies */
+	private void buildTree(double[] p){
+		final int N = nBody;
+		double xLow = Double.POSITIVE_INFINITY, xUpp = Double.NEGATIVE_INFINITY;
+		double yLow = Double.POSITIVE_INFINITY, yUpp = Double.NEGATIVE_INFINITY;
+		for (int i=0; i<N; i++){
+			xLow = Math.min(xLow, p[i]); xUpp = Math.max(xUpp, p[i]);
+			yLow = Math.min(yLow, p[N+i]); yUpp = Math.max(yUpp, p[N+i]);
+		}
+		nNode = 0;
+		newNode(0.5*(xLow + xUpp), 0.5*(yLow + yUpp), 0.5*Math.max(xUpp - xLow, yUpp - yLow)*(1.0 + 1e-9) + 1e-300);
+
+		for (int i=0; i<N; i++){
+			double x = p[i], y = p[N+i];
+			int node = 0, depth = 0;
+			while (true){
+				if (firstChild[node] >= 0){
+					node = firstChild[node] + quadrant(node, x, y);
+					depth++;
+				} else if (leafCount[node] < LEAF_SIZE || depth >= MAX_DEPTH){
+					next[i] = leafHead[node];
+					leafHead[node] = i;
+					leafCount[node]++;
+					break;
+				} else {
+					// Split the full leaf and move its bodies down one level
+					int j = leafHead[node];
+					int c = split(node);
+					while (j >= 0){
+						int jNext = next[j];
+						int child = c + quadrant(node, p[j], p[N+j]);
+						next[j] = leafHead[child];
+						leafHead[child] = j;
+						leafCount[child]++;
+						j = jNext;
+					}
+				}
+			}
+		}
+
+		/// Children always come after their parent, so go backwards
+		for (int node=nNode-1; node>=0; node--){
+			double m = 0.0, mx = 0.0, my = 0.0;
+			if (firstChild[node] < 0){
+				for (int j=leafHead[node]; j>=0; j=next[j]){
+					m += mass[j]; mx += mass[j]*p[j]; my += mass[j]*p[N+j];
+				}
+			} else {
+				for (int c=firstChild[node]; c<firstChild[node]+4; c++){
+					m += nodeM[c]; mx += nodeM[c]*nodeX[c]; my += nodeM[c]*nodeY[c];
+				}
+			}
+			nodeM[node] = m;
+			nodeX[node] = (m > 0.0) ? mx/m : nodeCx[node];
+			nodeY[node] = (m > 0.0) ? my/m : nodeCy[node];
+
+			// Width/theta, plus the offset of the center of mass from the
+			// middle of the node, so that a body just outside the node
+			// cannot use it from the near side (Barnes 1994)
+			double offset = Math.hypot(nodeX[node] - nodeCx[node], nodeY[node] - nodeCy[node]);
+			double r = 2*nodeH[node]/theta + offset;
+			nodeR2[node] = r*r;
+		}
+
+		/// Depth first walk to list the leaves in tree order
+		int[] stack = new int[3*MAX_DEPTH + 4];
+		int sp = 0;
+		nLeaf = 0;
+		stack[sp++] = 0;
+		while (sp > 0){
+			int node = stack[--sp];
+			if (firstChild[node] < 0){
+				if (leafCount[node] > 0) leaves[nLeaf++] = node;
+			} else {
+				for (int c=firstChild[node]+3; c>=firstChild[node]; c--) stack[sp++] = c;
+			}
+		}
+	}
+
+	/** @return which child of the node contains (x,y): bit 0 for x, bit 1 for y */
+	private int quadrant(int node, double x, double y){
+		return ((x >= nodeCx[node]) ? 1 : 0) + ((y >= nodeCy[node]) ? 2 : 0);
+	}
+
+	/** Give a leaf four empty children
+	 * @return index of the first child */
+	private int split(int node){
+		double h = 0.5*nodeH[node];
+		double cx = nodeCx[node], cy = nodeCy[node];
+		int c = newNode(cx - h, cy - h, h);
+		newNode(cx + h, cy - h, h);
+		newNode(cx - h, cy + h, h);
+		newNode(cx + h, cy + h, h);
+		firstChild[node] = c;
+		leafHead[node] = -1;
+		leafCount[node] = 0;
+		return c;
+	}
+
+	/** @return index of a new empty leaf */
+	private int newNode(double cx, double cy, double h){
+		if (nNode == firstChild.length){
+			growTree(2*nNode);
+		}
+		int node = nNode++;
+		firstChild[node] = -1;
+		leafHead[node] = -1;
+		leafCount[node] = 0;
+		nodeCx[node] = cx;
+		nodeCy[node] = cy;
+		nodeH[node] = h;
+		return node;
+	}
+
+	/** Make room for more nodes, keeping the ones already there */
+	private void growTree(int capacity){
+		if (firstChild == null){
+			firstChild = new int[capacity];
+			leafHead = new int[capacity];
+			leafCount = new int[capacity];
+			leaves = new int[capacity];
+			nodeCx = new double[capacity]; nodeCy = new double[capacity]; nodeH = new double[capacity];
+			nodeM = new double[capacity]; nodeX = new double[capacity]; nodeY = new double[capacity];
+			nodeR2 = new double[capacity];
+		} else {
+			firstChild = Arrays.copyOf(firstChild, capacity);
+			leafHead = Arrays.copyOf(leafHead, capacity);
+			leafCount = Arrays.copyOf(leafCount, capacity);
+			leaves = Arrays.copyOf(leaves, capacity);
+			nodeCx = Arrays.copyOf(nodeCx, capacity);
+			nodeCy = Arrays.copyOf(nodeCy, capacity);
+			nodeH = Arrays.copyOf(nodeH, capacity);
+			nodeM = Arrays.copyOf(nodeM, capacity);
+			nodeX = Arrays.copyOf(nodeX, capacity);
+			nodeY = Arrays.copyOf(nodeY, capacity);
+			nodeR2 = Arrays.copyOf(nodeR2, capacity);
+		}
+	}
+
+	/** Acceleration and potential of every body in a leaf. The tree is
+	 * walked once for the whole leaf, using the distance from each node to
+	 * the box around the leaf's bodies, and the resulting list of nodes and
+	 * nearby bodies is then summed for each body in the leaf.
+	 * @param work = scratch, owned by the calling thread */
+	private void leafForce(int leaf, double[] p, double[] dv, Work work){
+		final int N = nBody;
+		final double eps2 = softening*softening;
+
+		double xLow = Double.POSITIVE_INFINITY, xUpp = Double.NEGATIVE_INFINITY;
+		double yLow = Double.POSITIVE_INFINITY, yUpp = Double.NEGATIVE_INFINITY;
+		for (int i=leafHead[leaf]; i>=0; i=next[i]){
+			xLow = Math.min(xLow, p[i]); xUpp = Math.max(xUpp, p[i]);
+			yLow = Math.min(yLow, p[N+i]); yUpp = Math.max(yUpp, p[N+i]);
+		}
+
+		/// Interaction lists: nodes far enough from every body in the leaf,
+		/// and the bodies of the leaves that are too close
+		int[] stack = work.stack;
+		int sp = 0, nNear = 0, nFar = 0;
+		stack[sp++] = 0;
+		while (sp > 0){
+			int node = stack[--sp];
+			if (nodeM[node] == 0.0) continue;
+			double dx = Math.max(0.0, Math.max(xLow - nodeX[node], nodeX[node] - xUpp));
+			double dy = Math.max(0.0, Math.max(yLow - nodeY[node], nodeY[node] - yUpp));
+			if (dx*dx + dy*dy > nodeR2[node]){
+				nFar = work.addFar(nFar, node);
+			} else if (firstChild[node] < 0){
+				for (int j=leafHead[node]; j>=0; j=next[j]) nNear = work.addNear(nNear, j);
+			} else {
+				int c = firstChild[node];
+				stack[sp++] = c; stack[sp++] = c+1; stack[sp++] = c+2; stack[sp++] = c+3;
+			}
+		}
+
+		int[] far = work.far, near = work.near;
+		for (int i=leafHead[leaf]; i>=0; i=next[i]){
+			final double x = p[i], y = p[N+i];
+			double ax = 0.0, ay = 0.0, pot = 0.0;
+			for (int k=0; k<nFar; k++){
+				int node = far[k];
+				double dx = nodeX[node] - x, dy = nodeY[node] - y;
+				double rInv = 1.0/Math.sqrt(dx*dx + dy*dy + eps2);
+				double mr = nodeM[node]*rInv;
+				double f = mr*rInv*rInv;
+				ax += f*dx; ay += f*dy; pot -= mr;
+			}
+			for (int k=0; k<nNear; k++){
+				int j = near[k];
+				if (j == i) continue;
+				double dx = p[j] - x, dy = p[N+j] - y;
+				double rInv = 1.0/Math.sqrt(dx*dx + dy*dy + eps2);
+				double mr = mass[j]*rInv;
+				double f = mr*rInv*rInv;
+				ax += f*dx; ay += f*dy; pot -= mr;
+			}
+			dv[i] = ax;
+			dv[N+i] = ay;
+			phi[i] = pot;
+		}
+	}
+
+	/** Scratch for one thread walking the tree */
+	private static final class Work {
+		int[] stack = new int[3*MAX_DEPTH + 4];
+		int[] far = new int[256], near = new int[256];
+
+		/** Append to the list of nodes. @return the new length */
+		int addFar(int n, int node){
+			if (n == far.length) far = Arrays.copyOf(far, 2*n);
+			far[n] = node;
+			return n+1;
+		}
+
+		/** Append to the list of bodies. @return the new length */
+		int addNear(int n, int body){
+			if (n == near.length) near = Arrays.copyOf(near, 2*n);
+			near[n] = body;
+			return n+1;
+		}
+	}
+
+	/** Acceleration and potential of one body, summing over every other body */
+	private void exactForce(int i, double[] p, double[] dv){
+		final int N = nBody;
+		final double x = p[i], y = p[N+i];
+		final double eps2 = softening*softening;
+		double ax = 0.0, ay = 0.0, pot = 0.0;
+		for (int j=0; j<N; j++){
+			if (j == i) continue;
+			double dx = p[j] - x, dy = p[N+j] - y;
+			double r2 = dx*dx + dy*dy + eps2;
+			double rInv = 1.0/Math.sqrt(r2);
+			double mr = mass[j]*rInv;
+			double f = mr*rInv*rInv;
+			ax += f*dx; ay += f*dy; pot -= mr;
+		}
+		dv[i] = ax;
+		dv[N+i] = ay;
+		phi[i] = pot;
+	}
+
+	/** Recursively split the leaves (or the bodies, for the exact sum) in half */
+	@SuppressWarnings("serial")
+	private class ForceTask extends RecursiveAction {
+		private double[] p, dv;
+		private int low, upp;  // Range of leaves[] or bodies [low, upp)
+
+		ForceTask(double[] p, double[] dv, int low, int upp){
+			this.p = p;
+			this.dv = dv;
+			this.low = low;
+			this.upp = upp;
+		}
+
+		@Override
+		protected void compute() {
+			int grain = exact ? grainSize : Math.max(1, grainSize/LEAF_SIZE);
+			if (upp - low <= grain || !parallel){
+				Work work = threadWork.get();
+				for (int k=low; k<upp; k++){
+					if (exact){
+						exactForce(k, p, dv);
+					} else {
+						leafForce(leaves[k], p, dv, work);
+					}
+				}
+			} else {
+				int mid = (low + upp) >>> 1;
+				invokeAll(new ForceTask(p, dv, low, mid), new ForceTask(p, dv, mid, upp));
+			}
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                     MechanicalSystem methods                      ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** Get the system energy. The potential uses the tree, unless exact is
+	 * set, so it costs one evaluation of the dynamics.
+	 * @return {total, kinetic, potential} */
+	@Override
+	public double[] getEnergy(){
+		dynamics(pos, vel, energyScratch);
+		double kinetic = 0.0, potential = 0.0;
+		for (int i=0; i<nBody; i++){
+			double vx = vel[i], vy = vel[nBody+i];
+			kinetic += 0.5*mass[i]*(vx*vx + vy*vy);
+			potential += 0.5*mass[i]*phi[i];  // Each pair is counted twice
+		}
+		return new double[] {kinetic + potential, kinetic, potential};
+	}
+
+	@Override
+	public void timeStep(double dt) {
+		integrator.timeStep(dt);
+	}
+
+	@Override
+	public void simulate(double duration){
+		int nSteps = (int)(Math.ceil(duration/maxTimeStep));
+		integrator.timeStep(duration, nSteps);
+	}
+
+	/** Sets the drag on every body (acceleration per unit velocity) */
+	@Override
+	public void setDamping(double c){
+		this.damping = c;
+		integrator.positionForces = (c == 0.0);  // Drag depends on the velocity
+	}
+
+	/** Set the maximum time step for the integrator */
+	@Override
+	public void setMaxTimeStep(double dt){
+		maxTimeStep = dt;
+	}
+
+	/** @return the integrator, to select the method and tolerances */
+	@Override
+	public Integrator getIntegrator(){
+		return integrator;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public void setTime(double t) {
+		time = t;
+	}
+
+	@Override
+	public double[] getPos() {
+		return pos;
+	}
+
+	@Override
+	public double[] getVel() {
+		return vel;
+	}
+
+	@Override
+	public void setPos(double[] p) {
+		System.arraycopy(p, 0, pos, 0, 2*nBody);
+	}
+
+	@Override
+	public void setVel(double[] v) {
+		System.arraycopy(v, 0, vel, 0, 2*nBody);
+	}
+
+	@Override
+	public void reset() {
+		setPos(pos0);
+		setVel(vel0);
+		time = 0.0;
+	}
+
+	/** ********************************************************************
+	 * Plots every body as one pixel, brighter where more of them overlap.
+	 * The pixels are written straight into an image, since drawing 100k
+	 * circles through the Graphics object is far too slow.
+	 */
+	@SuppressWarnings("serial")
+	public class NBodyPlotter extends DrawPanel {
+
+		private BufferedImage image;
+		private int[] count;  // Bodies per pixel
+		private int[] rgb;
+
+		/** Create a new plotter */
+		public NBodyPlotter(){
+			super(-1.5, 1.5, -1.5, 1.5);
+			setBackground(Color.BLACK);
+			setSize(800, 800);
+		}
+
+		@Override
+		public void paint() {
+			int w = getWidth(), h = getHeight();
+			if (w <= 0 || h <= 0) return;
+			if (image == null || image.getWidth() != w || image.getHeight() != h){
+				image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+				count = new int[w*h];
+				rgb = new int[w*h];
+			}
+			Arrays.fill(count, 0);
+			for (int i=0; i<nBody; i++){
+				int px = (int) toPixelX(pos[i]);
+				int py = (int) toPixelY(pos[nBody+i]);
+				if (px >= 0 && px < w && py >= 0 && py < h){
+					count[py*w + px]++;
+				}
+			}
+			for (int k=0; k<w*h; k++){
+				int c = Math.min(255, 48*count[k]);
+				rgb[k] = (c << 16) | (c << 8) | Math.min(255, 64 + c);
+				if (count[k] == 0) rgb[k] = 0;
+			}
+			image.setRGB(0, 0, w, h, rgb, 0, w);
+			g2.drawImage(image, 0, 0, null);
+			setColor(Color.WHITE);
+			drawString(String.format("Time: %6.3f   Bodies: %d", time, nBody), xLow + 0.05, yUpp - 0.1);
+		}
+
+	}
+
+}
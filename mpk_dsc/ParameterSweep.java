@@ -0,0 +1,169 @@
+package mpk_dsc;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Runs a grid of simulations over damping, initial angle, and maximum time
+ * step, spread across a ForkJoinPool. Each case creates its own system from
+ * the factory, so nothing is shared between threads, and every result is
+ * written into its own slot of a primitive array. The simulation results
+ * are therefore bit-identical no matter how many threads are used (only
+ * the wall time changes).
+ *
+ * Cases are numbered: c = (iDamping*nAngle + iAngle)*nTimeStep + iTimeStep
+ * @author matt
+ */
+public class ParameterSweep {
+
+	/** Creates a fresh system for each case. Use the headless constructors
+	 * so that no graphics are created, e.g. () -> new Pendulum(true) */
+	public interface Factory {
+		public MechanicalSystem create();
+	}
+
+	/** Cases with fewer than this many are run without splitting further */
+	public int grainSize = 4;
+
+	private Factory factory;
+	private double[] damping, angle, timeStep;
+	private int nCase;
+	private int dim;  // Dimension of the position vector
+
+	/// Results, indexed by case
+	private double[] finalPos;      // [c*dim + j]
+	private double[] finalVel;      // [c*dim + j]
+	private double[] energyDrift;   // Final minus initial total energy
+	private double[] wallTime;      // (s) time to run the case
+
+	/** Set up a new parameter sweep. Every combination of the values is run.
+	 * @param factory = creates a new system for each case
+	 * @param damping = values of the damping constant
+	 * @param angle = values of the initial angle (first position coordinate)
+	 * @param timeStep = values of the maximum time step */
+	public ParameterSweep(Factory factory, double[] damping, double[] angle, double[] timeStep){
+		this.factory = factory;
+		this.damping = damping.clone();
+		this.angle = angle.clone();
+		this.timeStep = timeStep.clone();
+		nCase = damping.length*angle.length*timeStep.length;
+		dim = factory.create().getPos().length;
+		finalPos = new double[nCase*dim];
+		finalVel = new double[nCase*dim];
+		energyDrift = new double[nCase];
+		wallTime = new double[nCase];
+	}
+
+	/** @return n evenly spaced values from low to upp (inclusive) */
+	public static double[] linspace(double low, double upp, int n){
+		double[] x = new double[n];
+		for (int i=0; i<n; i++){
+			x[i] = (n == 1) ? low : low + (upp-low)*(i/(n-1.0));
+		}
+		return x;
+	}
+
+	/** Run every case on the common pool
+	 * @param duration of each simulation */
+	public void run(double duration){
+		ForkJoinPool.commonPool().invoke(new SweepTask(0, nCase, duration));
+	}
+
+	/** Run every case on a new pool with the given number of threads
+	 * @param duration of each simulation
+	 * @param nThreads = parallelism of the pool */
+	public void run(double duration, int nThreads){
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			pool.invoke(new SweepTask(0, nCase, duration));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Run a single case and store the results */
+	private void runCase(int c, double duration){
+		long start = System.nanoTime();
+
+		MechanicalSystem sys = factory.create();
+		sys.reset();
+		sys.setDamping(getDamping(c));
+		sys.setMaxTimeStep(getTimeStep(c));
+		double[] p = sys.getPos();
+		p[0] = getAngle(c);
+		sys.setPos(p);
+
+		double e0 = sys.getEnergy()[0];
+		sys.simulate(duration);
+		energyDrift[c] = sys.getEnergy()[0] - e0;
+		System.arraycopy(sys.getPos(), 0, finalPos, c*dim, dim);
+		System.arraycopy(sys.getVel(), 0, finalVel, c*dim, dim);
+
+		wallTime[c] = 1e-9*(System.nanoTime() - start);
+	}
+
+	/** Recursively split the range of cases in half */
+	@SuppressWarnings("serial")
+	private class SweepTask extends RecursiveAction {
+		private int low, upp;  // Range of cases [low, upp)
+		private double duration;
+
+		SweepTask(int low, int upp, double duration){
+			this.low = low;
+			this.upp = upp;
+			this.duration = duration;
+		}
+
+		@Override
+		protected void compute() {
+			if (upp - low <= grainSize){
+				for (int c=low; c<upp; c++){
+					runCase(c, duration);
+				}
+			} else {
+				int mid = (low + upp) >>> 1;
+				invokeAll(new SweepTask(low, mid, duration), new SweepTask(mid, upp, duration));
+			}
+		}
+	}
+
+	/** @return total number of cases in the sweep */
+	public int getCaseCount(){
+		return nCase;
+	}
+
+	/** @return damping used by case c */
+	public double getDamping(int c){
+		return damping[c/(angle.length*timeStep.length)];
+	}
+
+	/** @return initial angle used by case c */
+	public double getAngle(int c){
+		return angle[(c/timeStep.length) % angle.length];
+	}
+
+	/** @return maximum time step used by case c */
+	public double getTimeStep(int c){
+		return timeStep[c % timeStep.length];
+	}
+
+	/** @return final positions of every case, [c*dim + j] */
+	public double[] getFinalPos(){
+		return finalPos;
+	}
+
+	/** @return final velocities of every case, [c*dim + j] */
+	public double[] getFinalVel(){
+		return finalVel;
+	}
+
+	/** @return change in total energy over each case */
+	public double[] getEnergyDrift(){
+		return energyDrift;
+	}
+
+	/** @return wall time (s) taken by each case */
+	public double[] getWallTime(){
+		return wallTime;
+	}
+
+}
@@ -3,7 +3,7 @@ package mpk_dsc;
 import mpk_gui.DrawPanel;
 
 /** This is where the drawing takes place */
-public class Pendulum implements DynamicalSystem{
+public class Pendulum implements MechanicalSystem{
 
 	private double th0 = 1.8;  // Initial angle
 	private double w0 = 0.0;  // Initial rate
@@ -30,14 +30,23 @@ public class Pendulum implements DynamicalSystem{
 	
 	/** Constructor! */
 	public Pendulum(){
-		super(); // Create a draw panel 
+		this(false);
+	}
+	
+	/** Create a new pendulum. 
+	 * @param headless = if true, the plotter is not created and plot is null,
+	 * so that no graphics classes are needed to run the simulation */
+	public Pendulum(boolean headless){
+		super();
 
 		integrator = new Integrator(this);
-		integrator.method = Integrator.Method.SYM2;  // {EULER, RK4, SYM1, SYM2}
+		integrator.method = Integrator.Method.SYM2;  // {EULER, RK4, SYM1, SYM2, DOPRI5, CASHKARP}
 		
 		reset();
 		
-		plot = new PendulumPlotter();
+		if (!headless){
+			plot = new PendulumPlotter();
+		}
 	}
 		
 	/** Computes the dynamics for a single pendulum with damping and control 
@@ -45,13 +54,29 @@ public class Pendulum implements DynamicalSystem{
 	 * ddTh = tau/(m*l*l) - (c*dTh)/(m*l*l) - (g/l)*Math.sin(th) */
 	@Override
 	public double[] dynamics(double[] p, double[] v){
+		double[] dv = new double[1];
+		dynamics(p,v,dv);
+		return dv;
+	}
+	
+	/** In-place version of the dynamics, used by the integrator */
+	@Override
+	public void dynamics(double[] p, double[] v, double[] dv){
 
 		double th = p[0];
 		double w = v[0];
 	
-		return new double[] {tau/(m*l*l) - (c*w)/(m*l*l) - (g/l)*Math.sin(th)};
+		dv[0] = tau/(m*l*l) - (c*w)/(m*l*l) - (g/l)*Math.sin(th);
 
 	}
+	
+	/** Analytic Jacobian of the dynamics, used by the implicit methods */
+	@Override
+	public boolean jacobian(double[] p, double[] v, double[] dadp, double[] dadv){
+		dadp[0] = -(g/l)*Math.cos(p[0]);
+		dadv[0] = -c/(m*l*l);
+		return true;
+	}
 
 	public void reset(){
 		th[0] = th0;
@@ -60,14 +85,21 @@ public class Pendulum implements DynamicalSystem{
 	}
 	
 	/** Sets the current value of the damping constant */
+	@Override
 	public void setDamping(double c){
 		this.c = c;
 	}
 	
 	/** Set the maximum time step for the integrator */
+	@Override
 	public void setMaxTimeStep(double dt){
 		maxTimeStep = dt;
 	}
+	
+	/** @return the integrator, to select the method and tolerances */
+	public Integrator getIntegrator(){
+		return integrator;
+	}
 		
 	@Override
 	public void timeStep(double dt) {
@@ -82,6 +114,7 @@ public class Pendulum implements DynamicalSystem{
 	
 	/** Return the system's mechanical energy
 	 * @return energy[] = {total, kinetic, potential}*/
+	@Override
 	public double[] getEnergy(){
 //		double x = l*Math.sin(th[0]);
 		double y = -l*Math.cos(th[0]);
@@ -160,4 +193,4 @@ public class Pendulum implements DynamicalSystem{
 	}
 
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,287 @@
+package mpk_dsc;
+
+/** A planar chain of n pendulum links hanging from a fixed pivot. Each link
+ * is a massless rod with a point mass at its end, like DoublePendulum, and
+ * every joint has the same viscous damping.
+ *
+ * The coordinates are joint angles: p[0] is the absolute angle of the first
+ * link (measured from the x axis, so hanging straight down is -pi/2), and
+ * p[i] is the angle of link i relative to link i-1. For two links this is
+ * DoublePendulum with p = {th, phi-th}.
+ *
+ * The accelerations are computed with Featherstone's articulated-body
+ * algorithm, using planar spatial vectors (rate, vx, vy) and forces
+ * (moment, fx, fy) expressed in each link's frame. It takes three passes
+ * along the chain, so the cost is O(n) instead of the O(n^3) of forming and
+ * solving the n-by-n mass matrix. All scratch arrays are allocated once.
+ * @author matt
+ */
+public class PendulumChain implements MechanicalSystem {
+
+	private int n;  // Number of links
+	private double[] q0, w0;  // Initial state
+	private double[] q, w;    // Current state (joint angles and rates)
+	private double time = 0.0;
+
+	/* parameters of every link */
+	private double m = 1.0;   // (kg) mass at the end of each link
+	private double g = 9.81;  // (m/s^2) gravity
+	private double l = 1.0;   // (m) length of each link
+	private double damping = 0.0;  // Viscous damping in every joint
+
+	private double maxTimeStep = 0.01;
+	private Integrator integrator;
+
+	/// Scratch for the articulated-body algorithm, 3 or 9 entries per link
+	private double[] X;        // Transform from parent to link coordinates (row major 3x3)
+	private double[] vel;      // Spatial velocity of each link
+	private double[] bias;     // Velocity-product acceleration (c)
+	private double[] IA, pA;   // Articulated inertia and bias force
+	private double[] U, D, u;  // IA*S, S'*IA*S, tau - S'*pA
+	private double[] Ia = new double[9], pa = new double[3], tmp = new double[9];
+
+	/** Create a chain of links that starts out straight, tilted 1 rad from
+	 * hanging straight down, and at rest
+	 * @param n = number of links */
+	public PendulumChain(int n){
+		if (n < 1){
+			throw new IllegalArgumentException("A chain needs at least one link");
+		}
+		this.n = n;
+		q0 = new double[n];
+		w0 = new double[n];
+		q = new double[n];
+		w = new double[n];
+		q0[0] = -0.5*Math.PI + 1.0;
+
+		X = new double[9*n];
+		vel = new double[3*n];
+		bias = new double[3*n];
+		IA = new double[9*n];
+		pA = new double[3*n];
+		U = new double[3*n];
+		D = new double[n];
+		u = new double[n];
+
+		integrator = new Integrator(this);
+		integrator.method = Integrator.Method.RK4;
+		reset();
+	}
+
+	/** @return number of links */
+	public int size(){
+		return n;
+	}
+
+	/** Set the state that reset() returns to (joint angles and rates) */
+	public void setInitialState(double[] p, double[] v){
+		System.arraycopy(p, 0, q0, 0, n);
+		System.arraycopy(v, 0, w0, 0, n);
+	}
+
+	/** Set the mass and length of every link */
+	public void setLinks(double mass, double length){
+		m = mass;
+		l = length;
+	}
+
+	/** Articulated-body algorithm: joint accelerations from joint angles
+	 * and rates, with a damping moment at each joint */
+	@Override
+	public void dynamics(double[] p, double[] v, double[] dv){
+
+		/// Pass 1, base to tip: transforms, velocities, and the rigid body
+		/// inertia and bias force of each link on its own
+		double ml = m*l, mll = m*l*l;
+		for (int i=0; i<n; i++){
+			int i3 = 3*i, i9 = 9*i;
+			double c = Math.cos(p[i]), s = Math.sin(p[i]);
+			double rx = (i == 0) ? 0.0 : l;  // Joint i is at the end of link i-1
+			X[i9]   = 1.0;    X[i9+1] = 0.0; X[i9+2] = 0.0;
+			X[i9+3] = s*rx;   X[i9+4] = c;   X[i9+5] = s;
+			X[i9+6] = c*rx;   X[i9+7] = -s;  X[i9+8] = c;
+
+			double wz, vx, vy;
+			if (i == 0){
+				wz = 0.0; vx = 0.0; vy = 0.0;
+			} else {
+				int j3 = i3-3;
+				wz = vel[j3];
+				vx = X[i9+3]*vel[j3] + X[i9+4]*vel[j3+1] + X[i9+5]*vel[j3+2];
+				vy = X[i9+6]*vel[j3] + X[i9+7]*vel[j3+1] + X[i9+8]*vel[j3+2];
+			}
+			wz += v[i];
+			vel[i3] = wz; vel[i3+1] = vx; vel[i3+2] = vy;
+
+			// c = vel x S*qd
+			bias[i3] = 0.0;
+			bias[i3+1] = vy*v[i];
+			bias[i3+2] = -vx*v[i];
+
+			// Point mass at (l,0) in link coordinates
+			IA[i9]   = mll; IA[i9+1] = 0.0; IA[i9+2] = ml;
+			IA[i9+3] = 0.0; IA[i9+4] = m;   IA[i9+5] = 0.0;
+			IA[i9+6] = ml;  IA[i9+7] = 0.0; IA[i9+8] = m;
+
+			// pA = vel x* (I*vel)
+			double fx = m*vx, fy = ml*wz + m*vy;
+			pA[i3] = vx*fy - vy*fx;
+			pA[i3+1] = -wz*fy;
+			pA[i3+2] = wz*fx;
+		}
+
+		/// Pass 2, tip to base: articulated inertias and bias forces
+		for (int i=n-1; i>=0; i--){
+			int i3 = 3*i, i9 = 9*i;
+			U[i3] = IA[i9]; U[i3+1] = IA[i9+3]; U[i3+2] = IA[i9+6];
+			D[i] = U[i3];
+			u[i] = -damping*v[i] - pA[i3];
+			if (i == 0) break;
+
+			// Inertia and bias force passed through joint i to the parent
+			for (int r=0; r<3; r++){
+				for (int k=0; k<3; k++){
+					Ia[3*r+k] = IA[i9+3*r+k] - U[i3+r]*U[i3+k]/D[i];
+				}
+			}
+			double ud = u[i]/D[i];
+			for (int r=0; r<3; r++){
+				pa[r] = pA[i3+r] + Ia[3*r]*bias[i3] + Ia[3*r+1]*bias[i3+1] + Ia[3*r+2]*bias[i3+2] + U[i3+r]*ud;
+			}
+
+			// IA[parent] += X'*Ia*X,  pA[parent] += X'*pa
+			for (int r=0; r<3; r++){
+				for (int k=0; k<3; k++){
+					tmp[3*r+k] = Ia[3*r]*X[i9+k] + Ia[3*r+1]*X[i9+3+k] + Ia[3*r+2]*X[i9+6+k];
+				}
+			}
+			int j3 = i3-3, j9 = i9-9;
+			for (int r=0; r<3; r++){
+				for (int k=0; k<3; k++){
+					IA[j9+3*r+k] += X[i9+r]*tmp[k] + X[i9+3+r]*tmp[3+k] + X[i9+6+r]*tmp[6+k];
+				}
+				pA[j3+r] += X[i9+r]*pa[0] + X[i9+3+r]*pa[1] + X[i9+6+r]*pa[2];
+			}
+		}
+
+		/// Pass 3, base to tip: accelerations. Gravity is modeled as an
+		/// upward acceleration of the base.
+		double a0 = 0.0, a1 = 0.0, a2 = g;
+		for (int i=0; i<n; i++){
+			int i3 = 3*i, i9 = 9*i;
+			double b0 = a0 + bias[i3];
+			double b1 = X[i9+3]*a0 + X[i9+4]*a1 + X[i9+5]*a2 + bias[i3+1];
+			double b2 = X[i9+6]*a0 + X[i9+7]*a1 + X[i9+8]*a2 + bias[i3+2];
+			double qdd = (u[i] - (U[i3]*b0 + U[i3+1]*b1 + U[i3+2]*b2))/D[i];
+			dv[i] = qdd;
+			a0 = b0 + qdd; a1 = b1; a2 = b2;
+		}
+	}
+
+	@Override
+	public double[] dynamics(double[] p, double[] v){
+		double[] dv = new double[n];
+		dynamics(p,v,dv);
+		return dv;
+	}
+
+	/** Get the system energy
+	 * @return {total, kinetic, potential} */
+	@Override
+	public double[] getEnergy(){
+		double angle = 0.0, rate = 0.0;
+		double y = 0.0, dx = 0.0, dy = 0.0;
+		double kinetic = 0.0, potential = 0.0;
+		for (int i=0; i<n; i++){
+			angle += q[i];
+			rate += w[i];
+			y += l*Math.sin(angle);
+			dx -= l*Math.sin(angle)*rate;
+			dy += l*Math.cos(angle)*rate;
+			kinetic += 0.5*m*(dx*dx + dy*dy);
+			potential += m*g*(y + (i+1)*l);  // Zero when hanging straight down
+		}
+		return new double[] {kinetic + potential, kinetic, potential};
+	}
+
+	/** Get the position of every joint and the tip, for drawing
+	 * @param x = filled with n+1 values, starting with the pivot at 0
+	 * @param y = filled with n+1 values */
+	public void getJointPositions(double[] x, double[] y){
+		double angle = 0.0;
+		x[0] = 0.0;
+		y[0] = 0.0;
+		for (int i=0; i<n; i++){
+			angle += q[i];
+			x[i+1] = x[i] + l*Math.cos(angle);
+			y[i+1] = y[i] + l*Math.sin(angle);
+		}
+	}
+
+	@Override
+	public void timeStep(double dt) {
+		integrator.timeStep(dt);
+	}
+
+	@Override
+	public void simulate(double duration){
+		int nSteps = (int)(Math.ceil(duration/maxTimeStep));
+		integrator.timeStep(duration, nSteps);
+	}
+
+	/** Sets the current value of the damping constant */
+	@Override
+	public void setDamping(double c){
+		this.damping = c;
+	}
+
+	/** Set the maximum time step for the integrator */
+	@Override
+	public void setMaxTimeStep(double dt){
+		maxTimeStep = dt;
+	}
+
+	/** @return the integrator, to select the method and tolerances */
+	@Override
+	public Integrator getIntegrator(){
+		return integrator;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public void setTime(double t) {
+		time = t;
+	}
+
+	@Override
+	public double[] getPos() {
+		return q;
+	}
+
+	@Override
+	public double[] getVel() {
+		return w;
+	}
+
+	@Override
+	public void setPos(double[] p) {
+		System.arraycopy(p, 0, q, 0, n);
+	}
+
+	@Override
+	public void setVel(double[] v) {
+		System.arraycopy(v, 0, w, 0, n);
+	}
+
+	@Override
+	public void reset() {
+		setPos(q0);
+		setVel(w0);
+		time = 0.0;
+	}
+
+}
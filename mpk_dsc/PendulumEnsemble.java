@@ -0,0 +1,160 @@
+package mpk_dsc;
+
+/** Many independent copies of the damped pendulum, stored as a single
+ * dynamical system with pos = [th_0, ..., th_N-1] and vel = [w_0, ..., w_N-1].
+ * The dynamics and the RK4 stage updates are evaluated by ArrayKernels, so
+ * they use SIMD instructions when the Vector API is available. All members
+ * share the same physical parameters as Pendulum. */
+public class PendulumEnsemble implements DynamicalSystem {
+
+	private int nMembers;
+	private double[] th0, w0;  // Initial state of every member
+	private double[] th, w;    // Current state of every member
+	private double time = 0.0;
+
+	public double tau = 0;
+
+	/* m*l*l*ddTh + c*dTh + m*g*l*Math.sin(th) = tau */
+	private double m = 1.0;  // (kg) mass
+	private double g = 10.0; // (m/s^2) gravity
+	private double l = 0.3;  // (m) length
+	private double c = 0.0;  // (N*m*s) damping
+
+	private double maxTimeStep = 0.02;
+
+	private ArrayKernels kernels;
+	private Integrator integrator;
+
+	/** Create an ensemble, with every member starting from the same default
+	 * initial state as Pendulum
+	 * @param nMembers = number of pendulums in the ensemble */
+	public PendulumEnsemble(int nMembers){
+		this.nMembers = nMembers;
+		th0 = new double[nMembers];
+		w0 = new double[nMembers];
+		th = new double[nMembers];
+		w = new double[nMembers];
+		for (int i=0; i<nMembers; i++){
+			setInitialState(i, 1.8, 0.0);
+		}
+
+		integrator = new Integrator(this);
+		integrator.method = Integrator.Method.RK4;  // {EULER, RK4, SYM1, SYM2, DOPRI5, CASHKARP}
+		setKernels(ArrayKernels.create());
+
+		reset();
+	}
+
+	/** Select the kernels used for the dynamics and the RK4 stage updates
+	 * @param kernels = ArrayKernels.create() or ArrayKernels.scalar() */
+	public void setKernels(ArrayKernels kernels){
+		this.kernels = kernels;
+		integrator.kernels = kernels;
+	}
+
+	/** @return the kernels that are currently in use */
+	public ArrayKernels getKernels(){
+		return kernels;
+	}
+
+	/** Set the initial state of a single member. Takes effect on reset().
+	 * @param i = index of the member
+	 * @param th = initial angle
+	 * @param w = initial rate */
+	public void setInitialState(int i, double th, double w){
+		th0[i] = th;
+		w0[i] = w;
+	}
+
+	/** @return number of members in the ensemble */
+	public int size(){
+		return nMembers;
+	}
+
+	/** Computes the dynamics for every member of the ensemble
+	 * ddTh = tau/(m*l*l) - (c*dTh)/(m*l*l) - (g/l)*Math.sin(th) */
+	@Override
+	public void dynamics(double[] p, double[] v, double[] dv){
+		kernels.pendulum(p, v, dv, nMembers, tau/(m*l*l), c/(m*l*l), g/l);
+	}
+
+	@Override
+	public double[] dynamics(double[] p, double[] v){
+		double[] dv = new double[nMembers];
+		dynamics(p,v,dv);
+		return dv;
+	}
+
+	/** Get the total mechanical energy of a single member
+	 * @param i = index of the member */
+	public double getEnergy(int i){
+		double y = -l*Math.cos(th[i]);
+		double kinetic = 0.5*m*l*l*w[i]*w[i];
+		double potential = m*g*(y+l);
+		return kinetic + potential;
+	}
+
+	@Override
+	public void timeStep(double dt) {
+		integrator.timeStep(dt);
+	}
+
+	@Override
+	public void simulate(double duration){
+		int nSteps = (int)(Math.ceil(duration/maxTimeStep));
+		integrator.timeStep(duration, nSteps);
+	}
+
+	/** Sets the current value of the damping constant */
+	public void setDamping(double c){
+		this.c = c;
+	}
+
+	/** Set the maximum time step for the integrator */
+	public void setMaxTimeStep(double dt){
+		maxTimeStep = dt;
+	}
+
+	/** @return the integrator, to select the method and tolerances */
+	public Integrator getIntegrator(){
+		return integrator;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public void setTime(double t) {
+		time = t;
+	}
+
+	@Override
+	public double[] getPos() {
+		return th;
+	}
+
+	@Override
+	public double[] getVel() {
+		return w;
+	}
+
+	@Override
+	public void setPos(double[] p) {
+		System.arraycopy(p, 0, th, 0, nMembers);
+	}
+
+	@Override
+	public void setVel(double[] v) {
+		System.arraycopy(v, 0, w, 0, nMembers);
+	}
+
+	@Override
+	public void reset() {
+		setPos(th0);
+		setVel(w0);
+		time = 0.0;
+	}
+
+}
@@ -0,0 +1,35 @@
+package mpk_dsc;
+
+/** Plain loop implementation of the array kernels. This is the fall-back 
+ * when the Vector API is not available. */
+class ScalarKernels implements ArrayKernels {
+
+	@Override
+	public void axpy(double[] x, double a, double[] y, double[] out, int n) {
+		for (int i=0; i<n; i++){
+			out[i] = x[i] + a*y[i];
+		}
+	}
+
+	@Override
+	public void rk4(double[] x, double h, double[] k1, double[] k2,
+			double[] k3, double[] k4, int n) {
+		for (int i=0; i<n; i++){
+			x[i] = x[i] + (h/6.0)*(k1[i] + 2.0*k2[i] + 2.0*k3[i] + k4[i]);
+		}
+	}
+
+	@Override
+	public void pendulum(double[] th, double[] w, double[] out, int n,
+			double bias, double damp, double grav) {
+		for (int i=0; i<n; i++){
+			out[i] = bias - damp*w[i] - grav*Math.sin(th[i]);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "scalar";
+	}
+
+}
@@ -0,0 +1,65 @@
+package mpk_dsc;
+
+/** Presents a second order DynamicalSystem as a FirstOrderSystem, with the
+ * state y = [p, v] and y' = [v, dynamics(p,v)]. Each evaluation copies the
+ * two halves of y into separate arrays, so this is for re-using existing
+ * systems inside a larger first order model, not for speed. */
+public class SecondOrderAdapter implements FirstOrderSystem {
+
+	private DynamicalSystem sys;
+	private int n;  // Dimension of the position vector
+	private double[] y;       // Flat copy of the state
+	private double[] p, v, a; // Scratch space for the dynamics
+
+	/** Wrap a second order system */
+	public SecondOrderAdapter(DynamicalSystem sys){
+		this.sys = sys;
+		n = sys.getPos().length;
+		y = new double[2*n];
+		p = new double[n];
+		v = new double[n];
+		a = new double[n];
+	}
+
+	/** @return the system that is wrapped */
+	public DynamicalSystem getSystem(){
+		return sys;
+	}
+
+	/** @return [p, v], copied from the system */
+	@Override
+	public double[] getState() {
+		System.arraycopy(sys.getPos(), 0, y, 0, n);
+		System.arraycopy(sys.getVel(), 0, y, n, n);
+		return y;
+	}
+
+	/** @param y = [p, v], copied into the system */
+	@Override
+	public void setState(double[] y) {
+		System.arraycopy(y, 0, p, 0, n);
+		System.arraycopy(y, n, v, 0, n);
+		sys.setPos(p);
+		sys.setVel(v);
+	}
+
+	@Override
+	public double getTime() {
+		return sys.getTime();
+	}
+
+	@Override
+	public void setTime(double t) {
+		sys.setTime(t);
+	}
+
+	@Override
+	public void derivative(double t, double[] y, double[] dy) {
+		System.arraycopy(y, 0, p, 0, n);
+		System.arraycopy(y, n, v, 0, n);
+		sys.dynamics(p, v, a);
+		System.arraycopy(v, 0, dy, 0, n);
+		System.arraycopy(a, 0, dy, n, n);
+	}
+
+}
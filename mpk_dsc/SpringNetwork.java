@@ -0,0 +1,447 @@
+package mpk_dsc;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import mpk_gui.DrawPanel;
+
+/** A network of point masses joined by damped springs, moving in a plane
+ * under gravity, for example a hanging cloth. The state uses the same
+ * structure of arrays as DoublePendulumEnsemble:
+ *
+ * pos = [x_0, ..., x_N-1, y_0, ..., y_N-1]
+ * vel = [dx_0, ..., dx_N-1, dy_0, ..., dy_N-1]
+ *
+ * The springs are stored in flat primitive arrays (end nodes, rest length,
+ * stiffness), sorted by color: the springs are colored so that no two
+ * springs of the same color share a node, and colorStart[c] is the first
+ * spring of color c. The forces are accumulated in one pass over the
+ * springs, adding each spring's force to both of its ends. Within a color
+ * these scatter-adds touch different nodes, so a color can be split
+ * across threads without any locking, and the colors are done one after
+ * the other.
+ *
+ * Pinned nodes do not move. SYM1 and SYM2 are the intended integrators.
+ * @author matt
+ */
+public class SpringNetwork implements MechanicalSystem {
+
+	/** Spread each color of springs across threads */
+	public boolean parallel = true;
+
+	/** Springs in a range smaller than this are not split further */
+	public int grainSize = 4096;
+
+	private int nNode, nSpring, nColor;
+	private double[] mass;
+	private boolean[] pinned;
+	private double[] pos0, vel0;  // Initial state
+	private double[] pos, vel;    // Current state
+	private double time = 0.0;
+
+	/// Springs, sorted by color
+	private int[] springA, springB;  // Nodes at each end
+	private double[] restLength;
+	private double[] stiffness;      // (N/m)
+	private boolean[] drawn;         // Drawn by the plotter
+	private int[] colorStart;        // Springs of color c are [colorStart[c], colorStart[c+1])
+
+	private double springDamping = 0.0;  // (N*s/m) along each spring
+	private double damping = 0.0;        // (N*s/m) drag on each node
+	private double g = 9.81;             // (m/s^2) gravity
+
+	private double maxTimeStep = 0.001;
+	private Integrator integrator;
+
+	public SpringPlotter plot;
+
+	/** Create a network. The rest length of each spring is its length in the
+	 * initial state, and nothing is pinned.
+	 * @param x = initial x of each node
+	 * @param y = initial y of each node
+	 * @param nodeMass = mass of each node (kg)
+	 * @param a = first node of each spring
+	 * @param b = second node of each spring
+	 * @param k = stiffness of each spring (N/m)
+	 * @param headless = if true, the plotter is not created and plot is null,
+	 * so that no graphics classes are needed to run the simulation */
+	public SpringNetwork(double[] x, double[] y, double[] nodeMass, int[] a, int[] b, double[] k, boolean headless){
+		nNode = x.length;
+		nSpring = a.length;
+		mass = nodeMass.clone();
+		pinned = new boolean[nNode];
+		pos0 = new double[2*nNode];
+		vel0 = new double[2*nNode];
+		pos = new double[2*nNode];
+		vel = new double[2*nNode];
+		System.arraycopy(x, 0, pos0, 0, nNode);
+		System.arraycopy(y, 0, pos0, nNode, nNode);
+
+		/// Sort the springs by color
+		int[] color = colorSprings(a, b);
+		springA = new int[nSpring];
+		springB = new int[nSpring];
+		restLength = new double[nSpring];
+		stiffness = new double[nSpring];
+		drawn = new boolean[nSpring];
+		colorStart = new int[nColor+1];
+		for (int s=0; s<nSpring; s++) colorStart[color[s]+1]++;
+		for (int c=0; c<nColor; c++) colorStart[c+1] += colorStart[c];
+		int[] fill = colorStart.clone();
+		for (int s=0; s<nSpring; s++){
+			int e = fill[color[s]]++;
+			springA[e] = a[s];
+			springB[e] = b[s];
+			restLength[e] = Math.hypot(x[b[s]] - x[a[s]], y[b[s]] - y[a[s]]);
+			stiffness[e] = k[s];
+			drawn[e] = true;
+		}
+
+		integrator = new Integrator(this);
+		integrator.method = Integrator.Method.SYM2;
+		reset();
+
+		if (!headless){
+			plot = new SpringPlotter();
+		}
+	}
+
+	/** Greedy edge coloring: each spring gets the lowest color that is not
+	 * already used at either of its nodes. Uses at most 2*degree-1 colors.
+	 * @return color of each spring */
+	private int[] colorSprings(int[] a, int[] b){
+		int[] degree = new int[nNode];
+		for (int s=0; s<nSpring; s++){
+			if (a[s] == b[s]){
+				throw new IllegalArgumentException("Spring " + s + " connects node " + a[s] + " to itself");
+			}
+			degree[a[s]]++;
+			degree[b[s]]++;
+		}
+		int maxDegree = 0;
+		for (int d : degree) maxDegree = Math.max(maxDegree, d);
+		int words = (2*maxDegree)/64 + 1;
+		long[] used = new long[nNode*words];  // Bit c is set if node uses color c
+
+		int[] color = new int[nSpring];
+		nColor = 0;
+		for (int s=0; s<nSpring; s++){
+			int wa = a[s]*words, wb = b[s]*words;
+			int c = 0;
+			for (int w=0; w<words; w++){
+				long free = ~(used[wa+w] | used[wb+w]);
+				if (free != 0){
+					c = 64*w + Long.numberOfTrailingZeros(free);
+					break;
+				}
+			}
+			used[wa + c/64] |= 1L << (c % 64);
+			used[wb + c/64] |= 1L << (c % 64);
+			color[s] = c;
+			nColor = Math.max(nColor, c+1);
+		}
+		return color;
+	}
+
+	/** Create a rectangular cloth hanging from its top corners, with
+	 * structural springs between neighbors, shear springs across each
+	 * square, and weaker bending springs that skip a node. Only the
+	 * structural springs are drawn.
+	 * @param nx = nodes across
+	 * @param ny = nodes down
+	 * @param spacing = rest distance between neighbors (m)
+	 * @param headless = if true, no plotter is created */
+	public static SpringNetwork cloth(int nx, int ny, double spacing, boolean headless){
+		int n = nx*ny;
+		double[] x = new double[n], y = new double[n], m = new double[n];
+		for (int j=0; j<ny; j++){
+			for (int i=0; i<nx; i++){
+				x[j*nx+i] = (i - 0.5*(nx-1))*spacing;
+				y[j*nx+i] = -j*spacing;
+				m[j*nx+i] = 1.0/n;  // 1 kg in total
+			}
+		}
+
+		/// Offsets to the neighbors of each node, with relative stiffness
+		int[][] offsets = {{1,0}, {0,1}, {1,1}, {-1,1}, {2,0}, {0,2}};
+		double[] scale = {1.0, 1.0, 0.5, 0.5, 0.1, 0.1};
+		int nMax = offsets.length*n;
+		int[] a = new int[nMax], b = new int[nMax];
+		double[] k = new double[nMax];
+		int s = 0;
+		double k0 = 2.0/spacing;  // (N/m) so that the cloth stretches the same at any resolution
+		for (int j=0; j<ny; j++){
+			for (int i=0; i<nx; i++){
+				for (int o=0; o<offsets.length; o++){
+					int i2 = i + offsets[o][0], j2 = j + offsets[o][1];
+					if (i2 < 0 || i2 >= nx || j2 >= ny) continue;
+					a[s] = j*nx + i;
+					b[s] = j2*nx + i2;
+					k[s] = k0*scale[o];
+					s++;
+				}
+			}
+		}
+		SpringNetwork net = new SpringNetwork(x, y, m, Arrays.copyOf(a, s),
+				Arrays.copyOf(b, s), Arrays.copyOf(k, s), headless);
+		net.setSpringDamping(0.05*Math.sqrt(k0*m[0]));
+		net.setMaxTimeStep(0.8*net.getStableTimeStep());
+		net.pinned[0] = true;
+		net.pinned[nx-1] = true;
+
+		/// Find where each spring ended up after sorting by color
+		for (int e=0; e<net.nSpring; e++){
+			int dx = Math.abs(net.springB[e] % nx - net.springA[e] % nx);
+			int dy = Math.abs(net.springB[e] / nx - net.springA[e] / nx);
+			net.drawn[e] = (dx + dy == 1);
+		}
+		return net;
+	}
+
+	/** @return an upper bound on the time step for which SYM1 and SYM2 are
+	 * stable: 2/w, where w bounds the highest natural frequency of the
+	 * springs (from the total stiffness at each node, over its mass) */
+	public double getStableTimeStep(){
+		double[] kNode = new double[nNode];
+		for (int e=0; e<nSpring; e++){
+			kNode[springA[e]] += stiffness[e];
+			kNode[springB[e]] += stiffness[e];
+		}
+		double w2 = 0.0;
+		for (int i=0; i<nNode; i++){
+			w2 = Math.max(w2, 2*kNode[i]/mass[i]);
+		}
+		return 2.0/Math.sqrt(w2);
+	}
+
+	/** Hold a node still (or let it go) */
+	public void setPinned(int node, boolean isPinned){
+		pinned[node] = isPinned;
+	}
+
+	/** Set the damping along every spring (N*s/m) */
+	public void setSpringDamping(double c){
+		springDamping = c;
+	}
+
+	/** @return number of nodes */
+	public int size(){
+		return nNode;
+	}
+
+	/** @return number of springs */
+	public int getSpringCount(){
+		return nSpring;
+	}
+
+	/** @return number of colors, which is the number of passes that must be
+	 * done one after the other */
+	public int getColorCount(){
+		return nColor;
+	}
+
+	@Override
+	public void dynamics(double[] p, double[] v, double[] dv){
+		/// Accumulate the spring forces in dv, one color at a time
+		Arrays.fill(dv, 0.0);
+		for (int c=0; c<nColor; c++){
+			int low = colorStart[c], upp = colorStart[c+1];
+			if (parallel && upp - low > grainSize){
+				ForkJoinPool.commonPool().invoke(new SpringTask(p, v, dv, low, upp));
+			} else {
+				addSpringForces(p, v, dv, low, upp);
+			}
+		}
+
+		/// Divide by the mass, and add drag and gravity
+		final int N = nNode;
+		for (int i=0; i<N; i++){
+			if (pinned[i]){
+				dv[i] = 0.0;
+				dv[N+i] = 0.0;
+			} else {
+				dv[i] = (dv[i] - damping*v[i])/mass[i];
+				dv[N+i] = (dv[N+i] - damping*v[N+i])/mass[i] - g;
+			}
+		}
+	}
+
+	/** Add the force of springs [low, upp) to both of their ends */
+	private void addSpringForces(double[] p, double[] v, double[] f, int low, int upp){
+		final int N = nNode;
+		final double c = springDamping;
+		for (int e=low; e<upp; e++){
+			int i = springA[e], j = springB[e];
+			double dx = p[j] - p[i], dy = p[N+j] - p[N+i];
+			double len = Math.sqrt(dx*dx + dy*dy);
+			double dvx = v[j] - v[i], dvy = v[N+j] - v[N+i];
+			// Tension per unit length, from the stretch and the stretch rate
+			double t = (stiffness[e]*(len - restLength[e]) + c*(dx*dvx + dy*dvy)/len)/len;
+			double fx = t*dx, fy = t*dy;
+			f[i] += fx; f[N+i] += fy;
+			f[j] -= fx; f[N+j] -= fy;
+		}
+	}
+
+	/** Recursively split the springs of one color in half */
+	@SuppressWarnings("serial")
+	private class SpringTask extends RecursiveAction {
+		private double[] p, v, f;
+		private int low, upp;  // Range of springs [low, upp)
+
+		SpringTask(double[] p, double[] v, double[] f, int low, int upp){
+			this.p = p;
+			this.v = v;
+			this.f = f;
+			this.low = low;
+			this.upp = upp;
+		}
+
+		@Override
+		protected void compute() {
+			if (upp - low <= grainSize){
+				addSpringForces(p, v, f, low, upp);
+			} else {
+				int mid = (low + upp) >>> 1;
+				invokeAll(new SpringTask(p, v, f, low, mid), new SpringTask(p, v, f, mid, upp));
+			}
+		}
+	}
+
+	@Override
+	public double[] dynamics(double[] p, double[] v){
+		double[] dv = new double[2*nNode];
+		dynamics(p,v,dv);
+		return dv;
+	}
+
+	/** Get the system energy (gravity is zero at y = 0)
+	 * @return {total, kinetic, potential} */
+	@Override
+	public double[] getEnergy(){
+		final int N = nNode;
+		double kinetic = 0.0, potential = 0.0;
+		for (int i=0; i<N; i++){
+			kinetic += 0.5*mass[i]*(vel[i]*vel[i] + vel[N+i]*vel[N+i]);
+			potential += mass[i]*g*pos[N+i];
+		}
+		for (int e=0; e<nSpring; e++){
+			int i = springA[e], j = springB[e];
+			double stretch = Math.hypot(pos[j] - pos[i], pos[N+j] - pos[N+i]) - restLength[e];
+			potential += 0.5*stiffness[e]*stretch*stretch;
+		}
+		return new double[] {kinetic + potential, kinetic, potential};
+	}
+
+	@Override
+	public void timeStep(double dt) {
+		integrator.timeStep(dt);
+	}
+
+	@Override
+	public void simulate(double duration){
+		int nSteps = (int)(Math.ceil(duration/maxTimeStep));
+		integrator.timeStep(duration, nSteps);
+	}
+
+	/** Sets the drag on every node (N*s/m) */
+	@Override
+	public void setDamping(double c){
+		this.damping = c;
+	}
+
+	/** Set the maximum time step for the integrator */
+	@Override
+	public void setMaxTimeStep(double dt){
+		maxTimeStep = dt;
+	}
+
+	/** @return the integrator, to select the method and tolerances */
+	@Override
+	public Integrator getIntegrator(){
+		return integrator;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public void setTime(double t) {
+		time = t;
+	}
+
+	@Override
+	public double[] getPos() {
+		return pos;
+	}
+
+	@Override
+	public double[] getVel() {
+		return vel;
+	}
+
+	@Override
+	public void setPos(double[] p) {
+		System.arraycopy(p, 0, pos, 0, 2*nNode);
+	}
+
+	@Override
+	public void setVel(double[] v) {
+		System.arraycopy(v, 0, vel, 0, 2*nNode);
+	}
+
+	@Override
+	public void reset() {
+		setPos(pos0);
+		setVel(vel0);
+		time = 0.0;
+	}
+
+	/** ********************************************************************
+	 * A class for plotting the network: a line for each drawn spring and a
+	 * dot for each pinned node
+	 */
+	@SuppressWarnings("serial")
+	public class SpringPlotter extends DrawPanel {
+
+		/** Create a new plotter that fits the initial state */
+		public SpringPlotter(){
+			super();
+			double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+			double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+			for (int i=0; i<nNode; i++){
+				xMin = Math.min(xMin, pos0[i]); xMax = Math.max(xMax, pos0[i]);
+				yMin = Math.min(yMin, pos0[nNode+i]); yMax = Math.max(yMax, pos0[nNode+i]);
+			}
+			double size = Math.max(xMax - xMin, yMax - yMin);
+			xLow = 0.5*(xMin + xMax) - size;
+			xUpp = 0.5*(xMin + xMax) + size;
+			yLow = yMax - 2.0*size;
+			yUpp = yMax + 0.2*size;
+			setSize(800, 800);
+		}
+
+		@Override
+		public void paint() {
+			final int N = nNode;
+			setColor(new Color(40, 90, 160));
+			for (int e=0; e<nSpring; e++){
+				if (!drawn[e]) continue;
+				int i = springA[e], j = springB[e];
+				drawLine(pos[i], pos[N+i], pos[j], pos[N+j]);
+			}
+			setColor(Color.BLACK);
+			double r = 0.01*(xUpp - xLow);
+			for (int i=0; i<N; i++){
+				if (pinned[i]) fillCircle(pos[i], pos[N+i], r);
+			}
+			drawString(String.format("Time: %6.3f", time), xLow + 0.05*(xUpp-xLow), yUpp - 0.05*(yUpp-yLow));
+		}
+
+	}
+
+}
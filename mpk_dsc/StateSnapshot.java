@@ -0,0 +1,98 @@
+package mpk_dsc;
+
+/** A copy of the complete state of a simulation: the time, position and
+ * velocity of the system, and the history kept by its integrator (the step
+ * size controller and the event functions). Restoring a snapshot puts the
+ * simulation back exactly where it was, so running forward again with the
+ * same calls (the same durations and sub-steps) gives the same result, bit
+ * for bit, as the first time. Running forward with different calls splits
+ * the steps differently, and only agrees to within the integration error.
+ * The implicit methods keep their Jacobian from step to step, which is not
+ * part of the snapshot, so with them a replay may differ within newtonTol.
+ *
+ * Snapshots are meant to be allocated once and re-used: capture() copies
+ * into the existing arrays and does not allocate.
+ * @author matt
+ */
+public class StateSnapshot {
+
+	double time = Double.NaN;
+	double[] pos, vel;
+
+	/// Integrator history, see Integrator.saveState()
+	double hNext = 0;
+	double errOld = 1e-4;
+	double[] gOld = new double[0];
+
+	/** Create an empty snapshot
+	 * @param dim = length of the position (and velocity) vector */
+	public StateSnapshot(int dim){
+		pos = new double[dim];
+		vel = new double[dim];
+	}
+
+	/** Copy the state of the system (and its integrator) into this snapshot
+	 * @param integrator = the integrator used by the system, or null */
+	public void capture(DynamicalSystem sys, Integrator integrator){
+		time = sys.getTime();
+		System.arraycopy(sys.getPos(), 0, pos, 0, pos.length);
+		System.arraycopy(sys.getVel(), 0, vel, 0, vel.length);
+		if (integrator != null) integrator.saveState(this);
+	}
+
+	/** Copy the state of the system and its own integrator */
+	public void capture(MechanicalSystem sys){
+		capture(sys, sys.getIntegrator());
+	}
+
+	/** Put the system (and its integrator) back into the captured state
+	 * @param integrator = the integrator used by the system, or null */
+	public void restore(DynamicalSystem sys, Integrator integrator){
+		if (isEmpty()){
+			throw new IllegalStateException("Nothing has been captured in this snapshot");
+		}
+		sys.setPos(pos);
+		sys.setVel(vel);
+		sys.setTime(time);
+		if (integrator != null) integrator.restoreState(this);
+	}
+
+	/** Restore the system and its own integrator */
+	public void restore(MechanicalSystem sys){
+		restore(sys, sys.getIntegrator());
+	}
+
+	/** Copy another snapshot into this one */
+	public void copy(StateSnapshot s){
+		time = s.time;
+		System.arraycopy(s.pos, 0, pos, 0, pos.length);
+		System.arraycopy(s.vel, 0, vel, 0, vel.length);
+		hNext = s.hNext;
+		errOld = s.errOld;
+		if (gOld.length != s.gOld.length){
+			gOld = new double[s.gOld.length];
+		}
+		System.arraycopy(s.gOld, 0, gOld, 0, gOld.length);
+	}
+
+	/** @return true if nothing has been captured yet */
+	public boolean isEmpty(){
+		return Double.isNaN(time);
+	}
+
+	/** @return the time when the snapshot was captured */
+	public double getTime(){
+		return time;
+	}
+
+	/** @return the captured position vector (do not modify) */
+	public double[] getPos(){
+		return pos;
+	}
+
+	/** @return the captured velocity vector (do not modify) */
+	public double[] getVel(){
+		return vel;
+	}
+
+}
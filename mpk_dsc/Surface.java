@@ -30,6 +30,10 @@ public class Surface {
 	private Double zLow;
 	private Double zUpp;
 
+	/// Flat copy of z for the fast queries: grid[i*ny + j] = z[i][j]
+	private double[] grid;
+	private double rdx, rdy;  // Grid cells per unit length along x and y
+
 	public SurfacePlotter plot;
 
 	private final double EPSILON = 1e-10; // Numbers closer than this are considered identical
@@ -127,6 +131,19 @@ public class Surface {
 				}
 			}
 
+			/// Unboxed copy of the data, for height() and gradient()
+			if (nx < 2 || ny < 2){
+				throw new IllegalArgumentException("A surface needs at least two grid points along each axis");
+			}
+			grid = new double[nx*ny];
+			for (int i=0; i<nx; i++){
+				for (int j=0; j<ny; j++){
+					grid[i*ny + j] = z[i][j];
+				}
+			}
+			rdx = mx/(xUpp-xLow);
+			rdy = my/(yUpp-yLow);
+
 			/// Create a new surface plotter
 			plot = new SurfacePlotter(xLow,xUpp,yLow,yUpp);
 
@@ -198,6 +215,78 @@ public class Surface {
 
 	}
 
+	/**
+	 * Same as interp(), but reads the unboxed copy of the data, so it is
+	 * much faster. Inputs out of the domain are clamped.
+	 */
+	public double height(double u, double v){
+		final int NY = ny;
+		double fx = (u-xLow)*rdx, fy = (v-yLow)*rdy;
+		if (fx < 0.0) fx = 0.0; else if (fx > mx) fx = mx;
+		if (fy < 0.0) fy = 0.0; else if (fy > my) fy = my;
+		int i = Math.min((int) fx, nx-2);
+		int j = Math.min((int) fy, NY-2);
+		double s = fx - i, t = fy - j;
+		int k = i*NY + j;
+		double z00 = grid[k], z01 = grid[k+1], z10 = grid[k+NY], z11 = grid[k+NY+1];
+		return z00 + (z10-z00)*s + (z01-z00)*t + (z00-z01-z10+z11)*s*t;
+	}
+
+	/**
+	 * Analytic derivatives of the bilinear patches for a batch of points.
+	 * In the cell [x_i, x_i+1] by [y_j, y_j+1] the surface is
+	 * 
+	 * z = z00 + (z10-z00)*s + (z01-z00)*t + d*s*t,  d = z00-z01-z10+z11
+	 * 
+	 * where s and t are the fractions of the way across the cell, so the
+	 * slopes are linear in the other coordinate and the twist d is constant.
+	 * The surface is flat beyond the edges of the grid (as in interp()), so
+	 * a slope is zero once its coordinate is out of the domain.
+	 * 
+	 * @param p - The points, as [x_0, ..., x_n-1, y_0, ..., y_n-1]
+	 * @param n - The number of points
+	 * @param low - The first point to evaluate
+	 * @param upp - One past the last point to evaluate
+	 * @param dzdx - Slope along x at each point, n entries
+	 * @param dzdy - Slope along y at each point, n entries
+	 * @param dzdxdy - Cross derivative at each point, n entries (or null)
+	 */
+	public void gradient(double[] p, int n, int low, int upp, double[] dzdx, double[] dzdy, double[] dzdxdy){
+		final int NX = nx, NY = ny;
+		final double XL = xLow, YL = yLow, MX = mx, MY = my;
+		final double[] zg = grid;
+		for (int k=low; k<upp; k++){
+			double fx = (p[k]-XL)*rdx, fy = (p[n+k]-YL)*rdy;
+			double inX = 1.0, inY = 1.0;  // Zero when clamped
+			if (fx < 0.0){ fx = 0.0; inX = 0.0; } else if (fx > MX){ fx = MX; inX = 0.0; }
+			if (fy < 0.0){ fy = 0.0; inY = 0.0; } else if (fy > MY){ fy = MY; inY = 0.0; }
+			int i = Math.min((int) fx, NX-2);
+			int j = Math.min((int) fy, NY-2);
+			double s = fx - i, t = fy - j;
+			int c = i*NY + j;
+			double z00 = zg[c], z01 = zg[c+1], z10 = zg[c+NY], z11 = zg[c+NY+1];
+			double d = z00 - z01 - z10 + z11;
+			dzdx[k] = inX*(z10 - z00 + d*t)*rdx;
+			dzdy[k] = inY*(z01 - z00 + d*s)*rdy;
+			if (dzdxdy != null) dzdxdy[k] = inX*inY*d*rdx*rdy;
+		}
+	}
+
+	/** Same as above, for all n points */
+	public void gradient(double[] p, int n, double[] dzdx, double[] dzdy, double[] dzdxdy){
+		gradient(p, n, 0, n, dzdx, dzdy, dzdxdy);
+	}
+
+	/** @return {xLow, xUpp, yLow, yUpp}, the domain of the grid */
+	public double[] getDomain(){
+		return new double[] {xLow, xUpp, yLow, yUpp};
+	}
+
+	/** @return {zLow, zUpp}, the range of the data */
+	public double[] getRange(){
+		return new double[] {zLow, zUpp};
+	}
+
 	/** Print the data */
 	public void print() {
 
@@ -250,6 +339,12 @@ public class Surface {
 		public int nContours = 10; // Number of contour lines to display
 		public boolean drawContourLines = true;
 
+		/// Settings the image was last drawn with, so that it is only redrawn when they change
+		private float renderedHue, renderedContourHue;
+		private double renderedContourWidth;
+		private int renderedContours;
+		private boolean renderedContourLines;
+
 		public SurfacePlotter(double xLow, double xUpp, double yLow, double yUpp){
 			super();
 			this.xLow = xLow;
@@ -263,6 +358,25 @@ public class Surface {
 
 			int w = getWidth();
 			int h = getHeight();
+			if (w <= 0 || h <= 0) return;
+
+			g2.drawImage(render(w,h), 0,0, null);
+
+		}
+
+		/** Draw the surface into an image of the given size, with xLow at
+		 * the left column and yUpp at the top row. The image is kept, and
+		 * only drawn again if the size or the color settings change, so it
+		 * is cheap to call on every frame.
+		 * @return image */
+		public BufferedImage render(int w, int h){
+
+			if (image != null && image.getWidth() == w && image.getHeight() == h
+					&& renderedHue == hue && renderedContourHue == contourHue
+					&& renderedContourWidth == contourWidth && renderedContours == nContours
+					&& renderedContourLines == drawContourLines){
+				return image;
+			}
 
 			/// Create a new BufferedImage
 			image = new BufferedImage(w,h,BufferedImage.TYPE_INT_RGB);
@@ -273,13 +387,18 @@ public class Surface {
 				for (int j=0; j<h; j++){
 					xTmp = xLow + (xUpp-xLow)*(i/(w-1.0));
 					yTmp = yLow + (yUpp-yLow)*(1.0 - j/(h-1.0)); // Flip Image
-					zTmp = interp(xTmp,yTmp);
+					zTmp = height(xTmp,yTmp);
 					value = (float) ((zTmp - zLow)/(zUpp - zLow));	
 					image.setRGB(i, j, colorMap(value));		
 				}
 			}
 
-			g2.drawImage(image, 0,0, null);
+			renderedHue = hue;
+			renderedContourHue = contourHue;
+			renderedContourWidth = contourWidth;
+			renderedContours = nContours;
+			renderedContourLines = drawContourLines;
+			return image;
 
 		}
 
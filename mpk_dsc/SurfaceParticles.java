@@ -0,0 +1,341 @@
+package mpk_dsc;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import mpk_gui.DrawPanel;
+
+/** Many particles sliding without friction on a Surface under gravity,
+ * like beads on a terrain. The particles do not interact, and each one has
+ * unit mass. The state uses the same structure of arrays as the other
+ * particle systems:
+ *
+ * pos = [x_0, ..., x_N-1, y_0, ..., y_N-1]
+ * vel = [dx_0, ..., dx_N-1, dy_0, ..., dy_N-1]
+ *
+ * The height is z = h(x,y), so the vertical motion follows from the
+ * horizontal. For a particle held on the surface, the Lagrangian gives
+ *
+ * (I + G*G') * a = -(g + v'*H*v) * G
+ *
+ * where G is the gradient of h and H its Hessian. The bilinear patches of
+ * the surface have no curvature along x or y, only the twist h_xy, so
+ * v'*H*v = 2*h_xy*vx*vy, and the matrix inverts in closed form:
+ *
+ * a = -(g + 2*h_xy*vx*vy) * G / (1 + |G|^2)
+ *
+ * Each evaluation of the dynamics asks the Surface for the slopes of every
+ * particle in one batch, and then makes one pass over the flat arrays.
+ * The surface is flat outside of its grid, so the edges of the domain are
+ * stiff springs that push the particles back in. The slope jumps at the
+ * creases between patches, where the horizontal velocity carries over but
+ * the vertical one does not, so the energy is not conserved exactly, no
+ * matter how small the time step.
+ * @author matt
+ */
+public class SurfaceParticles implements MechanicalSystem {
+
+	/** Split the particles across threads */
+	public boolean parallel = true;
+
+	/** Particles in a range smaller than this are not split further */
+	public int grainSize = 8192;
+
+	/** (1/s^2) stiffness of the walls at the edges of the domain */
+	public double wallStiffness = 1e4;
+
+	private Surface surface;
+	private int n;
+	private double xLow, xUpp, yLow, yUpp;  // Domain of the surface
+	private double[] pos0, vel0;  // Initial state
+	private double[] pos, vel;    // Current state
+	private double time = 0.0;
+
+	private double g = 9.81;        // (m/s^2) gravity
+	private double damping = 0.0;   // (1/s) drag on each particle
+
+	/// Slopes and twist of the surface at each particle, from the last evaluation
+	private double[] dzdx, dzdy, dzdxdy;
+
+	private double maxTimeStep = 0.005;
+	private Integrator integrator;
+
+	public ParticlePlotter plot;
+
+	/** Create n particles at rest, scattered at random over the surface */
+	public SurfaceParticles(Surface surface, int n){
+		this(surface, n, false);
+	}
+
+	/** Create n particles at rest, scattered at random over the surface
+	 * @param headless = if true, the plotter is not created and plot is null,
+	 * so that no graphics classes are needed to run the simulation */
+	public SurfaceParticles(Surface surface, int n, boolean headless){
+		if (n < 1){
+			throw new IllegalArgumentException("Need at least one particle");
+		}
+		this.surface = surface;
+		this.n = n;
+		double[] domain = surface.getDomain();
+		xLow = domain[0]; xUpp = domain[1];
+		yLow = domain[2]; yUpp = domain[3];
+
+		pos0 = new double[2*n];
+		vel0 = new double[2*n];
+		pos = new double[2*n];
+		vel = new double[2*n];
+		dzdx = new double[n];
+		dzdy = new double[n];
+		dzdxdy = new double[n];
+
+		Random rand = new Random(0);
+		for (int i=0; i<n; i++){
+			pos0[i] = xLow + (xUpp-xLow)*rand.nextDouble();
+			pos0[n+i] = yLow + (yUpp-yLow)*rand.nextDouble();
+		}
+
+		integrator = new Integrator(this);
+		integrator.method = Integrator.Method.SYM2;
+		reset();
+
+		if (!headless){
+			plot = new ParticlePlotter();
+		}
+	}
+
+	/** @return number of particles */
+	public int size(){
+		return n;
+	}
+
+	/** @return the surface that the particles slide on */
+	public Surface getSurface(){
+		return surface;
+	}
+
+	/** Set the state that reset() returns to
+	 * @param p = [x..., y...], 2n entries
+	 * @param v = [dx..., dy...], 2n entries */
+	public void setInitialState(double[] p, double[] v){
+		System.arraycopy(p, 0, pos0, 0, 2*n);
+		System.arraycopy(v, 0, vel0, 0, 2*n);
+	}
+
+	/** Set the acceleration of gravity (m/s^2) */
+	public void setGravity(double g){
+		this.g = g;
+	}
+
+	@Override
+	public void dynamics(double[] p, double[] v, double[] dv){
+		AccelTask task = new AccelTask(p, v, dv, 0, n);
+		if (parallel){
+			ForkJoinPool.commonPool().invoke(task);
+		} else {
+			task.compute();
+		}
+	}
+
+	@Override
+	public double[] dynamics(double[] p, double[] v){
+		double[] dv = new double[2*n];
+		dynamics(p,v,dv);
+		return dv;
+	}
+
+	/** Accelerations of the particles [low, upp) */
+	private void accel(double[] p, double[] v, double[] dv, int low, int upp){
+		surface.gradient(p, n, low, upp, dzdx, dzdy, dzdxdy);
+		final int N = n;
+		final double k = wallStiffness, c = damping;
+		for (int i=low; i<upp; i++){
+			double gx = dzdx[i], gy = dzdy[i];
+			double vx = v[i], vy = v[N+i];
+			double f = -(g + 2.0*dzdxdy[i]*vx*vy)/(1.0 + gx*gx + gy*gy);
+			double ax = f*gx - c*vx;
+			double ay = f*gy - c*vy;
+
+			/// Walls at the edges of the domain
+			double x = p[i], y = p[N+i];
+			if (x < xLow) ax += k*(xLow - x); else if (x > xUpp) ax += k*(xUpp - x);
+			if (y < yLow) ay += k*(yLow - y); else if (y > yUpp) ay += k*(yUpp - y);
+
+			dv[i] = ax;
+			dv[N+i] = ay;
+		}
+	}
+
+	/** Recursively split the particles in half */
+	@SuppressWarnings("serial")
+	private class AccelTask extends RecursiveAction {
+		private double[] p, v, dv;
+		private int low, upp;
+
+		AccelTask(double[] p, double[] v, double[] dv, int low, int upp){
+			this.p = p;
+			this.v = v;
+			this.dv = dv;
+			this.low = low;
+			this.upp = upp;
+		}
+
+		@Override
+		protected void compute() {
+			if (upp - low <= grainSize || !parallel){
+				accel(p, v, dv, low, upp);
+			} else {
+				int mid = (low + upp) >>> 1;
+				invokeAll(new AccelTask(p, v, dv, low, mid), new AccelTask(p, v, dv, mid, upp));
+			}
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                     MechanicalSystem methods                      ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** Get the system energy, including the vertical part of the motion and
+	 * the walls. The potential is zero at the lowest point of the data.
+	 * @return {total, kinetic, potential} */
+	@Override
+	public double[] getEnergy(){
+		surface.gradient(pos, n, dzdx, dzdy, null);
+		double zLow = surface.getRange()[0];
+		double kinetic = 0.0, potential = 0.0;
+		for (int i=0; i<n; i++){
+			double x = pos[i], y = pos[n+i];
+			double vx = vel[i], vy = vel[n+i];
+			double vz = dzdx[i]*vx + dzdy[i]*vy;
+			kinetic += 0.5*(vx*vx + vy*vy + vz*vz);
+			potential += g*(surface.height(x, y) - zLow);
+			double wx = (x < xLow) ? xLow - x : (x > xUpp) ? x - xUpp : 0.0;
+			double wy = (y < yLow) ? yLow - y : (y > yUpp) ? y - yUpp : 0.0;
+			potential += 0.5*wallStiffness*(wx*wx + wy*wy);
+		}
+		return new double[] {kinetic + potential, kinetic, potential};
+	}
+
+	@Override
+	public void timeStep(double dt) {
+		integrator.timeStep(dt);
+	}
+
+	@Override
+	public void simulate(double duration){
+		int nSteps = (int)(Math.ceil(duration/maxTimeStep));
+		integrator.timeStep(duration, nSteps);
+	}
+
+	/** Sets the current value of the damping constant */
+	@Override
+	public void setDamping(double c){
+		this.damping = c;
+	}
+
+	/** Set the maximum time step for the integrator */
+	@Override
+	public void setMaxTimeStep(double dt){
+		maxTimeStep = dt;
+	}
+
+	/** @return the integrator, to select the method and tolerances */
+	@Override
+	public Integrator getIntegrator(){
+		return integrator;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public void setTime(double t) {
+		time = t;
+	}
+
+	@Override
+	public double[] getPos() {
+		return pos;
+	}
+
+	@Override
+	public double[] getVel() {
+		return vel;
+	}
+
+	@Override
+	public void setPos(double[] p) {
+		System.arraycopy(p, 0, pos, 0, 2*n);
+	}
+
+	@Override
+	public void setVel(double[] v) {
+		System.arraycopy(v, 0, vel, 0, 2*n);
+	}
+
+	@Override
+	public void reset() {
+		setPos(pos0);
+		setVel(vel0);
+		time = 0.0;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                             Graphics                              ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** Draws the particles as single pixels over the image of the
+	 * SurfacePlotter, which is only drawn once for each size of the panel */
+	@SuppressWarnings("serial")
+	public class ParticlePlotter extends DrawPanel {
+
+		/** Color of the particles */
+		public int particleRGB = 0xFFA030;
+
+		private BufferedImage image;
+		private BufferedImage background;  // The last image from the SurfacePlotter
+		private int[] backgroundRGB;
+		private int[] rgb;
+
+		/** Create a new plotter that covers the domain of the surface */
+		public ParticlePlotter(){
+			super(SurfaceParticles.this.xLow, SurfaceParticles.this.xUpp,
+					SurfaceParticles.this.yLow, SurfaceParticles.this.yUpp);
+			axisEqual = false;  // Same mapping as the SurfacePlotter image
+			setSize(800, 800);
+		}
+
+		@Override
+		public void paint() {
+			int w = getWidth(), h = getHeight();
+			if (w <= 1 || h <= 1) return;
+			BufferedImage surfaceImage = surface.plot.render(w, h);
+			if (surfaceImage != background){
+				background = surfaceImage;
+				image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+				backgroundRGB = background.getRGB(0, 0, w, h, null, 0, w);
+				rgb = new int[w*h];
+			}
+			System.arraycopy(backgroundRGB, 0, rgb, 0, w*h);
+			double sx = (w - 1.0)/(xUpp - xLow), sy = (h - 1.0)/(yUpp - yLow);
+			for (int i=0; i<n; i++){
+				int px = (int) Math.round((pos[i] - xLow)*sx);
+				int py = (int) Math.round((yUpp - pos[n+i])*sy);
+				if (px >= 0 && px < w && py >= 0 && py < h){
+					rgb[py*w + px] = particleRGB;
+				}
+			}
+			image.setRGB(0, 0, w, h, rgb, 0, w);
+			g2.drawImage(image, 0, 0, null);
+			setColor(Color.WHITE);
+			drawString(String.format("Time: %6.3f   Particles: %d", time, n),
+					xLow + 0.05*(xUpp-xLow), yUpp - 0.05*(yUpp-yLow));
+		}
+
+	}
+
+}
@@ -0,0 +1,299 @@
+package mpk_dsc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+
+/** Symbolic equations of motion for a second order system: the
+ * acceleration of each coordinate is written as an expression of the
+ * positions, the velocities, and named parameters. The model is then
+ * compiled into a SymbolicSystem, which is an ordinary DynamicalSystem.
+ *
+ * While the expressions are built, constants are folded (for example,
+ * terms that are multiplied by a zero input disappear), a few algebraic
+ * identities are applied so that equivalent forms line up (-(x-y) = y-x,
+ * cos(-x) = cos(x), ...), and every node is shared with any identical node
+ * built before it. The compiled code therefore evaluates each distinct
+ * sub-expression, including every sin() and cos(), exactly once per call.
+ * @author matt
+ */
+public class SymbolicModel {
+
+	private int n;  // Number of coordinates
+	private HashMap<Key, Expr> nodes = new HashMap<Key, Expr>();
+	private ArrayList<String> paramNames = new ArrayList<String>();
+	private ArrayList<Double> paramDefaults = new ArrayList<Double>();
+	private Expr[] accel;
+
+	/** Create an empty model
+	 * @param n = number of coordinates (length of the position vector) */
+	public SymbolicModel(int n){
+		this.n = n;
+		accel = new Expr[n];
+	}
+
+	/** @return the i-th position coordinate */
+	public Expr pos(int i){
+		return intern(Expr.Op.POS, null, null, 0.0, checkIndex(i));
+	}
+
+	/** @return the i-th velocity coordinate */
+	public Expr vel(int i){
+		return intern(Expr.Op.VEL, null, null, 0.0, checkIndex(i));
+	}
+
+	/** @return a constant */
+	public Expr constant(double x){
+		return intern(Expr.Op.CONST, null, null, x, 0);
+	}
+
+	/** Declare a parameter, or get one that was already declared. Parameters
+	 * can be changed on the compiled system, so they are not folded.
+	 * @param name = used to set the value later
+	 * @param defaultValue = initial value in the compiled system */
+	public Expr param(String name, double defaultValue){
+		int i = paramNames.indexOf(name);
+		if (i < 0){
+			i = paramNames.size();
+			paramNames.add(name);
+			paramDefaults.add(defaultValue);
+		}
+		return intern(Expr.Op.PARAM, null, null, 0.0, i);
+	}
+
+	/** Set the equation of motion for one coordinate
+	 * @param i = index of the coordinate
+	 * @param e = its acceleration, as a function of pos, vel and parameters */
+	public void setAcceleration(int i, Expr e){
+		checkModel(e);
+		accel[checkIndex(i)] = e;
+	}
+
+	/** @return the number of coordinates */
+	public int getDimension(){
+		return n;
+	}
+
+	/** @return the number of parameters */
+	public int getParamCount(){
+		return paramNames.size();
+	}
+
+	/** @return the name of parameter i */
+	public String getParamName(int i){
+		return paramNames.get(i);
+	}
+
+	/** @return the default value of parameter i */
+	public double getParamDefault(int i){
+		return paramDefaults.get(i);
+	}
+
+	/** @return the index of a parameter, or -1 if there is none by that name */
+	public int getParamIndex(String name){
+		return paramNames.indexOf(name);
+	}
+
+	/** @return the number of operations evaluated per call, after folding
+	 * and sharing (variables and constants are not counted) */
+	public int countOperations(){
+		int count = 0;
+		for (Expr e : schedule()){
+			if (e.a != null) count++;
+		}
+		return count;
+	}
+
+	/** @return the number of sin() and cos() evaluated per call */
+	public int countTrig(){
+		int count = 0;
+		for (Expr e : schedule()){
+			if (e.op == Expr.Op.SIN || e.op == Expr.Op.COS) count++;
+		}
+		return count;
+	}
+
+	/** Compile the model into a dynamical system. The equations are turned
+	 * into bytecode for a new class when the JVM allows it (Java 15 and up),
+	 * and into a compact interpreted program otherwise. */
+	public SymbolicSystem compile(){
+		for (int i=0; i<n; i++){
+			if (accel[i] == null){
+				throw new IllegalStateException("No equation of motion for coordinate " + i);
+			}
+		}
+		return new SymbolicSystem(this, ExpressionCompiler.compile(schedule(), accel));
+	}
+
+	/** @return every node needed by the equations, each one after all of
+	 * its operands (so they can be evaluated in order) */
+	ArrayList<Expr> schedule(){
+		ArrayList<Expr> order = new ArrayList<Expr>();
+		IdentityHashMap<Expr, Boolean> done = new IdentityHashMap<Expr, Boolean>();
+		for (Expr e : accel){
+			if (e != null) visit(e, order, done);
+		}
+		return order;
+	}
+
+	/** Depth first, operands before the node */
+	private void visit(Expr e, ArrayList<Expr> order, IdentityHashMap<Expr, Boolean> done){
+		if (done.containsKey(e)) return;
+		if (e.a != null) visit(e.a, order, done);
+		if (e.b != null) visit(e.b, order, done);
+		done.put(e, Boolean.TRUE);
+		order.add(e);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                   Folding and shared sub-expressions              ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** Build a binary node, folding constants and simple identities */
+	Expr binary(Expr.Op op, Expr a, Expr b){
+		checkModel(a);
+		checkModel(b);
+		if (a.op == Expr.Op.CONST && b.op == Expr.Op.CONST){
+			return constant(apply(op, a.value, b.value));
+		}
+		switch (op) {
+		case ADD:
+			if (a.isConstant(0.0)) return b;
+			if (b.isConstant(0.0)) return a;
+			if (b.op == Expr.Op.NEG) return binary(Expr.Op.SUB, a, b.a);
+			if (a.op == Expr.Op.NEG) return binary(Expr.Op.SUB, b, a.a);
+			break;
+		case SUB:
+			if (b.isConstant(0.0)) return a;
+			if (a.isConstant(0.0)) return unary(Expr.Op.NEG, b);
+			if (a == b) return constant(0.0);
+			if (b.op == Expr.Op.NEG) return binary(Expr.Op.ADD, a, b.a);
+			break;
+		case MUL:
+			if (a.isConstant(0.0) || b.isConstant(0.0)) return constant(0.0);
+			if (a.isConstant(1.0)) return b;
+			if (b.isConstant(1.0)) return a;
+			if (a.isConstant(-1.0)) return unary(Expr.Op.NEG, b);
+			if (b.isConstant(-1.0)) return unary(Expr.Op.NEG, a);
+			if (a.op == Expr.Op.NEG && b.op == Expr.Op.NEG) return binary(op, a.a, b.a);
+			if (a.op == Expr.Op.NEG) return unary(Expr.Op.NEG, binary(op, a.a, b));
+			if (b.op == Expr.Op.NEG) return unary(Expr.Op.NEG, binary(op, a, b.a));
+			break;
+		case DIV:
+			if (b.isConstant(1.0)) return a;
+			if (a.isConstant(0.0)) return constant(0.0);
+			if (a.op == Expr.Op.NEG) return unary(Expr.Op.NEG, binary(op, a.a, b));
+			if (b.op == Expr.Op.NEG) return unary(Expr.Op.NEG, binary(op, a, b.a));
+			break;
+		default:
+			throw new IllegalArgumentException("Not a binary operation: " + op);
+		}
+
+		/// Put commutative operands in a standard order (constant first), and
+		/// combine constants across nested nodes: c1*(c2*x) = (c1*c2)*x
+		if (op == Expr.Op.ADD || op == Expr.Op.MUL){
+			if (b.op == Expr.Op.CONST || (a.op != Expr.Op.CONST && b.id < a.id)){
+				Expr tmp = a; a = b; b = tmp;
+			}
+			if (a.op == Expr.Op.CONST && b.op == op && b.a.op == Expr.Op.CONST){
+				return binary(op, constant(apply(op, a.value, b.a.value)), b.b);
+			}
+		}
+		return intern(op, a, b, 0.0, 0);
+	}
+
+	/** Build a unary node, folding constants and simple identities */
+	Expr unary(Expr.Op op, Expr a){
+		checkModel(a);
+		if (a.op == Expr.Op.CONST){
+			return constant(apply(op, a.value, 0.0));
+		}
+		switch (op) {
+		case NEG:
+			if (a.op == Expr.Op.NEG) return a.a;
+			if (a.op == Expr.Op.SUB) return binary(Expr.Op.SUB, a.b, a.a);
+			break;
+		case SIN:
+			if (a.op == Expr.Op.NEG) return unary(Expr.Op.NEG, unary(op, a.a));
+			break;
+		case COS:
+			if (a.op == Expr.Op.NEG) return unary(op, a.a);
+			break;
+		case SQRT:
+			break;
+		default:
+			throw new IllegalArgumentException("Not a unary operation: " + op);
+		}
+		return intern(op, a, null, 0.0, 0);
+	}
+
+	/** @return the result of an operation on constants */
+	private static double apply(Expr.Op op, double x, double y){
+		switch (op) {
+		case ADD: return x + y;
+		case SUB: return x - y;
+		case MUL: return x * y;
+		case DIV: return x / y;
+		case NEG: return -x;
+		case SIN: return Math.sin(x);
+		case COS: return Math.cos(x);
+		case SQRT: return Math.sqrt(x);
+		default: throw new IllegalArgumentException("Cannot fold: " + op);
+		}
+	}
+
+	/** @return the existing node for this expression, or a new one */
+	private Expr intern(Expr.Op op, Expr a, Expr b, double value, int index){
+		Key key = new Key(op, a, b, value, index);
+		Expr e = nodes.get(key);
+		if (e == null){
+			e = new Expr(this, op, a, b, value, index, nodes.size());
+			nodes.put(key, e);
+		}
+		return e;
+	}
+
+	private int checkIndex(int i){
+		if (i < 0 || i >= n){
+			throw new IndexOutOfBoundsException("Coordinate " + i + " of " + n);
+		}
+		return i;
+	}
+
+	private void checkModel(Expr e){
+		if (e.model != this){
+			throw new IllegalArgumentException("Expression belongs to a different model");
+		}
+	}
+
+	/** Identifies a node by its operation and operands. Operands are already
+	 * shared, so they can be compared by reference. */
+	private static final class Key {
+		final Expr.Op op;
+		final Expr a, b;
+		final long bits;
+		final int index;
+
+		Key(Expr.Op op, Expr a, Expr b, double value, int index){
+			this.op = op;
+			this.a = a;
+			this.b = b;
+			this.bits = Double.doubleToLongBits(value);
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return op == k.op && a == k.a && b == k.b && bits == k.bits && index == k.index;
+		}
+
+		@Override
+		public int hashCode(){
+			return Objects.hash(op, System.identityHashCode(a), System.identityHashCode(b), bits, index);
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package mpk_dsc;
+
+/** A dynamical system whose equations of motion come from a SymbolicModel.
+ * Use SymbolicModel.compile() to create one. The parameters of the model
+ * can be changed by name while the system runs.
+ * @author matt
+ */
+public class SymbolicSystem implements DynamicalSystem {
+
+	private SymbolicModel model;
+	private ExpressionCompiler.Evaluator evaluator;
+	private int n;
+
+	private double[] pos0, vel0;  // Initial state
+	private double[] pos, vel;    // Current state
+	private double time = 0.0;
+	private double[] params;
+
+	private double maxTimeStep = 0.01;
+	private Integrator integrator;
+
+	SymbolicSystem(SymbolicModel model, ExpressionCompiler.Evaluator evaluator){
+		this.model = model;
+		this.evaluator = evaluator;
+		n = model.getDimension();
+		pos0 = new double[n];
+		vel0 = new double[n];
+		pos = new double[n];
+		vel = new double[n];
+		params = new double[model.getParamCount()];
+		for (int i=0; i<params.length; i++){
+			params[i] = model.getParamDefault(i);
+		}
+
+		integrator = new Integrator(this);
+		integrator.method = Integrator.Method.RK4;
+	}
+
+	/** Set the value of a parameter
+	 * @param name = as declared in the model */
+	public void setParam(String name, double value){
+		params[paramIndex(name)] = value;
+	}
+
+	/** @return the current value of a parameter */
+	public double getParam(String name){
+		return params[paramIndex(name)];
+	}
+
+	private int paramIndex(String name){
+		int i = model.getParamIndex(name);
+		if (i < 0){
+			throw new IllegalArgumentException("No parameter named " + name);
+		}
+		return i;
+	}
+
+	/** Set the state that reset() returns to */
+	public void setInitialState(double[] p, double[] v){
+		System.arraycopy(p, 0, pos0, 0, n);
+		System.arraycopy(v, 0, vel0, 0, n);
+	}
+
+	/** @return true if the equations were compiled to bytecode, false if
+	 * they are interpreted */
+	public boolean isGenerated(){
+		return !(evaluator instanceof ExpressionCompiler.Interpreter);
+	}
+
+	@Override
+	public void dynamics(double[] p, double[] v, double[] dv){
+		evaluator.eval(p, v, params, dv);
+	}
+
+	@Override
+	public double[] dynamics(double[] p, double[] v){
+		double[] dv = new double[n];
+		dynamics(p,v,dv);
+		return dv;
+	}
+
+	@Override
+	public void timeStep(double dt) {
+		integrator.timeStep(dt);
+	}
+
+	@Override
+	public void simulate(double duration){
+		int nSteps = (int)(Math.ceil(duration/maxTimeStep));
+		integrator.timeStep(duration, nSteps);
+	}
+
+	/** Set the maximum time step for the integrator */
+	public void setMaxTimeStep(double dt){
+		maxTimeStep = dt;
+	}
+
+	/** @return the integrator, to select the method and tolerances */
+	public Integrator getIntegrator(){
+		return integrator;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public void setTime(double t) {
+		time = t;
+	}
+
+	@Override
+	public double[] getPos() {
+		return pos;
+	}
+
+	@Override
+	public double[] getVel() {
+		return vel;
+	}
+
+	@Override
+	public void setPos(double[] p) {
+		System.arraycopy(p, 0, pos, 0, n);
+	}
+
+	@Override
+	public void setVel(double[] v) {
+		System.arraycopy(v, 0, vel, 0, n);
+	}
+
+	@Override
+	public void reset() {
+		setPos(pos0);
+		setVel(vel0);
+		time = 0.0;
+	}
+
+}
@@ -0,0 +1,152 @@
+package mpk_dsc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Streams the state of a dynamical system to a binary file, so that very
+ * long runs can be kept in full and played back later with a
+ * TrajectoryReplayer. The file is written through memory-mapped chunks, so
+ * recording a sample is just a few array copies: nothing is allocated
+ * except when a new chunk is mapped.
+ *
+ * File layout (little-endian):
+ *
+ * int    magic ("MPKT")
+ * int    version
+ * int    dim              (length of the position vector)
+ * int    samplesPerChunk
+ * long   nSamples
+ * long   (reserved)
+ * chunk 0, chunk 1, ...   (samplesPerChunk samples each)
+ *
+ * where each sample is: t, p[0..dim-1], v[0..dim-1] as doubles. The last
+ * chunk is only partly filled; nSamples says how much of it is valid, and
+ * close() cuts the file off after the last sample.
+ * @author matt
+ */
+public class TrajectoryRecorder {
+
+	static final int MAGIC = 0x4D504B54;  // "MPKT"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 32;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int dim;
+	private int samplesPerChunk;
+	private int sampleDoubles;  // Number of doubles per sample
+	private long chunkBytes;
+
+	private MappedByteBuffer chunk;  // The chunk being written
+	private DoubleBuffer data;       // Double view of that chunk
+	private int nChunk = 0;          // Number of chunks mapped so far
+	private long nSamples = 0;
+
+	/** Create a new recording, overwriting the file if it exists
+	 * @param file = where to write the trajectory
+	 * @param dim = length of the position (and velocity) vector
+	 * @param samplesPerChunk = number of samples in each mapped chunk
+	 * @throws IOException */
+	public TrajectoryRecorder(File file, int dim, int samplesPerChunk) throws IOException {
+		this.dim = dim;
+		this.samplesPerChunk = samplesPerChunk;
+		sampleDoubles = 1 + 2*dim;
+		chunkBytes = 8L*sampleDoubles*samplesPerChunk;
+		if (chunkBytes > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("Chunks must be smaller than 2 GB");
+		}
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		channel = this.file.getChannel();
+		writeHeader();
+	}
+
+	/** Create a new recording with 64k samples per chunk
+	 * @throws IOException */
+	public TrajectoryRecorder(File file, int dim) throws IOException {
+		this(file, dim, 1 << 16);
+	}
+
+	/** Record the current state of the system
+	 * @throws IOException */
+	public void record(DynamicalSystem sys) throws IOException {
+		record(sys.getTime(), sys.getPos(), sys.getVel());
+	}
+
+	/** Record a single sample, for example from Integrator.sampleAt()
+	 * @param t = time
+	 * @param p = position vector
+	 * @param v = velocity vector
+	 * @throws IOException */
+	public void record(double t, double[] p, double[] v) throws IOException {
+		if (data == null || !data.hasRemaining()){
+			mapNextChunk();
+		}
+		data.put(t);
+		data.put(p, 0, dim);
+		data.put(v, 0, dim);
+		nSamples++;
+	}
+
+	/** @return number of samples recorded so far */
+	public long size(){
+		return nSamples;
+	}
+
+	/** Flush everything to disk and update the sample count in the header.
+	 * The recorder can still be used after this.
+	 * @throws IOException */
+	public void flush() throws IOException {
+		if (chunk != null) chunk.force();
+		writeHeader();
+		channel.force(false);
+	}
+
+	/** Flush and close the file, dropping the unused end of the last chunk
+	 * @throws IOException */
+	public void close() throws IOException {
+		try {
+			flush();
+			chunk = null;
+			data = null;
+			try {
+				channel.truncate(HEADER_BYTES + 8L*sampleDoubles*nSamples);
+			} catch (IOException e){  // Windows will not shrink a file that is still mapped
+				System.out.println("WARNING -- TrajectoryRecorder could not truncate the file: " + e.getMessage());
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/** Map the next chunk of the file for writing */
+	private void mapNextChunk() throws IOException {
+		if (chunk != null) chunk.force();
+		long offset = HEADER_BYTES + nChunk*chunkBytes;
+		chunk = channel.map(FileChannel.MapMode.READ_WRITE, offset, chunkBytes);
+		chunk.order(ByteOrder.LITTLE_ENDIAN);
+		data = chunk.asDoubleBuffer();
+		nChunk++;
+	}
+
+	/** Write the header at the start of the file */
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(dim);
+		header.putInt(samplesPerChunk);
+		header.putLong(nSamples);
+		header.putLong(0L);
+		header.flip();
+		channel.write(header, 0);
+	}
+
+}
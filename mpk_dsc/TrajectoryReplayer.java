@@ -0,0 +1,192 @@
+package mpk_dsc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/** Plays back a trajectory that was written by a TrajectoryRecorder. The
+ * recorded states are copied into an existing system (with setPos, setVel
+ * and setTime), so its plotter and any scopes that read from it show the
+ * recording exactly as they would show a live simulation, without running
+ * the dynamics again.
+ *
+ * The file is mapped one chunk at a time, so files larger than memory can
+ * be played back. Reading a sample does not allocate anything unless it
+ * falls in a different chunk to the previous one.
+ * @author matt
+ */
+public class TrajectoryReplayer {
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int dim;
+	private int samplesPerChunk;
+	private int sampleDoubles;
+	private long chunkBytes;
+	private long nSamples;
+	private long fileBytes;
+
+	private DoubleBuffer data;       // Double view of the mapped chunk
+	private long iChunk = -1;        // Index of the mapped chunk
+
+	private double[] p, v;           // Scratch space for one sample
+	private double playTime;         // Current time of the playback
+
+	/** Open a recording for playback
+	 * @param file = written by a TrajectoryRecorder
+	 * @throws IOException */
+	public TrajectoryReplayer(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		channel = this.file.getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(TrajectoryRecorder.HEADER_BYTES);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < TrajectoryRecorder.HEADER_BYTES
+				|| header.getInt() != TrajectoryRecorder.MAGIC){
+			this.file.close();
+			throw new IOException("Not a trajectory file: " + file);
+		}
+		int version = header.getInt();
+		if (version != TrajectoryRecorder.VERSION){
+			this.file.close();
+			throw new IOException("Unsupported trajectory file version: " + version);
+		}
+		dim = header.getInt();
+		samplesPerChunk = header.getInt();
+		nSamples = header.getLong();
+		fileBytes = channel.size();
+
+		sampleDoubles = 1 + 2*dim;
+		chunkBytes = 8L*sampleDoubles*samplesPerChunk;
+		p = new double[dim];
+		v = new double[dim];
+		if (nSamples > 0) playTime = getTime(0);
+	}
+
+	/** @return number of samples in the recording */
+	public long size(){
+		return nSamples;
+	}
+
+	/** @return length of the position (and velocity) vector */
+	public int getDimension(){
+		return dim;
+	}
+
+	/** @return time of the first sample */
+	public double getStartTime(){
+		return getTime(0);
+	}
+
+	/** @return time of the last sample */
+	public double getEndTime(){
+		return getTime(nSamples-1);
+	}
+
+	/** @return the time of sample i */
+	public double getTime(long i){
+		return data(i).get(offset(i));
+	}
+
+	/** Read a single sample
+	 * @param i = index of the sample
+	 * @param p = filled with the position vector
+	 * @param v = filled with the velocity vector
+	 * @return the time of the sample */
+	public double read(long i, double[] p, double[] v){
+		DoubleBuffer buf = data(i);
+		int k = offset(i);
+		double t = buf.get(k);
+		for (int j=0; j<dim; j++){
+			p[j] = buf.get(k+1+j);
+			v[j] = buf.get(k+1+dim+j);
+		}
+		return t;
+	}
+
+	/** @return index of the last sample at or before time t (or zero if t is
+	 * before the start of the recording). The recorded times must be
+	 * increasing, which they are for any simulation run forward. */
+	public long indexOf(double t){
+		long low = 0;
+		long upp = nSamples-1;
+		if (nSamples == 0 || t < getTime(0)) return 0;
+		if (t >= getTime(upp)) return upp;
+		while (upp - low > 1){  // getTime(low) <= t < getTime(upp)
+			long mid = (low + upp) >>> 1;
+			if (getTime(mid) <= t){
+				low = mid;
+			} else {
+				upp = mid;
+			}
+		}
+		return low;
+	}
+
+	/** Copy sample i into the system
+	 * @return the time of the sample */
+	public double apply(long i, DynamicalSystem sys){
+		double t = read(i, p, v);
+		sys.setPos(p);
+		sys.setVel(v);
+		sys.setTime(t);
+		return t;
+	}
+
+	/** Move the playback to time t, and copy the last sample at or before t
+	 * into the system
+	 * @return the time of that sample */
+	public double seek(double t, DynamicalSystem sys){
+		playTime = t;
+		return apply(indexOf(t), sys);
+	}
+
+	/** Advance the playback, in the same way that simulate() advances a live
+	 * system, and copy the latest sample into the system. This can be called
+	 * from AnimatedSystem.simulate() in place of the real simulation.
+	 * @param duration = how far to move the playback
+	 * @return false once the end of the recording has been reached */
+	public boolean advance(double duration, DynamicalSystem sys){
+		seek(playTime + duration, sys);
+		return playTime < getEndTime();
+	}
+
+	/** Close the file */
+	public void close() throws IOException {
+		data = null;
+		file.close();
+	}
+
+	/** @return the chunk that contains sample i, mapping it if needed */
+	private DoubleBuffer data(long i){
+		if (i < 0 || i >= nSamples){
+			throw new IndexOutOfBoundsException("Sample " + i + " of " + nSamples);
+		}
+		long c = i / samplesPerChunk;
+		if (c != iChunk){
+			long offset = TrajectoryRecorder.HEADER_BYTES + c*chunkBytes;
+			long length = Math.min(chunkBytes, fileBytes - offset);
+			try {
+				ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+				chunk.order(ByteOrder.LITTLE_ENDIAN);
+				data = chunk.asDoubleBuffer();
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to map trajectory file", e);
+			}
+			iChunk = c;
+		}
+		return data;
+	}
+
+	/** @return offset of sample i within its chunk (in doubles) */
+	private int offset(long i){
+		return (int)(i % samplesPerChunk)*sampleDoubles;
+	}
+
+}
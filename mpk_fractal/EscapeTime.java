@@ -0,0 +1,99 @@
+package mpk_fractal;
+
+/** The escape-time iteration of the Mandelbrot set, z = z^2 + c from z = 0,
+ * as small static methods on primitives, so that the JIT can inline them
+ * into whatever loop calls them.
+ *
+ * Points inside the set never escape, and would run all maxIter iterations.
+ * Two tests catch most of them early:
+ *  - the main cardioid and the period-2 bulb have closed forms, so points
+ *    in them are known without iterating at all
+ *  - every other interior point is attracted to a cycle. Brent's method
+ *    saves z at iterations 2, 4, 8, 16, ... and stops as soon as the orbit
+ *    comes back to the saved point, which finds a cycle of any period
+ *    within about twice the iterations it takes to converge onto it.
+ * @author matt
+ */
+public final class EscapeTime {
+
+	/** Slot in the out[] array of iterate() */
+	public static final int ZR = 0, ZI = 1, WORK = 2;
+
+	private EscapeTime(){}
+
+	/** @return true if c is in the main cardioid or the period-2 bulb */
+	public static boolean isInMainBody(double cr, double ci){
+		double ci2 = ci*ci;
+
+		/// Cardioid: q*(q + (x - 1/4)) <= y^2/4, q = (x - 1/4)^2 + y^2
+		double xq = cr - 0.25;
+		double q = xq*xq + ci2;
+		if (q*(q + xq) <= 0.25*ci2) return true;
+
+		/// Bulb: (x + 1)^2 + y^2 <= 1/16
+		double xb = cr + 1.0;
+		return xb*xb + ci2 <= 0.0625;
+	}
+
+	/**
+	 * Iterate until the orbit escapes the circle |z| = 2, or is known to be
+	 * in the set.
+	 * @param cr - Real part of c
+	 * @param ci - Imaginary part of c
+	 * @param maxIter - Iteration limit
+	 * @param periodTol - Orbits that come back this close to the saved point
+	 * are taken to be periodic. Zero turns off both interior tests.
+	 * @param out - {zr, zi} of the first point outside the circle, and the
+	 * number of iterations actually run, at [ZR], [ZI], and [WORK]
+	 * @return iter - Number of iterations before the orbit escaped, which
+	 * is maxIter for points in the set
+	 */
+	public static int iterate(double cr, double ci, int maxIter, double periodTol, double[] out){
+		if (periodTol > 0.0 && isInMainBody(cr, ci)){
+			out[WORK] = 0;
+			return maxIter;
+		}
+		double zr = 0.0, zi = 0.0;  // current iteration
+		double zR;                  // temp variable
+		double sr = 0.0, si = 0.0;  // saved point, for the cycle check
+		int check = periodTol > 0.0 ? 2 : Integer.MAX_VALUE;  // next save
+		int iter;
+		for (iter=0; iter<maxIter; iter++){
+			zR = zr*zr - zi*zi + cr;
+			zi = 2*zr*zi + ci;
+			zr = zR;
+			if (zi*zi + zr*zr > 4.0) break;
+			if (Math.abs(zr - sr) < periodTol && Math.abs(zi - si) < periodTol){
+				out[WORK] = iter + 1;
+				return maxIter;
+			}
+			if (iter == check){
+				sr = zr; si = zi;
+				check = 2*check;
+			}
+		}
+		out[ZR] = zr;
+		out[ZI] = zi;
+		out[WORK] = Math.min(iter + 1, maxIter);
+		return iter;
+	}
+
+	/**
+	 * Normalized, continuous escape time, for colorMap()
+	 * Magic from:  http://linas.org/art-gallery/escape/escape.html
+	 * @param iter - As returned by iterate()
+	 * @param zr - Real part of the first point outside the circle
+	 * @param zi - Imaginary part of the first point outside the circle
+	 * @return value - Between 0 and about 1, and 0 for points in the set
+	 */
+	public static double smoothValue(int iter, double zr, double zi, double cr, double ci, int maxIter){
+		if (iter >= maxIter) return 0.0;
+		double zR, value;
+		iter++; zR = zr*zr - zi*zi + cr; zi = 2*zr*zi + ci; zr = zR;
+		iter++; zR = zr*zr - zi*zi + cr; zi = 2*zr*zi + ci; zr = zR;
+		value = Math.sqrt(zi*zi + zr*zr);
+		value = iter - (Math.log(Math.log(value))/Math.log(2.0));
+		return value/((double)(maxIter));
+	}
+
+}
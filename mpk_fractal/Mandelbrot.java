@@ -5,12 +5,31 @@ import java.awt.Graphics;
 import java.awt.event.MouseEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.awt.image.BufferedImage;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.event.MouseInputListener;
 
+import mpk_fractal.MandelbrotRenderer.Job;
+import mpk_fractal.MandelbrotRenderer.View;
+
+/** Interactive view of the Mandelbrot set. Left click zooms in, right click
+ * zooms out, and the arrow keys pan. The pixels are computed in the
+ * background by a MandelbrotRenderer, and painted tile by tile as they
+ * arrive, so the window stays responsive. Any change of view cancels the
+ * render that is still in flight.
+ *
+ * The center is kept as a BigDecimal, with enough digits for the current
+ * zoom, so the view can go far past the 1e13 magnification where doubles
+ * run out (the renderer switches to perturbation there). Deep views need
+ * more iterations: the + and - keys double and halve maxIter. The B key
+ * toggles boundary tracing.
+ *
+ * Moves are exactly undone by the opposite move (the scale is a power of
+ * 1+scaleRate, and offsets are rounded to a fixed grid before they are
+ * added), so that going back to a view finds it in the renderer's cache. */
 public class Mandelbrot extends JPanel implements MouseInputListener, KeyListener{
 
 	/** Auto-generated voo-doo magic by Eclipse */
@@ -18,6 +37,8 @@ public class Mandelbrot extends JPanel implements MouseInputListener, KeyListene
 
 	/** Conversion between pixels and real numbers */
 	private double scale = 200.0; // scale = pixels / unit 
+	private final double scale0 = scale;
+	private int zoomLevel = 0;  // scale = scale0*(1+scaleRate)^zoomLevel
 
 	/** How much to change scale on each click */
 	private double scaleRate = 0.4; // 0 = no change, 1 = double or halve
@@ -29,62 +50,62 @@ public class Mandelbrot extends JPanel implements MouseInputListener, KeyListene
 	private int maxIter = 150;
 
 	/** The center point of the image */
-	private double[] center = {0.0,0.0};
+	private BigDecimal[] center = {BigDecimal.ZERO, BigDecimal.ZERO};
 
-	private BufferedImage image; 
+	/** Computes the pixels off the event dispatch thread */
+	private MandelbrotRenderer renderer = new MandelbrotRenderer();
+
+	/** The view being shown, which may still be rendering */
+	private Job job;
 
 	/** Construct a new Mandelbrot set object */
 	public Mandelbrot() {
 		super();
+		setFocusable(true);
 		addMouseListener(this);
 		addKeyListener(this);
 	};
 
-	/** Draws a new fractal every time that the JFrame paints */
+	/** Draws the image of the current view. Only starts a new render if the
+	 * view has changed (or the window was resized). */
 	public void paintComponent(Graphics g){
 		super.paintComponent(g);
 
 		int w = getWidth();
 		int h = getHeight();
-		image = new BufferedImage(w,h,BufferedImage.TYPE_INT_RGB);
-
-		double cr,ci; // test point
-		double zr,zi; // current iteration
-		double zR,zI; // temp variables
-		int i,j,iter; // iterators
-		double value; // normalized value for plotting
-		for (i=0; i<w; i++){  /// Compute the x and y values
-			for (j=0; j<h; j++){
-				cr = (i-0.5*w)/scale + center[0];
-				ci = -(j-0.5*h)/scale + center[1];
-				zr = 0.0; zi = 0.0;
-				for (iter=0; iter<maxIter; iter++){
-					zR = zr*zr - zi*zi + cr;
-					zI = 2*zr*zi + ci;
-					zi = zI; zr = zR;
-					if (zi*zi + zr*zr > 4.0) break;
-				}
-				if (iter==maxIter){
-					value = 0.0;
-				} else {
-					// Magic from:  http://linas.org/art-gallery/escape/escape.html
-					iter++; zR = zr*zr - zi*zi + cr; zI = 2*zr*zi + ci;	zi = zI; zr = zR;
-					iter++; zR = zr*zr - zi*zi + cr; zI = 2*zr*zi + ci;	zi = zI; zr = zR;
-					value = Math.sqrt(zi*zi + zr*zr);
-					value = iter - (Math.log(Math.log(value))/Math.log(2.0));
-					value = (value)/((double)(maxIter));
-				}
-				image.setRGB(i, j, colorMap(value));		
-			}
+		if (w <= 0 || h <= 0) return;
+		View view = job == null ? null : job.getView();
+		if (view == null || view.width != w || view.height != h){
+			startRender();
 		}
 
-		g.drawImage(image, 0,0, null);
+		g.drawImage(job.getImage(), 0,0, null);
+	}
+
+	/** Cancel the render in flight, and start rendering the current view.
+	 * The new image starts out as the old one, moved and scaled to match,
+	 * until the tiles arrive. */
+	private void startRender(){
+		View view = new View(center[0], center[1], scale, getWidth(), getHeight(), maxIter);
+		if (job != null) job.cancel();
+		job = renderer.render(view, job, (j,x,y,w,h) -> repaint(x,y,w,h));
+		repaint();
+	}
+
+	/** Move the center. The offset is small compared to the center on a
+	 * deep zoom, so it is added in high precision, after rounding it to a
+	 * grid well below the pixel spacing of both views.
+	 * @param scaleNew = the scale of the view after the move */
+	private void move(double dx, double dy, double scaleNew){
+		int places = 12 + (int) Math.max(0.0, Math.ceil(Math.log10(Math.max(scale, scaleNew))));
+		center[0] = center[0].add(new BigDecimal(dx).setScale(places, RoundingMode.HALF_EVEN));
+		center[1] = center[1].add(new BigDecimal(dy).setScale(places, RoundingMode.HALF_EVEN));
 	}
 
 	/** Computes the color map to be used for plotting 
 	 * @param x = value between 0.0 and 1.0
 	 * @return rgb color for image.setRGB */
-	private int colorMap(double x){
+	public static int colorMap(double x){
 
 		int rgb;
 		double val, sat;
@@ -125,16 +146,15 @@ public class Mandelbrot extends JPanel implements MouseInputListener, KeyListene
 	public void mousePressed(MouseEvent e) {
 		int w = getWidth();
 		int h = getHeight();
-		double scaleNew;
 		if (e.getButton() == 1){  // LEFT CLICK  --  zoom in
-			scaleNew = scale*(1.0+scaleRate);
+			zoomLevel++;
 		} else { // RIGHT CLICK -- zoom out
-			scaleNew = scale*(1.0-scaleRate);
+			zoomLevel--;
 		}
-		center[0] = (e.getX()-0.5*w)*(1/scale - 1/scaleNew) + center[0];
-		center[1] = -(e.getY()-0.5*h)*(1/scale - 1/scaleNew) + center[1];
+		double scaleNew = scale0*Math.pow(1.0+scaleRate, zoomLevel);
+		move((e.getX()-0.5*w)*(1/scale - 1/scaleNew), -(e.getY()-0.5*h)*(1/scale - 1/scaleNew), scaleNew);
 		scale = scaleNew;
-		repaint();
+		startRender();
 	}
 	@Override
 	public void mouseReleased(MouseEvent e) {
@@ -152,19 +172,34 @@ public class Mandelbrot extends JPanel implements MouseInputListener, KeyListene
 	public void keyPressed(KeyEvent e) {		
 		switch(e.getKeyCode()) {
 		case KeyEvent.VK_LEFT:
-			center[0] -= ((double)(panRate))/scale;
+			move(-((double)(panRate))/scale, 0.0, scale);
 			break;
 		case KeyEvent.VK_RIGHT:
-			center[0] += ((double)(panRate))/scale;
+			move(((double)(panRate))/scale, 0.0, scale);
 			break;	
 		case KeyEvent.VK_UP:
-			center[1] -= ((double)(panRate))/scale;
+			move(0.0, -((double)(panRate))/scale, scale);
 			break;
 		case KeyEvent.VK_DOWN:
-			center[1] += ((double)(panRate))/scale;
+			move(0.0, ((double)(panRate))/scale, scale);
+			break;
+		case KeyEvent.VK_EQUALS:
+		case KeyEvent.VK_ADD:
+			maxIter = 2*maxIter;
+			break;
+		case KeyEvent.VK_MINUS:
+		case KeyEvent.VK_SUBTRACT:
+			maxIter = Math.max(50, maxIter/2);
+			break;
+		case KeyEvent.VK_B:
+			renderer.boundaryTrace = !renderer.boundaryTrace;
+			renderer.clearCache();
 			break;
 		default:
-		}}
+			return;
+		}
+		startRender();
+	}
 	@Override
 	public void keyReleased(KeyEvent e) {}
 	@Override
@@ -0,0 +1,857 @@
+package mpk_fractal;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Renders views of the Mandelbrot set in the background. The view is split
+ * into square tiles of TILE_SIZE x TILE_SIZE pixels, which are computed on
+ * a work-stealing pool, starting from the center of the view. Each tile is
+ * written straight into the image of its job as soon as it is done, and a
+ * listener is told, so that it can be painted while the rest of the view is
+ * still being computed. A job that is no longer wanted can be cancelled,
+ * and the tiles that have not started yet are then skipped.
+ *
+ * Past about 1e13 magnification, neighboring pixels are no longer distinct
+ * doubles. Views with a scale above deepScale are rendered by perturbation
+ * instead: one ReferenceOrbit is computed in high precision, and every pixel
+ * is iterated in doubles as a small offset from it, after skipping the
+ * first iterations with the series approximation. A pixel whose orbit comes
+ * too close to zero relative to the reference, or outlives it, has lost its
+ * precision (a glitch). Glitched pixels are collected after the tiles are
+ * done, and computed again against a new reference placed at one of them,
+ * for up to MAX_REFERENCES references. Any that are left after that are
+ * colored by iterating in doubles, as the best guess available.
+ *
+ * With boundaryTrace set, each tile is rendered by subdivision (Mariani and
+ * Silver): only the border of a rectangle is computed, and if every pixel
+ * on it has the same iteration count, the inside is filled without
+ * iterating. Otherwise the rectangle is cut in two along a computed line,
+ * and the halves are done the same way, in parallel on the pool. This is
+ * exact for the set itself, which is connected, and close to exact for the
+ * bands of equal escape time around it. The filled pixels are colored by
+ * interpolating between the smooth values at the ends of their row.
+ *
+ * Finished views are kept in a least-recently-used cache, limited to a
+ * number of megabytes of pixels, so going back to a recent view (say,
+ * zooming out again) costs nothing. A view that is the previous one moved
+ * by a whole number of pixels, as for a pan, copies the pixels that are
+ * still in view and only computes the strips that were exposed.
+ * @author matt
+ */
+public class MandelbrotRenderer {
+
+	/** Number of pixels along each edge of a tile */
+	public static final int TILE_SIZE = 64;
+
+	/** Tiles are this much larger with boundary tracing, so that it can
+	 * fill larger areas */
+	public static final int TRACE_TILE_SCALE = 4;
+
+	/** Rectangles with fewer pixels than this are not subdivided further */
+	private static final int MIN_TRACE_AREA = 64;
+
+	/** Rectangles with fewer pixels than this are not split across threads */
+	private static final int FORK_TRACE_AREA = 64*64;
+
+	/** Told about each tile as soon as it is in the image. Called from the
+	 * threads of the pool, so Swing components should only repaint(). */
+	public interface TileListener {
+		void tileDone(Job job, int x, int y, int width, int height);
+	}
+
+	/** Most references used for one view, including the first */
+	public static final int MAX_REFERENCES = 32;
+
+	/** A pixel is glitched when |z|^2 < GLITCH_TOL*|Z|^2 (Pauldelbrot's test) */
+	private static final double GLITCH_TOL = 1e-6;
+
+	/** Views with more pixels per unit than this are rendered by perturbation */
+	public double deepScale = 1e12;
+
+	/** Use the cardioid and bulb test and the cycle check of EscapeTime to
+	 * stop early on points in the set (not used for deep views) */
+	public boolean interiorChecks = true;
+
+	/** Render by subdividing rectangles with uniform borders (not used
+	 * for deep views) */
+	public boolean boundaryTrace = false;
+
+	private ForkJoinPool pool;
+
+	/** Finished images, least recently used first */
+	private LinkedHashMap<View, BufferedImage> cache = new LinkedHashMap<View, BufferedImage>(64, 0.75f, true);
+	private long cacheBytes = 0;
+	private long maxCacheBytes = 256L << 20;
+
+	/** Create a new renderer, with one thread per processor */
+	public MandelbrotRenderer(){
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Create a new renderer
+	 * @param nThreads = number of threads used to compute tiles */
+	public MandelbrotRenderer(int nThreads){
+		pool = new ForkJoinPool(nThreads);
+	}
+
+	/** Stop the threads. Jobs that are still running are not finished. */
+	public void shutdown(){
+		pool.shutdownNow();
+	}
+
+	/** Set how much memory the cache of finished images can use */
+	public void setCacheSize(int megabytes){
+		synchronized (cache){
+			maxCacheBytes = ((long) megabytes) << 20;
+			trimCache();
+		}
+	}
+
+	/** Forget every cached image, for example after changing a setting that
+	 * changes the colors */
+	public void clearCache(){
+		synchronized (cache){
+			cache.clear();
+			cacheBytes = 0;
+		}
+	}
+
+	/** @return number of images in the cache */
+	public int getCachedViewCount(){
+		synchronized (cache){
+			return cache.size();
+		}
+	}
+
+	/** Add a finished image to the cache */
+	private void cachePut(View view, BufferedImage image){
+		synchronized (cache){
+			BufferedImage old = cache.put(view, image);
+			if (old != null) cacheBytes -= bytes(old);
+			cacheBytes += bytes(image);
+			trimCache();
+		}
+	}
+
+	/** Drop the least recently used images until the cache fits */
+	private void trimCache(){
+		Iterator<BufferedImage> it = cache.values().iterator();
+		while (cacheBytes > maxCacheBytes && it.hasNext()){
+			cacheBytes -= bytes(it.next());
+			it.remove();
+		}
+	}
+
+	private static long bytes(BufferedImage image){
+		return 4L*image.getWidth()*image.getHeight();
+	}
+
+	/** Start rendering a view
+	 * @param view = what to render
+	 * @param listener = told about each finished tile (can be null)
+	 * @return the job, which holds the image */
+	public Job render(View view, TileListener listener){
+		return new Job(view, null, listener);
+	}
+
+	/** Start rendering a view, starting from the image of a previous one
+	 * @param view = what to render
+	 * @param previous = its image is moved and scaled to fill the new image
+	 * until the tiles arrive (can be null)
+	 * @param listener = told about each finished tile (can be null)
+	 * @return the job, which holds the image */
+	public Job render(View view, Job previous, TileListener listener){
+		BufferedImage cached;
+		synchronized (cache){
+			cached = cache.get(view);
+		}
+		if (cached != null){
+			return new Job(view, cached);
+		}
+		return new Job(view, previous, listener);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                              Views                                ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** A view of the set: pixel (i,j) is at
+	 * cr = (i-0.5*width)/scale + centerX, ci = -(j-0.5*height)/scale + centerY
+	 *
+	 * The center is kept in high precision for deep zooms. centerX and
+	 * centerY are the same values rounded to doubles. */
+	public static final class View {
+		public final BigDecimal centerRe, centerIm;
+		public final double centerX, centerY;
+		public final double scale;  // pixels / unit
+		public final int width, height;
+		public final int maxIter;
+
+		public View(BigDecimal centerRe, BigDecimal centerIm, double scale, int width, int height, int maxIter){
+			this.centerRe = centerRe;
+			this.centerIm = centerIm;
+			this.centerX = centerRe.doubleValue();
+			this.centerY = centerIm.doubleValue();
+			this.scale = scale;
+			this.width = width;
+			this.height = height;
+			this.maxIter = maxIter;
+		}
+
+		public View(double centerX, double centerY, double scale, int width, int height, int maxIter){
+			this(new BigDecimal(centerX), new BigDecimal(centerY), scale, width, height, maxIter);
+		}
+
+		/** @return enough digits to tell the pixels of this view apart, with
+		 * plenty to spare for the reference orbits */
+		public MathContext precision(){
+			return precision(scale);
+		}
+
+		/** @return enough digits for a view with this scale (pixels/unit) */
+		public static MathContext precision(double scale){
+			return new MathContext(24 + (int) Math.max(0.0, Math.ceil(Math.log10(scale))));
+		}
+
+		/** Views are equal if they have the same pixels */
+		@Override
+		public boolean equals(Object o){
+			if (!(o instanceof View)) return false;
+			View v = (View) o;
+			return scale == v.scale && width == v.width && height == v.height && maxIter == v.maxIter
+					&& centerRe.compareTo(v.centerRe) == 0 && centerIm.compareTo(v.centerIm) == 0;
+		}
+
+		@Override
+		public int hashCode(){
+			int hash = Double.hashCode(scale);
+			hash = 31*hash + width;
+			hash = 31*hash + height;
+			hash = 31*hash + maxIter;
+			hash = 31*hash + centerRe.stripTrailingZeros().hashCode();
+			return 31*hash + centerIm.stripTrailingZeros().hashCode();
+		}
+
+		/** @return real part of the point at pixel column i */
+		public double re(double i){
+			return (i-0.5*width)/scale + centerX;
+		}
+
+		/** @return imaginary part of the point at pixel row j */
+		public double im(double j){
+			return -(j-0.5*height)/scale + centerY;
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                         Rendering jobs                            ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** One view, rendered in the background */
+	public class Job {
+
+		private final View view;
+		private final TileListener listener;
+		private final BufferedImage image;
+		private final int[] rgb;  // The pixels of image, [j*width + i]
+		private final AtomicInteger remaining = new AtomicInteger();
+		private final int nTile, nTask;
+		private final int tileSize;
+		private final boolean fromCache;
+		private final long nPixel;  // Pixels to compute, the rest are copied
+		private volatile boolean cancelled = false;
+		private final LongAdder iterations = new LongAdder();  // Actually run
+
+		/// Boundary tracing state: iteration count (-1 until computed) and
+		/// smooth value of each pixel
+		private int[] iters;
+		private float[] values;
+
+		/// Perturbation state, only used for deep views
+		private final boolean deep;
+		private ReferenceOrbit ref;
+		private double refI, refJ;  // Pixel coordinates of the reference
+		private float[] glitch;     // Glitch score of each pixel, NaN if fine
+		private int nReference = 0, nSkipped = 0, nGlitch = 0;
+
+		/** A job that is already done, with an image from the cache */
+		Job(View view, BufferedImage cached){
+			this.view = view;
+			listener = null;
+			image = cached;
+			rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			nTile = 0;
+			nTask = 0;
+			tileSize = TILE_SIZE;
+			fromCache = true;
+			nPixel = 0;
+			deep = view.scale > deepScale;
+		}
+
+		Job(View view, Job previous, TileListener listener){
+			this.view = view;
+			this.listener = listener;
+			fromCache = false;
+			image = new BufferedImage(view.width, view.height, BufferedImage.TYPE_INT_RGB);
+			rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+			deep = view.scale > deepScale;
+			boolean trace = boundaryTrace && !deep;
+			tileSize = trace ? TILE_SIZE*TRACE_TILE_SCALE : TILE_SIZE;
+			if (trace){
+				iters = new int[view.width*view.height];
+				values = new float[view.width*view.height];
+				Arrays.fill(iters, -1);
+			}
+
+			/// The tiles {x0, y0, x1, y1} to compute: only the exposed strips
+			/// if the view was panned, otherwise all of them
+			ArrayList<int[]> todo = new ArrayList<int[]>();
+			int[] shift = (previous == null) ? null : pixelShift(previous);
+			final int w = view.width, h = view.height;
+			if (shift != null){
+				int sx = shift[0], sy = shift[1];  // Pixel (i,j) was (i+sx, j+sy)
+				int i0 = Math.max(0, -sx), i1 = Math.min(w, w - sx);
+				int j0 = Math.max(0, -sy), j1 = Math.min(h, h - sy);
+				for (int j=j0; j<j1; j++){
+					System.arraycopy(previous.rgb, (j+sy)*w + i0 + sx, rgb, j*w + i0, i1 - i0);
+				}
+				addTiles(todo, 0, 0, i0, h);
+				addTiles(todo, i1, 0, w, h);
+				addTiles(todo, i0, 0, i1, j0);
+				addTiles(todo, i0, j1, i1, h);
+			} else {
+				if (previous != null){
+					preview(previous);
+				}
+				addTiles(todo, 0, 0, w, h);
+			}
+
+			/// Nearest to the center first
+			final double cx = 0.5*w, cy = 0.5*h;
+			todo.sort(Comparator.comparingDouble(t -> Math.hypot(0.5*(t[0]+t[2])-cx, 0.5*(t[1]+t[3])-cy)));
+			long pixels = 0;
+			for (int[] t : todo){
+				pixels += (long) (t[2]-t[0])*(t[3]-t[1]);
+			}
+			nPixel = pixels;
+			nTile = todo.size();
+			nTask = deep ? nTile + 1 : nTile;  // The glitch pass counts as one more
+			remaining.set(nTask);
+			if (deep){
+				pool.execute(() -> runDeep(todo));
+			} else {
+				for (int[] t : todo){
+					pool.execute(() -> runTile(t[0], t[1], t[2], t[3]));
+				}
+			}
+		}
+
+		/** Split the rectangle [x0,x1) x [y0,y1) into tiles */
+		private void addTiles(ArrayList<int[]> todo, int x0, int y0, int x1, int y1){
+			for (int x=x0; x<x1; x+=tileSize){
+				for (int y=y0; y<y1; y+=tileSize){
+					todo.add(new int[] {x, y, Math.min(x + tileSize, x1), Math.min(y + tileSize, y1)});
+				}
+			}
+		}
+
+		/** @return {sx, sy} if this view is a finished previous one moved by
+		 * whole pixels, so that pixel (i,j) was (i+sx, j+sy), otherwise null */
+		private int[] pixelShift(Job previous){
+			View a = previous.view, b = view;
+			if (!previous.isDone() || previous.cancelled || a.scale != b.scale || a.width != b.width
+					|| a.height != b.height || a.maxIter != b.maxIter){
+				return null;
+			}
+			double dx = b.centerRe.subtract(a.centerRe).doubleValue()*b.scale;
+			double dy = -b.centerIm.subtract(a.centerIm).doubleValue()*b.scale;
+			long sx = Math.round(dx), sy = Math.round(dy);
+			if (Math.abs(dx - sx) > 1e-3 || Math.abs(dy - sy) > 1e-3
+					|| Math.abs(sx) >= b.width || Math.abs(sy) >= b.height){
+				return null;
+			}
+			return new int[] {(int) sx, (int) sy};
+		}
+
+		/** Draw the image of a previous view where it lies in this one */
+		private void preview(Job previous){
+			View a = previous.view, b = view;
+			double ratio = b.scale/a.scale;
+			double dx = a.centerRe.subtract(b.centerRe).doubleValue();  // Exact, before rounding
+			double dy = a.centerIm.subtract(b.centerIm).doubleValue();
+			int x0 = (int) Math.round(0.5*b.width - 0.5*a.width*ratio + dx*b.scale);
+			int y0 = (int) Math.round(0.5*b.height - 0.5*a.height*ratio - dy*b.scale);
+			int x1 = x0 + (int) Math.round(a.width*ratio);
+			int y1 = y0 + (int) Math.round(a.height*ratio);
+			Graphics2D g = image.createGraphics();
+			g.drawImage(previous.image, x0, y0, x1, y1, 0, 0, a.width, a.height, null);
+			g.dispose();
+		}
+
+		/** Compute the tile [x0,x1) x [y0,y1), unless the job was cancelled */
+		private void runTile(int x0, int y0, int x1, int y1){
+			boolean done = !cancelled && (deep ? perturbTile(x0, y0, x1, y1)
+					: iters != null ? traceTile(this, x0, y0, x1, y1)
+					: computeTile(this, x0, y0, x1, y1));
+			if (done && listener != null){
+				listener.tileDone(this, x0, y0, x1-x0, y1-y0);
+			}
+			finishTask();
+		}
+
+		/** Count one task as done, and wake up await() after the last */
+		private void finishTask(){
+			synchronized (this){
+				if (remaining.decrementAndGet() == 0){
+					if (!cancelled) cachePut(view, image);
+					notifyAll();
+				}
+			}
+		}
+
+		/** Stop rendering this view. Tiles that are half done are dropped. */
+		public void cancel(){
+			cancelled = true;
+		}
+
+		/** @return true if cancel() was called */
+		public boolean isCancelled(){
+			return cancelled;
+		}
+
+		/** @return true once every tile has finished (or was skipped after
+		 * the job was cancelled) */
+		public boolean isDone(){
+			return remaining.get() == 0;
+		}
+
+		/** Wait until the job is done */
+		public synchronized void await() throws InterruptedException {
+			while (remaining.get() > 0){
+				wait();
+			}
+		}
+
+		/** @return fraction of the tiles that are done, between 0 and 1 */
+		public double getProgress(){
+			return (nTask == 0) ? 1.0 : 1.0 - ((double) remaining.get())/nTask;
+		}
+
+		/** @return the image, which is filled in while the job runs */
+		public BufferedImage getImage(){
+			return image;
+		}
+
+		/** @return the view being rendered */
+		public View getView(){
+			return view;
+		}
+
+		/** @return number of tiles computed for the view */
+		public int getTileCount(){
+			return nTile;
+		}
+
+		/** @return number of pixels computed for the view, which is less
+		 * than all of them after a pan */
+		public long getComputedPixelCount(){
+			return nPixel;
+		}
+
+		/** @return true if the image came from the cache */
+		public boolean isFromCache(){
+			return fromCache;
+		}
+
+		/** @return number of iterations run so far, over all pixels */
+		public long getIterationCount(){
+			return iterations.sum();
+		}
+
+		/** @return true if the view is rendered by perturbation */
+		public boolean isDeep(){
+			return deep;
+		}
+
+		/** @return number of reference orbits computed so far (deep views) */
+		public int getReferenceCount(){
+			return nReference;
+		}
+
+		/** @return iterations skipped by the series for the first reference */
+		public int getSkippedIterations(){
+			return nSkipped;
+		}
+
+		/** @return number of pixels still glitched when the job finished.
+		 * They are colored by iterating c in doubles, which cannot tell the
+		 * pixels apart at this depth, so they show as flat patches. */
+		public int getGlitchCount(){
+			return nGlitch;
+		}
+
+		///////////////////////////////////////////////////////////////////////
+		////                 Perturbation, for deep views                  ////
+		///////////////////////////////////////////////////////////////////////
+
+		/** The whole deep render: the reference at the center, the tiles in
+		 * parallel, and then rounds of new references for glitched pixels */
+		private void runDeep(ArrayList<int[]> todo){
+			int unstarted = todo.size();  // Tiles that will never run, if we stop early
+			try {
+				final int w = view.width, h = view.height;
+				glitch = new float[w*h];
+				Arrays.fill(glitch, Float.NaN);
+				if (cancelled) return;
+				if (!setReference(0.5*w, 0.5*h, new double[] {0, 0, w-1, 0, 0, h-1, w-1, h-1})) return;
+				nSkipped = ref.getSkip();
+
+				ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[todo.size()];
+				for (int k=0; k<tasks.length; k++){
+					final int[] t = todo.get(k);
+					tasks[k] = ForkJoinTask.adapt(() -> runTile(t[0], t[1], t[2], t[3]));
+				}
+				unstarted = 0;  // Each tile counts itself down, even if cancelled
+				ForkJoinTask.invokeAll(tasks);
+
+				while (!cancelled){
+					/// Gather the glitched pixels, and the one with the worst glitch
+					int nG = 0, worst = -1;
+					int iLow = w, iUpp = -1, jLow = h, jUpp = -1;
+					for (int k=0; k<w*h; k++){
+						if (Float.isNaN(glitch[k])) continue;
+						if (worst < 0 || glitch[k] < glitch[worst]) worst = k;
+						int i = k % w, j = k / w;
+						iLow = Math.min(iLow, i); iUpp = Math.max(iUpp, i);
+						jLow = Math.min(jLow, j); jUpp = Math.max(jUpp, j);
+						nG++;
+					}
+					nGlitch = nG;
+					if (nG == 0) break;
+					final int[] pixels = new int[nG];
+					for (int k=0, m=0; k<w*h; k++){
+						if (!Float.isNaN(glitch[k])) pixels[m++] = k;
+					}
+
+					boolean last = nReference >= MAX_REFERENCES;
+					if (last){  /// Out of references: color them in doubles
+						runPixels(pixels, true);
+					} else {  /// A new reference at the worst glitch, and those pixels again
+						if (!setReference(worst % w, worst / w, new double[] {iLow, jLow, iUpp, jLow, iLow, jUpp, iUpp, jUpp})) break;
+						runPixels(pixels, false);
+					}
+					if (listener != null && !cancelled){
+						listener.tileDone(this, iLow, jLow, iUpp-iLow+1, jUpp-jLow+1);
+					}
+					if (last) break;
+				}
+			} finally {
+				remaining.addAndGet(-unstarted);
+				finishTask();
+			}
+		}
+
+		/** Compute a list of pixels in parallel chunks
+		 * @param pixels = index j*width + i of each pixel
+		 * @param plain = iterate c in doubles, instead of by perturbation */
+		private void runPixels(final int[] pixels, final boolean plain){
+			final int w = view.width, nP = pixels.length;
+			int nChunk = Math.max(1, Math.min(4*pool.getParallelism(), nP/256));
+			ForkJoinTask<?>[] chunks = new ForkJoinTask<?>[nChunk];
+			for (int c=0; c<nChunk; c++){
+				final int low = (int) ((long) nP*c/nChunk), upp = (int) ((long) nP*(c+1)/nChunk);
+				chunks[c] = ForkJoinTask.adapt(() -> {
+					double[] out = new double[3];
+					for (int m=low; m<upp && !cancelled; m++){
+						if (plain){
+							plainPixel(pixels[m] % w, pixels[m] / w, out);
+						} else {
+							perturbPixel(pixels[m] % w, pixels[m] / w);
+						}
+					}
+				});
+			}
+			ForkJoinTask.invokeAll(chunks);
+		}
+
+		/** Color a pixel that no reference could compute, by iterating c in
+		 * doubles. It stays marked as glitched. */
+		private void plainPixel(int i, int j, double[] out){
+			double cr = ref.cr + (i - refI)/view.scale, ci = ref.ci - (j - refJ)/view.scale;
+			int iter = EscapeTime.iterate(cr, ci, view.maxIter, 0.0, out);
+			iterations.add((long) out[EscapeTime.WORK]);
+			rgb[j*view.width + i] = Mandelbrot.colorMap(EscapeTime.smoothValue(iter,
+					out[EscapeTime.ZR], out[EscapeTime.ZI], cr, ci, view.maxIter));
+		}
+
+		/** Compute a new reference orbit at pixel (i,j), and fit its series
+		 * to the pixels that it will be used for
+		 * @param corners = pixel coordinates {i, j, i, j, ...} of the corners
+		 * of the region it will be used for
+		 * @return false if the job was cancelled while computing the orbit,
+		 * in which case the old reference is kept */
+		private boolean setReference(double i, double j, double[] corners){
+			MathContext mc = view.precision();
+			BigDecimal scale = new BigDecimal(view.scale);
+			BigDecimal cr = view.centerRe.add(new BigDecimal(i - 0.5*view.width).divide(scale, mc), mc);
+			BigDecimal ci = view.centerIm.subtract(new BigDecimal(j - 0.5*view.height).divide(scale, mc), mc);
+			ReferenceOrbit orbit = new ReferenceOrbit(cr, ci, view.maxIter, mc, () -> cancelled);
+			if (orbit.isStopped()) return false;
+
+			double[] probes = new double[corners.length];
+			double deltaMax = 0.0;
+			for (int k=0; k+1<corners.length; k+=2){
+				probes[k] = (corners[k] - i)/view.scale;
+				probes[k+1] = -(corners[k+1] - j)/view.scale;
+				deltaMax = Math.max(deltaMax, Math.hypot(probes[k], probes[k+1]));
+			}
+			orbit.fitSeries(deltaMax, probes);
+			ref = orbit;
+			refI = i;
+			refJ = j;
+			nReference++;
+			return true;
+		}
+
+		/** Perturbation for the pixels [x0,x1) x [y0,y1)
+		 * @return false if the job was cancelled part way through */
+		private boolean perturbTile(int x0, int y0, int x1, int y1){
+			for (int j=y0; j<y1; j++){
+				if (cancelled) return false;
+				for (int i=x0; i<x1; i++){
+					perturbPixel(i, j);
+				}
+			}
+			return true;
+		}
+
+		/** Iterate one pixel as an offset from the current reference. Sets
+		 * its color, or marks it as glitched. */
+		private void perturbPixel(int i, int j){
+			final ReferenceOrbit orbit = ref;
+			final double[] Zr = orbit.zr, Zi = orbit.zi;
+			final int maxIter = view.maxIter, last = orbit.length - 1;
+			final double dr = (i - refI)/view.scale, di = -(j - refJ)/view.scale;
+			final int k = j*view.width + i;
+
+			/// Start from the series, unless the pixel escapes before it ends
+			int n = orbit.skip;
+			double er, ei;
+			if (n > 0){
+				double d2r = dr*dr - di*di, d2i = 2.0*dr*di;
+				double d3r = d2r*dr - d2i*di, d3i = d2r*di + d2i*dr;
+				er = orbit.ar*dr - orbit.ai*di + orbit.br*d2r - orbit.bi*d2i + orbit.qr*d3r - orbit.qi*d3i;
+				ei = orbit.ar*di + orbit.ai*dr + orbit.br*d2i + orbit.bi*d2r + orbit.qr*d3i + orbit.qi*d3r;
+				double zr = Zr[n] + er, zi = Zi[n] + ei;
+				if (zr*zr + zi*zi > 4.0){
+					n = 0; er = 0.0; ei = 0.0;
+				}
+			} else {
+				er = 0.0; ei = 0.0;
+			}
+
+			double zr = 0.0, zi = 0.0;
+			final int n0 = n;
+			for (; n<maxIter; n++){
+				if (n >= last){  // The reference escaped first
+					glitch[k] = 1.0f;
+					iterations.add(n - n0);
+					return;
+				}
+				double Rr = Zr[n], Ri = Zi[n];
+				double nr = 2.0*(Rr*er - Ri*ei) + er*er - ei*ei + dr;
+				ei = 2.0*(Rr*ei + Ri*er) + 2.0*er*ei + di;
+				er = nr;
+				Rr = Zr[n+1]; Ri = Zi[n+1];
+				zr = Rr + er; zi = Ri + ei;
+				double z2 = zr*zr + zi*zi;
+				if (z2 > 4.0) break;
+				double R2 = Rr*Rr + Ri*Ri;
+				if (z2 < GLITCH_TOL*R2){
+					glitch[k] = (float) (z2/R2);
+					iterations.add(n + 1 - n0);
+					return;
+				}
+			}
+			iterations.add(Math.min(n + 1, maxIter) - n0);
+
+			/// The orbit is large by now, so c in doubles is good enough
+			double value = EscapeTime.smoothValue(n, zr, zi, orbit.cr + dr, orbit.ci + di, maxIter);
+			glitch[k] = Float.NaN;
+			rgb[k] = Mandelbrot.colorMap(value);
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                     Escape time of one tile                       ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** Compute the pixels [x0,x1) x [y0,y1) into the image of the job
+	 * @return false if the job was cancelled part way through */
+	private boolean computeTile(Job job, int x0, int y0, int x1, int y1){
+		final View view = job.view;
+		final int w = view.width, maxIter = view.maxIter;
+		final int[] rgb = job.rgb;
+		final double periodTol = periodTolerance(view);
+		final double[] out = new double[3];
+
+		double cr,ci; // test point
+		int i,j,iter; // iterators
+		long work = 0;
+		for (j=y0; j<y1; j++){
+			if (job.cancelled) break;
+			ci = view.im(j);
+			for (i=x0; i<x1; i++){
+				cr = view.re(i);
+				iter = EscapeTime.iterate(cr, ci, maxIter, periodTol, out);
+				work += (long) out[EscapeTime.WORK];
+				rgb[j*w + i] = Mandelbrot.colorMap(EscapeTime.smoothValue(iter, out[EscapeTime.ZR], out[EscapeTime.ZI], cr, ci, maxIter));
+			}
+		}
+		job.iterations.add(work);
+		return !job.cancelled;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	////                 Boundary tracing by subdivision                   ////
+	///////////////////////////////////////////////////////////////////////////
+
+	/** Render the pixels [x0,x1) x [y0,y1) by subdivision
+	 * @return false if the job was cancelled part way through */
+	private boolean traceTile(Job job, int x0, int y0, int x1, int y1){
+		final double periodTol = periodTolerance(job.view);
+		double[] out = new double[3];
+		long work = computeRect(job, x0, y0, x1-1, y0, periodTol, out)  // The border
+				+ computeRect(job, x0, y1-1, x1-1, y1-1, periodTol, out)
+				+ computeRect(job, x0, y0+1, x0, y1-2, periodTol, out)
+				+ computeRect(job, x1-1, y0+1, x1-1, y1-2, periodTol, out);
+		job.iterations.add(work);
+		new TraceTask(job, x0, y0, x1-1, y1-1, periodTol).invoke();
+		return !job.cancelled;
+	}
+
+	/** Subdivision of the rectangle [x0,x1] x [y0,y1] (inclusive), whose
+	 * border has already been computed */
+	@SuppressWarnings("serial")
+	private class TraceTask extends RecursiveAction {
+		private final Job job;
+		private final int x0, y0, x1, y1;
+		private final double periodTol;
+
+		TraceTask(Job job, int x0, int y0, int x1, int y1, double periodTol){
+			this.job = job;
+			this.x0 = x0; this.y0 = y0;
+			this.x1 = x1; this.y1 = y1;
+			this.periodTol = periodTol;
+		}
+
+		@Override
+		protected void compute() {
+			if (job.cancelled || x1 - x0 < 2 || y1 - y0 < 2) return;  // Nothing inside
+			final int w = job.view.width;
+			final int[] iters = job.iters;
+			double[] out = new double[3];
+
+			/// Fill the inside if the border is uniform
+			int first = iters[y0*w + x0];
+			boolean uniform = true;
+			for (int i=x0; i<=x1 && uniform; i++){
+				uniform = iters[y0*w + i] == first && iters[y1*w + i] == first;
+			}
+			for (int j=y0+1; j<y1 && uniform; j++){
+				uniform = iters[j*w + x0] == first && iters[j*w + x1] == first;
+			}
+			if (uniform){
+				fill(job, x0, y0, x1, y1);
+				return;
+			}
+
+			/// Small rectangles are computed pixel by pixel
+			long area = (long) (x1 - x0 + 1)*(y1 - y0 + 1);
+			if (area < MIN_TRACE_AREA){
+				job.iterations.add(computeRect(job, x0+1, y0+1, x1-1, y1-1, periodTol, out));
+				return;
+			}
+
+			/// Cut across the longer side, and do the halves
+			TraceTask a, b;
+			if (x1 - x0 >= y1 - y0){
+				int xm = (x0 + x1) >>> 1;
+				job.iterations.add(computeRect(job, xm, y0+1, xm, y1-1, periodTol, out));
+				a = new TraceTask(job, x0, y0, xm, y1, periodTol);
+				b = new TraceTask(job, xm, y0, x1, y1, periodTol);
+			} else {
+				int ym = (y0 + y1) >>> 1;
+				job.iterations.add(computeRect(job, x0+1, ym, x1-1, ym, periodTol, out));
+				a = new TraceTask(job, x0, y0, x1, ym, periodTol);
+				b = new TraceTask(job, x0, ym, x1, y1, periodTol);
+			}
+			if (area >= FORK_TRACE_AREA){
+				invokeAll(a, b);
+			} else {
+				a.compute();
+				b.compute();
+			}
+		}
+	}
+
+	/** Compute every pixel of [x0,x1] x [y0,y1] (inclusive) for tracing
+	 * @return iterations run */
+	private long computeRect(Job job, int x0, int y0, int x1, int y1, double periodTol, double[] out){
+		final View view = job.view;
+		final int w = view.width, maxIter = view.maxIter;
+		long work = 0;
+		for (int j=y0; j<=y1; j++){
+			double ci = view.im(j);
+			for (int i=x0; i<=x1; i++){
+				double cr = view.re(i);
+				int iter = EscapeTime.iterate(cr, ci, maxIter, periodTol, out);
+				work += (long) out[EscapeTime.WORK];
+				double value = EscapeTime.smoothValue(iter, out[EscapeTime.ZR], out[EscapeTime.ZI], cr, ci, maxIter);
+				job.iters[j*w + i] = iter;
+				job.values[j*w + i] = (float) value;
+				job.rgb[j*w + i] = Mandelbrot.colorMap(value);
+			}
+		}
+		return work;
+	}
+
+	/** Fill the inside of [x0,x1] x [y0,y1] from its border, interpolating
+	 * the smooth value along each row */
+	private static void fill(Job job, int x0, int y0, int x1, int y1){
+		final int w = job.view.width, iter = job.iters[y0*w + x0];
+		final double span = x1 - x0;
+		for (int j=y0+1; j<y1; j++){
+			double left = job.values[j*w + x0], right = job.values[j*w + x1];
+			for (int i=x0+1; i<x1; i++){
+				double value = left + (right - left)*((i - x0)/span);
+				job.iters[j*w + i] = iter;
+				job.values[j*w + i] = (float) value;
+				job.rgb[j*w + i] = Mandelbrot.colorMap(value);
+			}
+		}
+	}
+
+	/** @return how close an orbit must come back to count as periodic: well
+	 * below the pixel spacing, so that no point that escapes within a
+	 * pixel of the boundary is mistaken for one in the set. Zero when the
+	 * interior checks are off. */
+	private double periodTolerance(View view){
+		return interiorChecks ? Math.min(1e-10, 1e-3/view.scale) : 0.0;
+	}
+
+}
@@ -0,0 +1,187 @@
+package mpk_fractal;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.function.BooleanSupplier;
+
+/** The orbit of one point of the Mandelbrot set, computed in high precision
+ * and rounded to doubles, for rendering deep zooms by perturbation. A pixel
+ * at c = C + dc has the orbit z_n = Z_n + e_n, where Z_n is this orbit and
+ *
+ * e_n+1 = 2*Z_n*e_n + e_n^2 + dc
+ *
+ * Both dc and e_n are tiny, but they are stored relative to zero, so double
+ * precision is plenty, and only this one orbit needs the high precision.
+ *
+ * Series approximation: for small dc, e_n = A_n*dc + B_n*dc^2 + C_n*dc^3,
+ * with A_n+1 = 2*Z_n*A_n + 1, B_n+1 = 2*Z_n*B_n + A_n^2, and
+ * C_n+1 = 2*Z_n*C_n + 2*A_n*B_n. These coefficients are the same for every
+ * pixel, so the first iterations of every pixel can be skipped, as long as
+ * the cubic is still accurate over the whole view.
+ * @author matt
+ */
+public class ReferenceOrbit {
+
+	/** Relative size of the cubic term at which the series is no longer
+	 * trusted */
+	private static final double SERIES_TOL = 1e-12;
+
+	/** Relative error allowed at the probe points */
+	private static final double PROBE_TOL = 1e-6;
+
+	/** The orbit, Z_0 = 0 to Z_length-1 */
+	final double[] zr, zi;
+	final int length;
+
+	/** True if the orbit was cut short by the stop condition */
+	private boolean stopped = false;
+
+	/** Where the reference is: the real part, imaginary part, as doubles */
+	final double cr, ci;
+
+	/** Iterations skipped by the series, and its coefficients at that point */
+	int skip = 0;
+	double ar, ai, br, bi, qr, qi;
+
+	/** Compute the orbit of C = cr + i*ci, until it escapes or reaches maxIter
+	 * @param cr = real part of C
+	 * @param ci = imaginary part of C
+	 * @param maxIter = the orbit has at most maxIter+1 points
+	 * @param mc = precision of the arithmetic */
+	public ReferenceOrbit(BigDecimal cr, BigDecimal ci, int maxIter, MathContext mc){
+		this(cr, ci, maxIter, mc, () -> false);
+	}
+
+	/** Compute the orbit of C, but give up as soon as stop returns true.
+	 * The orbit is then cut short, and isStopped() is true.
+	 * @param stop = checked before each iteration, e.g. whether the render
+	 * was cancelled */
+	public ReferenceOrbit(BigDecimal cr, BigDecimal ci, int maxIter, MathContext mc, BooleanSupplier stop){
+		this.cr = cr.doubleValue();
+		this.ci = ci.doubleValue();
+		double[] xr = new double[maxIter+1], xi = new double[maxIter+1];
+		BigDecimal zr = BigDecimal.ZERO, zi = BigDecimal.ZERO;
+		BigDecimal two = BigDecimal.valueOf(2);
+		int n = 1;  // Z_0 = 0 is already stored
+		for (; n<=maxIter; n++){
+			if (stop.getAsBoolean()){
+				stopped = true;
+				break;
+			}
+			BigDecimal r2 = zr.multiply(zr, mc), i2 = zi.multiply(zi, mc);
+			BigDecimal zR = r2.subtract(i2, mc).add(cr, mc);
+			zi = two.multiply(zr, mc).multiply(zi, mc).add(ci, mc);
+			zr = zR;
+			xr[n] = zr.doubleValue();
+			xi[n] = zi.doubleValue();
+			if (xr[n]*xr[n] + xi[n]*xi[n] > 4.0){
+				n++;
+				break;
+			}
+		}
+		length = n;
+		this.zr = xr;
+		this.zi = xi;
+	}
+
+	/** Choose how many iterations the series skips, for pixels up to
+	 * deltaMax away from the reference. The choice is checked against the
+	 * full perturbation at the probe points, and cut back until they agree.
+	 * @param deltaMax = largest |dc| in the view
+	 * @param probes = offsets dc of a few pixels, as {re, im, re, im, ...},
+	 * usually the corners of the view */
+	public void fitSeries(double deltaMax, double[] probes){
+		/// How far the series stays accurate at deltaMax
+		double Ar = 0.0, Ai = 0.0, Br = 0.0, Bi = 0.0, Qr = 0.0, Qi = 0.0;
+		double d2 = deltaMax*deltaMax;
+		int n = 0;
+		for (; n<length-1; n++){
+			double Zr = zr[n], Zi = zi[n];
+			double nAr = 2.0*(Zr*Ar - Zi*Ai) + 1.0;
+			double nAi = 2.0*(Zr*Ai + Zi*Ar);
+			double nBr = 2.0*(Zr*Br - Zi*Bi) + Ar*Ar - Ai*Ai;
+			double nBi = 2.0*(Zr*Bi + Zi*Br) + 2.0*Ar*Ai;
+			double nQr = 2.0*(Zr*Qr - Zi*Qi) + 2.0*(Ar*Br - Ai*Bi);
+			double nQi = 2.0*(Zr*Qi + Zi*Qr) + 2.0*(Ar*Bi + Ai*Br);
+			if (Math.hypot(nQr, nQi)*d2 > SERIES_TOL*Math.hypot(nAr, nAi)
+					|| !Double.isFinite(nQr + nQi)){
+				break;
+			}
+			Ar = nAr; Ai = nAi; Br = nBr; Bi = nBi; Qr = nQr; Qi = nQi;
+		}
+		int candidate = n;
+
+		/// Cut back until the series matches the probes
+		while (candidate > 0 && !probesAgree(candidate, probes)){
+			candidate = candidate/2;
+		}
+		setSkip(candidate);
+	}
+
+	/** Set the number of iterations skipped, and the coefficients there */
+	private void setSkip(int n){
+		double Ar = 0.0, Ai = 0.0, Br = 0.0, Bi = 0.0, Qr = 0.0, Qi = 0.0;
+		for (int k=0; k<n; k++){
+			double Zr = zr[k], Zi = zi[k];
+			double nAr = 2.0*(Zr*Ar - Zi*Ai) + 1.0;
+			double nAi = 2.0*(Zr*Ai + Zi*Ar);
+			double nBr = 2.0*(Zr*Br - Zi*Bi) + Ar*Ar - Ai*Ai;
+			double nBi = 2.0*(Zr*Bi + Zi*Br) + 2.0*Ar*Ai;
+			double nQr = 2.0*(Zr*Qr - Zi*Qi) + 2.0*(Ar*Br - Ai*Bi);
+			double nQi = 2.0*(Zr*Qi + Zi*Qr) + 2.0*(Ar*Bi + Ai*Br);
+			Ar = nAr; Ai = nAi; Br = nBr; Bi = nBi; Qr = nQr; Qi = nQi;
+		}
+		skip = n;
+		ar = Ar; ai = Ai; br = Br; bi = Bi; qr = Qr; qi = Qi;
+	}
+
+	/** @return true if the series after n iterations matches the full
+	 * perturbation at every probe point */
+	private boolean probesAgree(int n, double[] probes){
+		setSkip(n);
+		double[] e = new double[2];
+		for (int k=0; k+1<probes.length; k+=2){
+			double dr = probes[k], di = probes[k+1];
+			double er = 0.0, ei = 0.0;
+			for (int m=0; m<n; m++){
+				double Zr = zr[m], Zi = zi[m];
+				double nr = 2.0*(Zr*er - Zi*ei) + er*er - ei*ei + dr;
+				ei = 2.0*(Zr*ei + Zi*er) + 2.0*er*ei + di;
+				er = nr;
+			}
+			series(dr, di, e);
+			double err = Math.hypot(e[0] - er, e[1] - ei);
+			if (!(err <= PROBE_TOL*Math.hypot(er, ei))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Evaluate the series at the skipped iteration
+	 * @param e = filled with {re, im} of e_skip */
+	void series(double dr, double di, double[] e){
+		double d2r = dr*dr - di*di, d2i = 2.0*dr*di;
+		double d3r = d2r*dr - d2i*di, d3i = d2r*di + d2i*dr;
+		e[0] = ar*dr - ai*di + br*d2r - bi*d2i + qr*d3r - qi*d3i;
+		e[1] = ar*di + ai*dr + br*d2i + bi*d2r + qr*d3i + qi*d3r;
+	}
+
+	/** @return number of points in the orbit (it escaped if this is less
+	 * than maxIter+1) */
+	public int getLength(){
+		return length;
+	}
+
+	/** @return true if the constructor gave up before the orbit escaped
+	 * or reached maxIter */
+	public boolean isStopped(){
+		return stopped;
+	}
+
+	/** @return number of iterations skipped by the series */
+	public int getSkip(){
+		return skip;
+	}
+
+}
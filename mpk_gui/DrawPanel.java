@@ -123,6 +123,16 @@ public abstract class DrawPanel extends JPanel {
 	////                     Utility functions!                        ////
 	///////////////////////////////////////////////////////////////////////
 
+	/** @return the pixel column of the world coordinate x */
+	public double toPixelX(double x){
+		return Mx*x + Bx;
+	}
+
+	/** @return the pixel row of the world coordinate y */
+	public double toPixelY(double y){
+		return My*y + By;
+	}
+
 	/** Set the line width */
 	public void setLineWidth(int w){
 		g2.setStroke(new BasicStroke(w));
@@ -0,0 +1,82 @@
+package mpk_dsc;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/** Vector API implementation of the array kernels. Each loop processes as 
+ * many elements per instruction as the hardware prefers, followed by a 
+ * scalar loop for the remainder.
+ * 
+ * Requires JDK 16+ with "--add-modules jdk.incubator.vector" at both compile
+ * time and run time, so it is kept out of the main source tree and compiled
+ * on its own, against the rest of mpk_dsc:
+ *
+ * javac --add-modules jdk.incubator.vector -cp bin -d bin optional/mpk_dsc/VectorKernels.java
+ *
+ * Do not use this class directly: ArrayKernels.create() loads it by
+ * reflection and falls back to ScalarKernels if it is missing or fails.
+ * The results agree with ScalarKernels to rounding (the lane-wise SIN is
+ * not always the same double as Math.sin), not bit for bit. */
+class VectorKernels implements ArrayKernels {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public void axpy(double[] x, double a, double[] y, double[] out, int n) {
+		int i = 0;
+		int bound = SPECIES.loopBound(n);
+		for (; i<bound; i+=SPECIES.length()){
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, i);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, y, i);
+			vx.add(vy.mul(a)).intoArray(out, i);
+		}
+		for (; i<n; i++){
+			out[i] = x[i] + a*y[i];
+		}
+	}
+
+	@Override
+	public void rk4(double[] x, double h, double[] k1, double[] k2,
+			double[] k3, double[] k4, int n) {
+		double h6 = h/6.0;
+		int i = 0;
+		int bound = SPECIES.loopBound(n);
+		for (; i<bound; i+=SPECIES.length()){
+			DoubleVector v1 = DoubleVector.fromArray(SPECIES, k1, i);
+			DoubleVector v2 = DoubleVector.fromArray(SPECIES, k2, i);
+			DoubleVector v3 = DoubleVector.fromArray(SPECIES, k3, i);
+			DoubleVector v4 = DoubleVector.fromArray(SPECIES, k4, i);
+			DoubleVector sum = v1.add(v2.mul(2.0)).add(v3.mul(2.0)).add(v4);
+			DoubleVector.fromArray(SPECIES, x, i).add(sum.mul(h6)).intoArray(x, i);
+		}
+		for (; i<n; i++){
+			x[i] = x[i] + h6*(k1[i] + 2.0*k2[i] + 2.0*k3[i] + k4[i]);
+		}
+	}
+
+	@Override
+	public void pendulum(double[] th, double[] w, double[] out, int n,
+			double bias, double damp, double grav) {
+		int i = 0;
+		int bound = SPECIES.loopBound(n);
+		for (; i<bound; i+=SPECIES.length()){
+			DoubleVector vth = DoubleVector.fromArray(SPECIES, th, i);
+			DoubleVector vw = DoubleVector.fromArray(SPECIES, w, i);
+			DoubleVector sin = vth.lanewise(VectorOperators.SIN);
+			DoubleVector.broadcast(SPECIES, bias)
+				.sub(vw.mul(damp))
+				.sub(sin.mul(grav))
+				.intoArray(out, i);
+		}
+		for (; i<n; i++){
+			out[i] = bias - damp*w[i] - grav*Math.sin(th[i]);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "vector (" + SPECIES.length() + " lanes)";
+	}
+
+}